@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.handler.NullRecordHandler;
+import edu.tufts.eaftan.hprofparser.handler.RecordKind;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parser's inner loops one record at a time, on memory-mapped input: reading ids,
+ * decoding an instance dump (0x21) with a known class, and decoding a primitive array dump
+ * (0x23).  Each benchmark seeks to a record written by {@link SyntheticHprof} and parses it
+ * with the code {@link HprofHeap} uses for random access.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    private static final int NUM_IDS = 1024;
+
+    private static final Type[] INSTANCE_FIELDS = {
+        Type.OBJ, Type.INT, Type.LONG, Type.OBJ, Type.BYTE, Type.CHAR, Type.DOUBLE, Type.OBJ
+    };
+
+    @Param({"8", "4"})
+    public int idSize;
+
+    @Param({"INT"})
+    public Type elemType;
+
+    @Param({"16", "4096", "1048576"})
+    public int arrayLength;
+
+    private File dump;
+    private MappedFileInput in;
+    private Capture capture;
+    private HprofParser parser;
+    private long idsOffset;
+    private long instanceOffset;
+    private long arrayOffset;
+
+    @Setup(Level.Trial)
+    public void writeDump() throws IOException {
+        dump = File.createTempFile("decode-benchmark-", ".hprof");
+        dump.deleteOnExit();
+        long objectClassDump;
+        long benchClassDump;
+        try (SyntheticHprof.Writer w = new SyntheticHprof.Writer(dump, idSize)) {
+            long objectClass = w.newClass("java/lang/Object", 0, new Type[0]);
+            objectClassDump = w.getLastRecordOffset();
+            long benchClass = w.newClass("bench/Decode", objectClass, INSTANCE_FIELDS);
+            benchClassDump = w.getLastRecordOffset();
+
+            w.instance(benchClass);
+            instanceOffset = w.getLastRecordOffset();
+
+            long[] ids = new long[NUM_IDS];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = w.instance(benchClass);
+            }
+            w.objArray(objectClass, ids);
+            // skip the tag, array id, stack trace serial number, length and class id
+            idsOffset = w.getLastRecordOffset() + 1 + idSize + 4 + 4 + idSize;
+
+            w.primArray(elemType, arrayLength);
+            arrayOffset = w.getLastRecordOffset();
+        }
+
+        in = new MappedFileInput(dump);
+        capture = new Capture();
+        parser = new HprofParser(capture);
+        for (long classDump : new long[] {objectClassDump, benchClassDump}) {
+            in.seek(classDump);
+            parser.parseHeapDumpRecord(in, idSize, true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDump() throws IOException {
+        in.close();
+        dump.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_IDS)
+    public long readId() throws IOException {
+        in.seek(idsOffset);
+        long sum = 0;
+        for (int i = 0; i < NUM_IDS; i++) {
+            sum += in.readId(idSize);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long processInstance() throws IOException {
+        in.seek(instanceOffset);
+        parser.parseHeapDumpRecord(in, idSize, false);
+        return capture.value;
+    }
+
+    @Benchmark
+    public long primitiveArrayDump() throws IOException {
+        in.seek(arrayOffset);
+        parser.parseHeapDumpRecord(in, idSize, true);
+        return capture.value;
+    }
+
+    /* Keeps a value derived from the last record, for the benchmarks to return. */
+    static final class Capture extends NullRecordHandler {
+
+        long value;
+
+        @Override
+        public EnumSet<RecordKind> recordKinds() {
+            return EnumSet.of(RecordKind.CLASS_DUMP, RecordKind.INSTANCE_DUMP,
+                    RecordKind.PRIM_ARRAY_DUMP);
+        }
+
+        @Override
+        public void instanceDump(InstanceView instance) {
+            value = instance.getObjId() + instance.getObjectId(0) + instance.getLong(2);
+        }
+
+        @Override
+        public void boolArrayDump(long objId, int stackTraceSerialNum, boolean[] elems) {
+            value = objId + elems.length;
+        }
+
+        @Override
+        public void charArrayDump(long objId, int stackTraceSerialNum, char[] elems) {
+            value = objId + elems[elems.length - 1];
+        }
+
+        @Override
+        public void floatArrayDump(long objId, int stackTraceSerialNum, float[] elems) {
+            value = objId + (long) elems[elems.length - 1];
+        }
+
+        @Override
+        public void doubleArrayDump(long objId, int stackTraceSerialNum, double[] elems) {
+            value = objId + (long) elems[elems.length - 1];
+        }
+
+        @Override
+        public void byteArrayDump(long objId, int stackTraceSerialNum, byte[] elems) {
+            value = objId + elems[elems.length - 1];
+        }
+
+        @Override
+        public void shortArrayDump(long objId, int stackTraceSerialNum, short[] elems) {
+            value = objId + elems[elems.length - 1];
+        }
+
+        @Override
+        public void intArrayDump(long objId, int stackTraceSerialNum, int[] elems) {
+            value = objId + elems[elems.length - 1];
+        }
+
+        @Override
+        public void longArrayDump(long objId, int stackTraceSerialNum, long[] elems) {
+            value = objId + elems[elems.length - 1];
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.handler.NullRecordHandler;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link HprofParser#parse} end to end on a synthetic dump, with a handler that touches
+ * every object.  Besides parses per second, the {@code bytes} and {@code records} counters give
+ * the input throughput in bytes per second and heap dump records per second.  Run with
+ * {@code -prof gc} for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    public enum ParseMode {
+        TWO_PASS,
+        TWO_PASS_STREAM,
+        SINGLE_PASS,
+        PARALLEL
+    }
+
+    @Param
+    public SyntheticHprof.Shape shape;
+
+    @Param({"8", "4"})
+    public int idSize;
+
+    @Param({"256"})
+    public int megabytes;
+
+    @Param({"TWO_PASS"})
+    public ParseMode mode;
+
+    private File dump;
+
+    @Setup(Level.Trial)
+    public void writeDump() throws IOException {
+        dump = File.createTempFile("parse-benchmark-", ".hprof");
+        dump.deleteOnExit();
+        SyntheticHprof.write(dump, shape, (long) megabytes << 20, idSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDump() {
+        dump.delete();
+    }
+
+    /** Input throughput; JMH reports these as rates next to the benchmark score. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytes;
+        public long records;
+    }
+
+    @Benchmark
+    public long parse(Counters counters) throws IOException {
+        TouchingHandler handler = new TouchingHandler();
+        HprofParser parser = new HprofParser(handler);
+        switch (mode) {
+            case TWO_PASS_STREAM:
+                parser.setUseMemoryMapping(false);
+                break;
+            case SINGLE_PASS:
+                parser.setSinglePass(true);
+                break;
+            case PARALLEL:
+                parser.setParallelism(Runtime.getRuntime().availableProcessors());
+                break;
+            default:
+                break;
+        }
+        parser.parse(dump);
+        counters.bytes += dump.length();
+        counters.records += handler.records.sum();
+        return handler.checksum.sum();
+    }
+
+    /* Reads something from every object, so that no decoding work can be optimized away. */
+    static final class TouchingHandler extends NullRecordHandler {
+
+        // adders, because the parallel mode calls back from several threads
+        final LongAdder records = new LongAdder();
+        final LongAdder checksum = new LongAdder();
+
+        @Override
+        public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId,
+                              long classLoaderObjId, long signersObjId,
+                              long protectionDomainObjId, long reserved1, long reserved2,
+                              int instanceSize, Constant[] constants, Static[] statics,
+                              InstanceField[] instanceFields) {
+            touch(classObjId + instanceFields.length);
+        }
+
+        @Override
+        public void instanceDump(InstanceView instance) {
+            long sum = instance.getObjId();
+            for (int i = 0; i < instance.getNumFields(); i++) {
+                if (instance.getFieldType(i) == Type.OBJ) {
+                    sum += instance.getObjectId(i);
+                }
+            }
+            touch(sum);
+        }
+
+        @Override
+        public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                 long[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void boolArrayDump(long objId, int stackTraceSerialNum, boolean[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void charArrayDump(long objId, int stackTraceSerialNum, char[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void floatArrayDump(long objId, int stackTraceSerialNum, float[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void doubleArrayDump(long objId, int stackTraceSerialNum, double[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void byteArrayDump(long objId, int stackTraceSerialNum, byte[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void shortArrayDump(long objId, int stackTraceSerialNum, short[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void intArrayDump(long objId, int stackTraceSerialNum, int[] elems) {
+            touch(objId + elems.length);
+        }
+
+        @Override
+        public void longArrayDump(long objId, int stackTraceSerialNum, long[] elems) {
+            touch(objId + elems.length);
+        }
+
+        private void touch(long value) {
+            records.increment();
+            checksum.add(value);
+        }
+    }
+
+}
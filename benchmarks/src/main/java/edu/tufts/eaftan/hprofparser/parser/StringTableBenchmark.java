@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares keeping the UTF-8 string records of a dump in a {@link StringTable} with decoding
+ * each into a {@code String} in a {@link LongObjectMap}, as handlers did before.  The strings
+ * are symbol-like names of about 30 ASCII bytes, read back to back from a memory-mapped file.
+ * <p>
+ * The benchmarks time filling a table; run with {@code -prof gc} for the allocation rates.  The
+ * footprint is measured outside JMH, by {@link #main}: it fills each kind of table and prints the
+ * heap and off-heap bytes per string that the table keeps alive after a full GC.
+ * <pre>
+ *   java -Xmx4g -cp target/benchmarks.jar \
+ *       edu.tufts.eaftan.hprofparser.parser.StringTableBenchmark [numStrings]
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StringTableBenchmark {
+
+    private static final String[] SEGMENTS = {
+        "java", "util", "concurrent", "lang", "reflect", "HashMap", "Node", "Entry", "String",
+        "Object", "get", "put", "value", "next", "hash", "key", "table", "Lock", "init", "run",
+        "Ljava/lang/Object;", "(I)V", "$1", "$Segment", "Impl", "Factory", "Builder", "sun", "io"
+    };
+
+    @Param({"1000000"})
+    public int numStrings;
+
+    private File file;
+    private int[] lengths;
+    private MappedFileInput in;
+
+    @Setup(Level.Trial)
+    public void writeStrings() throws IOException {
+        file = File.createTempFile("string-table-benchmark-", ".bin");
+        file.deleteOnExit();
+        lengths = new int[numStrings];
+        Random random = new Random(42);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < numStrings; i++) {
+                name.setLength(0);
+                int numSegments = 2 + random.nextInt(5);
+                for (int j = 0; j < numSegments; j++) {
+                    if (j > 0) {
+                        name.append(j == numSegments - 1 ? '.' : '/');
+                    }
+                    name.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+                }
+                name.append(i);    // every symbol distinct, as they are in a dump
+                byte[] bytes = name.toString().getBytes(StandardCharsets.UTF_8);
+                lengths[i] = bytes.length;
+                out.write(bytes);
+            }
+        }
+        in = new MappedFileInput(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteStrings() throws IOException {
+        in.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public StringTable fillStringTable() throws IOException {
+        return readTable();
+    }
+
+    @Benchmark
+    public LongObjectMap<String> fillStringMap() throws IOException {
+        return readMap();
+    }
+
+    public static void main(String[] args) throws IOException {
+        StringTableBenchmark benchmark = new StringTableBenchmark();
+        benchmark.numStrings = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        benchmark.writeStrings();
+        try {
+            for (int round = 0; round < 2; round++) {
+                // the first round warms up, so that its classes and code don't count
+                long heap = usedHeap();
+                long offHeap = usedDirectMemory();
+                StringTable table = benchmark.readTable();
+                benchmark.print(round, "StringTable", heap, offHeap);
+                Reference.reachabilityFence(table);
+                table = null;
+
+                heap = usedHeap();
+                offHeap = usedDirectMemory();
+                LongObjectMap<String> map = benchmark.readMap();
+                benchmark.print(round, "LongObjectMap<String>", heap, offHeap);
+                Reference.reachabilityFence(map);
+            }
+        } finally {
+            benchmark.deleteStrings();
+        }
+    }
+
+    private void print(int round, String kind, long heapBefore, long offHeapBefore) {
+        long heap = usedHeap() - heapBefore;
+        long offHeap = usedDirectMemory() - offHeapBefore;
+        if (round > 0) {
+            System.out.printf("%-22s %6.1f heap + %6.1f off-heap bytes per string%n", kind,
+                    (double) heap / numStrings, (double) offHeap / numStrings);
+        }
+    }
+
+    private StringTable readTable() throws IOException {
+        in.seek(0);
+        StringTable table = new StringTable();
+        for (int i = 0; i < numStrings; i++) {
+            table.read(id(i), in, lengths[i]);
+        }
+        return table;
+    }
+
+    private LongObjectMap<String> readMap() throws IOException {
+        in.seek(0);
+        LongObjectMap<String> map = new LongObjectMap<>();
+        for (int i = 0; i < numStrings; i++) {
+            map.put(id(i), in.readUtf8(lengths[i]));
+        }
+        return map;
+    }
+
+    private static long id(int i) {
+        return 0x10000 + 16L * i;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /* Direct buffers are freed by a cleaner thread after the GC, so wait for it to settle. */
+    private static long usedDirectMemory() {
+        long used = directMemory();
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long now = directMemory();
+            if (now == used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool
+                : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes synthetic heap dumps of a given shape, size and identifier size for the benchmarks.
+ * The dumps are deterministic, so runs can be compared.
+ * <p>
+ * Usage: {@code SyntheticHprof <file> <shape> <megabytes> [idSize]}
+ */
+public final class SyntheticHprof {
+
+    /** The kinds of heap to generate. */
+    public enum Shape {
+        /** Many instances of small classes, with some object arrays and short char arrays. */
+        SMALL_INSTANCES,
+        /** A few large primitive arrays of every element type. */
+        HUGE_PRIM_ARRAYS,
+        /** Instances of classes 16 levels deep, each level declaring its own fields. */
+        DEEP_HIERARCHY
+    }
+
+    /* Heap dump segments are closed once they reach this size, as the VM does at 1 GB. */
+    private static final int SEGMENT_SIZE = 64 << 20;
+
+    private static final Type[] FIELD_TYPES = {
+        Type.OBJ, Type.INT, Type.LONG, Type.OBJ, Type.BYTE, Type.CHAR, Type.DOUBLE, Type.SHORT,
+        Type.BOOL, Type.FLOAT
+    };
+
+    private static final Type[] PRIMITIVE_TYPES = {
+        Type.BOOL, Type.CHAR, Type.FLOAT, Type.DOUBLE, Type.BYTE, Type.SHORT, Type.INT, Type.LONG
+    };
+
+    private SyntheticHprof() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: SyntheticHprof <file> <shape> <megabytes> [idSize]");
+            System.exit(1);
+        }
+        int idSize = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        write(new File(args[0]), Shape.valueOf(args[1]), Long.parseLong(args[2]) << 20, idSize);
+    }
+
+    /**
+     * Writes a dump of at least the target size.
+     *
+     * @return the number of heap dump sub-records written
+     */
+    public static long write(File file, Shape shape, long targetBytes, int idSize)
+            throws IOException {
+        try (Writer w = new Writer(file, idSize)) {
+            long objClass = w.newClass("java/lang/Object", 0, new Type[0]);
+            switch (shape) {
+                case SMALL_INSTANCES: {
+                    long[] classes = new long[50];
+                    for (int i = 0; i < classes.length; i++) {
+                        classes[i] = w.newClass("bench/Small" + i, objClass,
+                                fieldTypes(1 + i % 6, i));
+                    }
+                    long arrayClass = w.newClass("[Ljava/lang/Object;", objClass, new Type[0]);
+                    long[] elems = new long[16];
+                    for (long n = 0; w.size() < targetBytes; n++) {
+                        long obj = w.instance(classes[(int) (n % classes.length)]);
+                        elems[(int) (n % elems.length)] = obj;
+                        if (n % 4 == 0) {
+                            w.primArray(Type.CHAR, 8 + (int) (n % 32));
+                        }
+                        if (n % 16 == 15) {
+                            w.objArray(arrayClass, elems);
+                        }
+                    }
+                    break;
+                }
+                case HUGE_PRIM_ARRAYS: {
+                    for (int n = 0; w.size() < targetBytes; n++) {
+                        Type type = PRIMITIVE_TYPES[n % PRIMITIVE_TYPES.length];
+                        w.primArray(type, (16 << 20) / type.sizeInBytes());
+                    }
+                    break;
+                }
+                case DEEP_HIERARCHY: {
+                    long[] leaves = new long[8];
+                    for (int c = 0; c < leaves.length; c++) {
+                        long superClass = objClass;
+                        for (int depth = 0; depth < 16; depth++) {
+                            superClass = w.newClass("bench/Deep" + c + "_" + depth, superClass,
+                                    fieldTypes(2, c + depth));
+                        }
+                        leaves[c] = superClass;
+                    }
+                    for (long n = 0; w.size() < targetBytes; n++) {
+                        w.instance(leaves[(int) (n % leaves.length)]);
+                    }
+                    break;
+                }
+            }
+            return w.numRecords;
+        }
+    }
+
+    private static Type[] fieldTypes(int count, int seed) {
+        Type[] types = new Type[count];
+        for (int i = 0; i < count; i++) {
+            types[i] = FIELD_TYPES[(seed + i) % FIELD_TYPES.length];
+        }
+        return types;
+    }
+
+    /**
+     * Writes the records of a dump.  Classes are declared with {@link #newClass}, which writes
+     * the string, load class, sticky class root and class dump records; objects are written into
+     * heap dump segments.  Ids are assigned in ascending order.
+     */
+    public static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final int idSize;
+        private final ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+        private final DataOutputStream segment = new DataOutputStream(segmentBytes);
+        private long fileSize;
+        private long lastRecordOffset;
+        private long nextId = 0x10000;
+        private int nextSerial = 1;
+        long numRecords;
+
+        // field types of each class, superclass fields last, in the order instances hold them
+        private final LongObjectMap<Type[]> classFields = new LongObjectMap<>();
+        private long lastObject;
+        private long counter;
+
+        public Writer(File file, int idSize) throws IOException {
+            if (idSize != 4 && idSize != 8) {
+                throw new IllegalArgumentException("Invalid identifier size " + idSize);
+            }
+            this.idSize = idSize;
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeBytes("JAVA PROFILE 1.0.2");
+            out.writeByte(0);
+            out.writeInt(idSize);
+            out.writeLong(0);    // dump time, fixed so that dumps are reproducible
+            fileSize = 19 + 4 + 8;
+        }
+
+        /** Returns the file offset of the last heap dump sub-record written, at its tag. */
+        public long getLastRecordOffset() {
+            return lastRecordOffset;
+        }
+
+        /** Returns the number of bytes written so far, including the open segment. */
+        public long size() {
+            return fileSize + (segmentBytes.size() > 0 ? 9 + segmentBytes.size() : 0);
+        }
+
+        /** Declares a class whose instances hold the given fields, after those of the super. */
+        public long newClass(String name, long superClassObjId, Type[] fields)
+                throws IOException {
+            long nameId = newId();
+            byte[] nameBytes = name.getBytes("UTF-8");
+            beginRecord(0x01, idSize + nameBytes.length);
+            writeId(out, nameId);
+            out.write(nameBytes);
+
+            long classObjId = newId();
+            beginRecord(0x02, 8 + 2 * idSize);
+            out.writeInt(nextSerial++);
+            writeId(out, classObjId);
+            out.writeInt(0);
+            writeId(out, nameId);
+
+            long[] fieldNameIds = new long[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fieldNameIds[i] = newId();
+                byte[] fieldName = ("f" + i).getBytes("UTF-8");
+                beginRecord(0x01, idSize + fieldName.length);
+                writeId(out, fieldNameIds[i]);
+                out.write(fieldName);
+            }
+
+            Type[] superFields = superClassObjId == 0 ? new Type[0]
+                    : classFields.get(superClassObjId);
+            Type[] allFields = new Type[fields.length + superFields.length];
+            System.arraycopy(fields, 0, allFields, 0, fields.length);
+            System.arraycopy(superFields, 0, allFields, fields.length, superFields.length);
+            classFields.put(classObjId, allFields);
+
+            rootStickyClass(classObjId);
+            classDump(classObjId, superClassObjId, instanceSize(allFields), fieldNameIds,
+                    fields);
+            return classObjId;
+        }
+
+        public void rootStickyClass(long classObjId) throws IOException {
+            beginSubRecord(0x05);
+            writeId(segment, classObjId);
+        }
+
+        public void classDump(long classObjId, long superClassObjId, int instanceSize,
+                              long[] fieldNameIds, Type[] fields) throws IOException {
+            beginSubRecord(0x20);
+            writeId(segment, classObjId);
+            segment.writeInt(0);
+            writeId(segment, superClassObjId);
+            for (int i = 0; i < 5; i++) {
+                writeId(segment, 0);    // loader, signers, protection domain, reserved
+            }
+            segment.writeInt(instanceSize);
+            segment.writeShort(0);      // constants
+            segment.writeShort(0);      // statics
+            segment.writeShort(fields.length);
+            for (int i = 0; i < fields.length; i++) {
+                writeId(segment, fieldNameIds[i]);
+                segment.writeByte(fields[i].hprofType());
+            }
+        }
+
+        /** Writes an instance of a class declared with newClass, and returns its id. */
+        public long instance(long classObjId) throws IOException {
+            long objId = newId();
+            Type[] fields = classFields.get(classObjId);
+            beginSubRecord(0x21);
+            writeId(segment, objId);
+            segment.writeInt(0);
+            writeId(segment, classObjId);
+            segment.writeInt(instanceSize(fields));
+            for (Type type : fields) {
+                long v = counter++;
+                switch (type) {
+                    case OBJ:
+                        writeId(segment, lastObject);
+                        break;
+                    case BOOL:
+                    case BYTE:
+                        segment.writeByte((int) v);
+                        break;
+                    case CHAR:
+                    case SHORT:
+                        segment.writeShort((int) v);
+                        break;
+                    case FLOAT:
+                        segment.writeFloat(v);
+                        break;
+                    case INT:
+                        segment.writeInt((int) v);
+                        break;
+                    case DOUBLE:
+                        segment.writeDouble(v);
+                        break;
+                    case LONG:
+                        segment.writeLong(v);
+                        break;
+                }
+            }
+            lastObject = objId;
+            return objId;
+        }
+
+        /** Writes an object array and returns its id. */
+        public long objArray(long arrayClassObjId, long[] elems) throws IOException {
+            long objId = newId();
+            beginSubRecord(0x22);
+            writeId(segment, objId);
+            segment.writeInt(0);
+            segment.writeInt(elems.length);
+            writeId(segment, arrayClassObjId);
+            for (long elem : elems) {
+                writeId(segment, elem);
+            }
+            return objId;
+        }
+
+        /** Writes a primitive array and returns its id. */
+        public long primArray(Type type, int length) throws IOException {
+            long objId = newId();
+            beginSubRecord(0x23);
+            writeId(segment, objId);
+            segment.writeInt(0);
+            segment.writeInt(length);
+            segment.writeByte(type.hprofType());
+            byte[] chunk = new byte[8192];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (byte) (i * 31);
+            }
+            long bytes = (long) length * type.sizeInBytes();
+            for (long done = 0; done < bytes; done += chunk.length) {
+                segment.write(chunk, 0, (int) Math.min(chunk.length, bytes - done));
+            }
+            return objId;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushSegment();
+                beginRecord(0x2c, 0);
+            } finally {
+                out.close();
+            }
+        }
+
+        private long newId() {
+            long id = nextId;
+            nextId += 16;
+            return id;
+        }
+
+        private int instanceSize(Type[] fields) {
+            int size = 0;
+            for (Type type : fields) {
+                size += type == Type.OBJ ? idSize : type.sizeInBytes();
+            }
+            return size;
+        }
+
+        private void beginRecord(int tag, int length) throws IOException {
+            if (tag != 0x1c) {
+                flushSegment();
+            }
+            out.writeByte(tag);
+            out.writeInt(0);
+            out.writeInt(length);
+            fileSize += 9 + length;
+        }
+
+        private void beginSubRecord(int tag) throws IOException {
+            if (segmentBytes.size() >= SEGMENT_SIZE) {
+                flushSegment();
+            }
+            lastRecordOffset = fileSize + 9 + segmentBytes.size();
+            segment.writeByte(tag);
+            numRecords++;
+        }
+
+        private void flushSegment() throws IOException {
+            if (segmentBytes.size() == 0) {
+                return;
+            }
+            beginRecord(0x1c, segmentBytes.size());
+            segmentBytes.writeTo(out);
+            segmentBytes.reset();
+        }
+
+        private void writeId(DataOutputStream dst, long id) throws IOException {
+            if (idSize == 4) {
+                dst.writeInt((int) id);
+            } else {
+                dst.writeLong(id);
+            }
+        }
+    }
+
+}
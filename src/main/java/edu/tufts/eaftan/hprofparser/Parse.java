@@ -14,50 +14,408 @@
  * limitations under the License.
  */
 
-/*
- * Copyright 2014 Edward Aftandilian. All Rights Reserved.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
 package edu.tufts.eaftan.hprofparser;
 
+import edu.tufts.eaftan.hprofparser.handler.ClassHistogramHandler;
+import edu.tufts.eaftan.hprofparser.handler.ColumnarExportHandler;
+import edu.tufts.eaftan.hprofparser.handler.GcRootCollector;
+import edu.tufts.eaftan.hprofparser.handler.GraphBuildingHandler;
+import edu.tufts.eaftan.hprofparser.handler.RecordHandler;
 import edu.tufts.eaftan.hprofparser.handler.SQLiteHandler;
+import edu.tufts.eaftan.hprofparser.handler.ThreadModel;
 import edu.tufts.eaftan.hprofparser.parser.HprofParser;
+import edu.tufts.eaftan.hprofparser.parser.ParserMetrics;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
 
+/**
+ * Command-line driver: parses a dump with one of the bundled handlers, or with any handler class
+ * that has a no-argument constructor, and writes what the handler produced.  Run it without
+ * arguments for the options.
+ */
 public class Parse {
 
+    private static final String USAGE = String.join("\n",
+            "Usage: Parse [options] <dump.hprof>",
+            "Options:",
+            "  --handler=<name>      sqlite (the default), columnar, histogram, roots, threads, or",
+            "                        the fully-qualified name of a RecordHandler class with a",
+            "                        no-argument constructor",
+            "  --output=<file>       the database for sqlite (default heapdump.db), the export for",
+            "                        columnar (required), or the report for histogram, roots and",
+            "                        threads (default standard output)",
+            "  --parallelism=<n>     parse heap dump segments on n threads (default 1); the",
+            "                        handler must be thread-safe",
+            "  --reader=mmap|stream  read the dump through memory mappings (the default) or",
+            "                        through a buffered stream",
+            "  --single-pass         read the dump once instead of twice; memory mappings only",
+            "  --batch-size=<n>      rows per batch for sqlite, rows per chunk for columnar",
+            "  --no-progress         don't print the progress line on standard error",
+            "  --metrics             keep record counts and timings, publish them over JMX, and",
+            "                        print them on standard error when done",
+            "  --help                print this message");
+
+    /* Handlers that can be selected by name. */
+    private enum HandlerName {
+        SQLITE(false, true),
+        COLUMNAR(false, true),
+        HISTOGRAM(false, false),
+        ROOTS(true, false),
+        THREADS(true, false);
+
+        final boolean threadSafe;
+        final boolean batched;    // takes --batch-size
+
+        HandlerName(boolean threadSafe, boolean batched) {
+            this.threadSafe = threadSafe;
+            this.batched = batched;
+        }
+
+        static HandlerName find(String name) {
+            for (HandlerName handlerName : values()) {
+                if (handlerName.name().equalsIgnoreCase(name)) {
+                    return handlerName;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The parsed command line.
+     */
+    static class Options {
+        File input;
+        String handlerClassName;
+        HandlerName handlerName = HandlerName.SQLITE;
+        File output;
+        int parallelism = 1;
+        boolean useMemoryMapping = true;
+        boolean singlePass;
+        int batchSize;    // 0 for the handler's default
+        boolean progress = true;
+        boolean metrics;
+        boolean help;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    if (options.input != null) {
+                        throw new IllegalArgumentException("More than one input file: " + arg);
+                    }
+                    options.input = new File(arg);
+                    continue;
+                }
+                int eq = arg.indexOf('=');
+                String name = eq < 0 ? arg : arg.substring(0, eq);
+                String value = eq < 0 ? null : arg.substring(eq + 1);
+                switch (name) {
+                    case "--handler":
+                        options.handlerName = HandlerName.find(requireValue(name, value));
+                        if (options.handlerName == null) {
+                            options.handlerClassName = value;
+                        }
+                        break;
+                    case "--output":
+                        options.output = new File(requireValue(name, value));
+                        break;
+                    case "--parallelism":
+                        options.parallelism = positiveInt(name, value);
+                        break;
+                    case "--reader":
+                        if ("mmap".equals(value)) {
+                            options.useMemoryMapping = true;
+                        } else if ("stream".equals(value)) {
+                            options.useMemoryMapping = false;
+                        } else {
+                            throw new IllegalArgumentException(
+                                    "--reader must be mmap or stream: " + arg);
+                        }
+                        break;
+                    case "--single-pass":
+                        options.singlePass = noValue(name, value);
+                        break;
+                    case "--batch-size":
+                        options.batchSize = positiveInt(name, value);
+                        break;
+                    case "--no-progress":
+                        options.progress = !noValue(name, value);
+                        break;
+                    case "--metrics":
+                        options.metrics = noValue(name, value);
+                        break;
+                    case "--help":
+                        options.help = noValue(name, value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (options.help) {
+                return options;
+            }
+            if (options.input == null) {
+                throw new IllegalArgumentException("No input file");
+            }
+            if (options.handlerName == HandlerName.COLUMNAR && options.output == null) {
+                throw new IllegalArgumentException("The columnar handler needs --output");
+            }
+            if (options.handlerName != null && !options.handlerName.threadSafe
+                    && options.parallelism > 1) {
+                throw new IllegalArgumentException("The " + options.handlerName.name()
+                        .toLowerCase(Locale.ROOT) + " handler can't be used with --parallelism");
+            }
+            if (options.batchSize > 0
+                    && (options.handlerName == null || !options.handlerName.batched)) {
+                throw new IllegalArgumentException(
+                        "--batch-size only applies to the sqlite and columnar handlers");
+            }
+            return options;
+        }
+
+        private static String requireValue(String name, String value) {
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException(name + " needs a value");
+            }
+            return value;
+        }
+
+        private static boolean noValue(String name, String value) {
+            if (value != null) {
+                throw new IllegalArgumentException(name + " takes no value");
+            }
+            return true;
+        }
+
+        private static int positiveInt(String name, String value) {
+            int n;
+            try {
+                n = Integer.parseInt(requireValue(name, value));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " must be a number: " + value);
+            }
+            if (n < 1) {
+                throw new IllegalArgumentException(name + " must be at least 1: " + value);
+            }
+            return n;
+        }
+    }
+
     public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.println(USAGE);
+            return;
+        }
 
-        SQLiteHandler handler = new SQLiteHandler();
+        try {
+            run(options);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to parse " + options.input + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    static void run(Options options) throws IOException {
+        RecordHandler handler = createHandler(options);
         HprofParser parser = new HprofParser(handler);
+        parser.setParallelism(options.parallelism);
+        parser.setUseMemoryMapping(options.useMemoryMapping);
+        parser.setSinglePass(options.singlePass);
 
+        ParserMetrics metrics = null;
+        if (options.metrics) {
+            // they can be watched with a JMX client while the parse runs
+            metrics = new ParserMetrics();
+            metrics.registerMBean(options.input.getName());
+            parser.setMetrics(metrics);
+        }
+        ProgressReporter progress = options.progress ? new ProgressReporter(parser) : null;
         try {
-            parser.parse(new File("/home/sagen/tlx/repos/hprof-parser/heapdump.hprof"));
-        } catch (IOException e) {
-            System.err.println(e);
+            if (progress != null) {
+                progress.start();
+            }
+            parser.parse(options.input);
+        } finally {
+            if (progress != null) {
+                progress.stop();
+            }
+            if (handler instanceof SQLiteHandler) {
+                ((SQLiteHandler) handler).close();
+            }
+            if (handler instanceof GraphBuildingHandler) {
+                ((GraphBuildingHandler) handler).close();
+            }
+            if (metrics != null) {
+                metrics.unregisterMBean();
+            }
+        }
+        if (metrics != null) {
+            metrics.snapshot().print(System.err);
         }
 
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        if (options.handlerName == HandlerName.HISTOGRAM
+                || options.handlerName == HandlerName.ROOTS
+                || options.handlerName == HandlerName.THREADS) {
+            if (options.output == null) {
+                printReport(handler, options.handlerName, System.out);
+                System.out.flush();
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(options.output))) {
+                    printReport(handler, options.handlerName, out);
+                }
+            }
+        }
+    }
+
+    private static RecordHandler createHandler(Options options) throws IOException {
+        if (options.handlerName == null) {
+            try {
+                return Class.forName(options.handlerClassName)
+                        .asSubclass(RecordHandler.class)
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalArgumentException(
+                        "Can't create handler " + options.handlerClassName, e);
+            }
+        }
+        switch (options.handlerName) {
+            case SQLITE:
+                SQLiteHandler.Settings settings = new SQLiteHandler.Settings();
+                if (options.output != null) {
+                    settings.databaseFile = options.output.getPath();
+                }
+                if (options.batchSize > 0) {
+                    settings.batchSize = options.batchSize;
+                }
+                return new SQLiteHandler(settings);
+            case COLUMNAR:
+                return new ColumnarExportHandler(options.output, options.batchSize > 0
+                        ? options.batchSize : ColumnarExportHandler.DEFAULT_CHUNK_ROWS);
+            case HISTOGRAM:
+                return new ClassHistogramHandler();
+            case ROOTS:
+                return new GcRootCollector();
+            case THREADS:
+                return new ThreadModel();
+            default:
+                throw new AssertionError(options.handlerName);
+        }
+    }
+
+    private static void printReport(RecordHandler handler, HandlerName handlerName,
+                                    PrintStream out) {
+        switch (handlerName) {
+            case HISTOGRAM:
+                ((ClassHistogramHandler) handler).printHistogram(out);
+                break;
+            case ROOTS:
+                GcRootCollector roots = (GcRootCollector) handler;
+                for (GcRootCollector.Kind kind : GcRootCollector.Kind.values()) {
+                    out.printf("%-14s %,12d%n", kind, roots.getRoots(kind).length);
+                }
+                out.printf("%-14s %,12d%n", "distinct", roots.getAllRoots().length);
+                break;
+            case THREADS:
+                ((ThreadModel) handler).printThreads(out, null);
+                break;
+            default:
+                throw new AssertionError(handlerName);
+        }
+    }
+
+    /**
+     * Rewrites a line on standard error once a second with the parser's progress: how far it is,
+     * the average rates in bytes and records, and an estimate of the time left.
+     */
+    private static class ProgressReporter {
+        private final HprofParser parser;
+        private final Thread thread;
+        private long startNanos;
+
+        ProgressReporter(HprofParser parser) {
+            this.parser = parser;
+            this.thread = new Thread(this::run, "Parse progress");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            thread.start();
+        }
+
+        void stop() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.err.println();
         }
 
-        handler.close();
+        private void run() {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    print();
+                    return;
+                }
+                print();
+            }
+        }
+
+        private void print() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long bytes = parser.getBytesProcessed();
+            long records = parser.getRecordsProcessed();
+            long total = parser.getBytesToProcess();
+            double bytesPerSecond = bytes / seconds;
+
+            StringBuilder line = new StringBuilder("\r");
+            if (total > 0) {
+                line.append(String.format("%5.1f%%  ", 100.0 * Math.min(bytes, total) / total));
+            }
+            line.append(String.format("%s  %s/s  %,.0f records/s  %s elapsed",
+                    formatBytes(bytes), formatBytes((long) bytesPerSecond), records / seconds,
+                    formatDuration(seconds)));
+            if (total > bytes && bytesPerSecond > 0) {
+                line.append("  ETA ").append(formatDuration((total - bytes) / bytesPerSecond));
+            }
+            // pad over the end of a longer previous line
+            line.append("    ");
+            System.err.print(line);
+            System.err.flush();
+        }
+
+        private static String formatBytes(long bytes) {
+            if (bytes < 1024 * 1024) {
+                return String.format("%.1f KB", bytes / 1024.0);
+            } else if (bytes < 1024L * 1024 * 1024) {
+                return String.format("%.1f MB", bytes / (1024.0 * 1024));
+            }
+            return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+        }
+
+        private static String formatDuration(double seconds) {
+            long s = (long) seconds;
+            return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+        }
     }
 
 }
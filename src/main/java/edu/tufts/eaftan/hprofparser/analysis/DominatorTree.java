@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.analysis;
+
+import edu.tufts.eaftan.hprofparser.parser.ObjectIndex;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.util.Arrays;
+
+/**
+ * The dominator tree of a {@link ReferenceGraph}, and the retained sizes that follow from it.
+ * Object A dominates object B if every path from a GC root to B goes through A; the retained
+ * size of A is the total shallow size of the objects it dominates, itself included, which is
+ * what the garbage collector would free if A became unreachable.
+ * <p>
+ * The tree is computed with the Lengauer-Tarjan algorithm, with path compression, from a
+ * virtual root that refers to every GC root of the graph.  Every step is iterative, so deep
+ * object chains cannot overflow the stack, and all state is held in {@code int[]} and
+ * {@code long[]} arrays: about 60 bytes per object while computing, plus 4 bytes per reference
+ * if the graph has no incoming references.  Objects that can't be reached from a GC root have
+ * no dominator and retain nothing.
+ * <p>
+ * The shallow sizes are those of the graph, which don't include object headers.
+ */
+public final class DominatorTree {
+
+    /** Immediate dominator of objects that are only dominated by the virtual root. */
+    public static final int ROOT = -1;
+
+    /** Immediate dominator of objects that can't be reached from a GC root. */
+    public static final int UNREACHABLE = -2;
+
+    /* hprof basic types are 2 and 4 to 11 */
+    private static final int NUM_HPROF_TYPES = 12;
+
+    private final ReferenceGraph graph;
+    private final int[] idoms;
+    private final long[] retainedSizes;
+    private final long[] groupRetainedSizes;    // see group()
+    private final int numReachable;
+
+    private DominatorTree(ReferenceGraph graph, int[] idoms, long[] retainedSizes,
+                          long[] groupRetainedSizes, int numReachable) {
+        this.graph = graph;
+        this.idoms = idoms;
+        this.retainedSizes = retainedSizes;
+        this.groupRetainedSizes = groupRetainedSizes;
+        this.numReachable = numReachable;
+    }
+
+    public ReferenceGraph getGraph() {
+        return graph;
+    }
+
+    /** Returns the number of objects reachable from a GC root. */
+    public int getNumReachable() {
+        return numReachable;
+    }
+
+    /**
+     * Returns the immediate dominator of an object: a node, {@link #ROOT} or
+     * {@link #UNREACHABLE}.
+     */
+    public int getImmediateDominator(int node) {
+        return idoms[node];
+    }
+
+    /** Returns the retained size of an object, or 0 if it can't be reached. */
+    public long getRetainedSize(int node) {
+        return retainedSizes[node];
+    }
+
+    /** Returns the total shallow size of the objects reachable from a GC root. */
+    public long getReachableSize() {
+        long total = 0;
+        for (int node = 0; node < idoms.length; node++) {
+            if (idoms[node] == ROOT) {
+                total += retainedSizes[node];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the retained size of all the instances of a class together, or of all the object
+     * arrays of an array class.  Objects dominated by several of them are only counted once.
+     */
+    public long getClassRetainedSize(long classObjId) {
+        int classIndex = graph.classIndexes.get(classObjId);
+        return classIndex < 0 ? 0 : groupRetainedSizes[classIndex];
+    }
+
+    /** Returns the retained size of all the primitive arrays of an element type together. */
+    public long getPrimitiveArrayRetainedSize(Type elemType) {
+        return groupRetainedSizes[graph.classObjIds.length + elemType.hprofType()];
+    }
+
+    /** Computes the dominator tree of a graph. */
+    public static DominatorTree compute(ReferenceGraph graph) {
+        int n = graph.size();
+
+        // Objects are numbered 1..count in depth-first preorder from the virtual root, which is 1;
+        // 0 means unvisited in dfn and "none" in the arrays indexed by number.
+        int[] dfn = new int[n + 1];
+        int[] vertex = new int[n + 2];
+        int[] parent = new int[n + 2];
+        int[] scratch = new int[n + 2];
+        int count = depthFirstSearch(graph, dfn, vertex, parent, scratch);
+
+        int[] inOffsets = graph.inOffsets;
+        int[] inSources = graph.inSources;
+        if (inOffsets == null) {
+            inOffsets = new int[n + 1];
+            inSources = reverse(graph, inOffsets);
+        }
+
+        int[] semi = new int[count + 1];
+        int[] label = new int[count + 1];
+        int[] ancestor = new int[count + 1];
+        int[] idom = new int[count + 1];
+        int[] bucketHead = new int[count + 1];
+        int[] bucketNext = scratch;    // the search is done with it
+        int[] stack = new int[count + 1];
+        for (int w = 1; w <= count; w++) {
+            semi[w] = w;
+            label[w] = w;
+        }
+        boolean[] isRoot = new boolean[n];
+        for (int i = 0; i < graph.getNumRoots(); i++) {
+            isRoot[graph.getRoot(i)] = true;
+        }
+
+        for (int w = count; w >= 2; w--) {
+            int node = vertex[w];
+            // semidominator: the smallest semi of the ancestors of w's predecessors
+            if (isRoot[node]) {
+                semi[w] = 1;
+            }
+            for (int e = inOffsets[node]; e < inOffsets[node + 1]; e++) {
+                int v = dfn[inSources[e]];
+                if (v != 0) {
+                    int u = eval(v, ancestor, label, semi, stack);
+                    if (semi[u] < semi[w]) {
+                        semi[w] = semi[u];
+                    }
+                }
+            }
+            bucketNext[w] = bucketHead[semi[w]];
+            bucketHead[semi[w]] = w;
+            int p = parent[w];
+            ancestor[w] = p;
+
+            for (int v = bucketHead[p]; v != 0; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, stack);
+                idom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucketHead[p] = 0;
+        }
+        for (int w = 2; w <= count; w++) {
+            if (idom[w] != semi[w]) {
+                idom[w] = idom[idom[w]];
+            }
+        }
+
+        // A dominator precedes the objects it dominates in preorder, so one backwards sweep adds
+        // every retained size to its dominator's.
+        long[] retained = new long[count + 1];
+        for (int w = count; w >= 2; w--) {
+            retained[w] += graph.sizes[vertex[w]];
+            retained[idom[w]] += retained[w];
+        }
+
+        int[] idoms = new int[n];
+        long[] retainedSizes = new long[n];
+        Arrays.fill(idoms, UNREACHABLE);
+        for (int w = 2; w <= count; w++) {
+            idoms[vertex[w]] = idom[w] == 1 ? ROOT : vertex[idom[w]];
+            retainedSizes[vertex[w]] = retained[w];
+        }
+
+        long[] groupRetainedSizes = groupRetainedSizes(graph, count, vertex, idom, retained,
+                bucketHead, stack);
+        return new DominatorTree(graph, idoms, retainedSizes, groupRetainedSizes, count - 1);
+    }
+
+    /*
+     * Numbers the objects reachable from the virtual root in preorder, and records each one's
+     * parent in the search tree.  Returns the number of objects numbered, the virtual root
+     * included.
+     */
+    private static int depthFirstSearch(ReferenceGraph graph, int[] dfn, int[] vertex,
+                                        int[] parent, int[] nextEdge) {
+        int n = graph.size();
+        int[] offsets = graph.outOffsets;
+        int[] targets = graph.outTargets;
+        int[] stack = new int[n + 1];    // preorder numbers
+
+        int count = 1;
+        dfn[n] = 1;
+        vertex[1] = n;
+        int depth = 0;
+        stack[depth++] = 1;
+        nextEdge[1] = 0;                // the virtual root's edges are the GC roots
+        while (depth > 0) {
+            int w = stack[depth - 1];
+            int node = vertex[w];
+            int next;
+            if (node == n) {
+                next = nextEdge[w] < graph.getNumRoots() ? graph.getRoot(nextEdge[w]++) : -1;
+            } else {
+                next = nextEdge[w] < offsets[node + 1] ? targets[nextEdge[w]++] : -1;
+            }
+            if (next < 0) {
+                depth--;
+            } else if (dfn[next] == 0) {
+                int v = ++count;
+                dfn[next] = v;
+                vertex[v] = next;
+                parent[v] = w;
+                nextEdge[v] = offsets[next];
+                stack[depth++] = v;
+            }
+        }
+        return count;
+    }
+
+    /* Builds the incoming references of a graph that doesn't have them, by counting sort. */
+    private static int[] reverse(ReferenceGraph graph, int[] inOffsets) {
+        int n = graph.size();
+        int[] outOffsets = graph.outOffsets;
+        int[] outTargets = graph.outTargets;
+        for (int target : outTargets) {
+            inOffsets[target + 1]++;
+        }
+        for (int node = 0; node < n; node++) {
+            inOffsets[node + 1] += inOffsets[node];
+        }
+        int[] inSources = new int[outTargets.length];
+        int[] next = Arrays.copyOf(inOffsets, n);
+        for (int node = 0; node < n; node++) {
+            for (int e = outOffsets[node]; e < outOffsets[node + 1]; e++) {
+                inSources[next[outTargets[e]]++] = node;
+            }
+        }
+        return inSources;
+    }
+
+    /*
+     * Returns the vertex with the smallest semidominator on the path from v up to the root of its
+     * tree in the forest linked so far, excluding that root, compressing the path on the way.
+     */
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] stack) {
+        if (ancestor[v] == 0) {
+            return v;
+        }
+        // collect the path whose ancestors will change, then fix it up from the top down
+        int depth = 0;
+        for (int u = v; ancestor[ancestor[u]] != 0; u = ancestor[u]) {
+            stack[depth++] = u;
+        }
+        while (depth > 0) {
+            int u = stack[--depth];
+            int a = ancestor[u];
+            if (semi[label[a]] < semi[label[u]]) {
+                label[u] = label[a];
+            }
+            ancestor[u] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    /*
+     * Objects are grouped by class for instances and object arrays, and by element type for
+     * primitive arrays; class objects are in no group.
+     */
+    private static int group(ReferenceGraph graph, int node) {
+        switch (graph.tags[node]) {
+            case ObjectIndex.INSTANCE_DUMP:
+            case ObjectIndex.OBJ_ARRAY_DUMP:
+                return graph.classes[node];
+            case ObjectIndex.PRIM_ARRAY_DUMP:
+                return graph.classObjIds.length + graph.classes[node];
+            default:
+                return -1;
+        }
+    }
+
+    /*
+     * Sums the retained sizes of the objects of each group that aren't dominated by another
+     * object of the same group, walking the dominator tree depth first while counting the
+     * objects of each group on the current path.
+     */
+    private static long[] groupRetainedSizes(ReferenceGraph graph, int count, int[] vertex,
+                                             int[] idom, long[] retained, int[] childOffsets,
+                                             int[] children) {
+        // children of each vertex, by counting sort on the dominator
+        Arrays.fill(childOffsets, 0);
+        for (int w = 2; w <= count; w++) {
+            childOffsets[idom[w]]++;
+        }
+        int sum = 0;
+        for (int w = 1; w <= count; w++) {
+            int c = childOffsets[w];
+            childOffsets[w] = sum;
+            sum += c;
+        }
+        int[] next = Arrays.copyOf(childOffsets, count + 1);
+        for (int w = 2; w <= count; w++) {
+            children[next[idom[w]]++] = w;
+        }
+
+        long[] groupRetained = new long[graph.classObjIds.length + NUM_HPROF_TYPES];
+        int[] onPath = new int[groupRetained.length];
+        // the stack holds vertexes; a vertex is pushed again, negated, to be left after its
+        // children
+        int[] stack = new int[2 * count];
+        int depth = 0;
+        stack[depth++] = 1;
+        while (depth > 0) {
+            int w = stack[--depth];
+            if (w < 0) {
+                int group = group(graph, vertex[-w]);
+                if (group >= 0) {
+                    onPath[group]--;
+                }
+                continue;
+            }
+            if (w != 1) {
+                int group = group(graph, vertex[w]);
+                if (group >= 0) {
+                    if (onPath[group] == 0) {
+                        groupRetained[group] += retained[w];
+                    }
+                    onPath[group]++;
+                    stack[depth++] = -w;
+                }
+            }
+            int end = w == count ? sum : childOffsets[w + 1];
+            for (int i = childOffsets[w]; i < end; i++) {
+                stack[depth++] = children[i];
+            }
+        }
+        return groupRetained;
+    }
+
+}
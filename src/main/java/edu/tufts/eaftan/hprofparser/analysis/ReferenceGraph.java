@@ -0,0 +1,563 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.analysis;
+
+import edu.tufts.eaftan.hprofparser.parser.HprofParserException;
+import edu.tufts.eaftan.hprofparser.parser.LongIntMap;
+import edu.tufts.eaftan.hprofparser.parser.ObjectIndex;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The objects of a heap dump and the references between them, held in primitive arrays.  Objects
+ * are numbered densely from 0 to {@link #size} - 1 in the order they were added, and their
+ * outgoing references are stored in compressed sparse row form: the targets of all nodes in one
+ * {@code int[]}, and for each node the offset of its first target in another.  The incoming
+ * references can be stored the same way.  The GC roots are kept as a sorted list of nodes.
+ * Object ids are found by binary search in a list of the nodes sorted by id.
+ * <p>
+ * Each object costs 25 bytes: 8 for its id, 13 for its tag, class, size and first reference,
+ * and 4 in the sorted list.  Each reference costs 4 bytes, or 8 with incoming references, and a
+ * graph holds fewer than 2^31 references.  A dump of 300 million objects with four references
+ * each needs about 12 GB, so such a dump does not fit in a few GB, and at eight references it
+ * would need more than 2^31 of them.  Building the graph takes up to 4 bytes more per object
+ * while the nodes are sorted by id, and the builder's arrays are trimmed to size one at a time.
+ * Use {@code GraphBuildingHandler} to build one from a dump.  A graph is immutable and can be
+ * read from several threads at once.
+ */
+public final class ReferenceGraph {
+
+    final int idSize;
+    final long[] objIds;
+    final int[] byId;            // the nodes sorted by object id
+    final byte[] tags;
+    final int[] classes;         // class dictionary index, elem type of primitive arrays, or -1
+    final int[] sizes;
+    final long[] classObjIds;    // the class dictionary
+    final LongIntMap classIndexes;
+    final int[] outOffsets;      // size() + 1 entries
+    final int[] outTargets;
+    final int[] inOffsets;       // null without incoming references
+    final int[] inSources;
+    final int[] roots;
+    final long numUnresolved;
+
+    /* Takes over the builder's arrays, which build() has trimmed to size. */
+    private ReferenceGraph(Builder b, int[] byId, int[] outTargets, int[] inOffsets,
+                           int[] inSources, int[] roots, long numUnresolved) {
+        this.idSize = b.idSize;
+        this.objIds = b.objIds;
+        this.byId = byId;
+        this.tags = b.tags;
+        this.classes = b.classes;
+        this.sizes = b.sizes;
+        this.classObjIds = Arrays.copyOf(b.classObjIds, b.numClasses);
+        this.classIndexes = b.classIndexes;
+        this.outOffsets = b.outOffsets;
+        this.outTargets = outTargets;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.roots = roots;
+        this.numUnresolved = numUnresolved;
+    }
+
+    /** Returns the number of objects. */
+    public int size() {
+        return objIds.length;
+    }
+
+    /** Returns the number of references between objects of the graph. */
+    public int getNumEdges() {
+        return outTargets.length;
+    }
+
+    /**
+     * Returns the number of references to objects that are not in the dump.  They are dropped
+     * from the graph.
+     */
+    public long getNumUnresolvedReferences() {
+        return numUnresolved;
+    }
+
+    /** Returns the number of distinct objects that are GC roots. */
+    public int getNumRoots() {
+        return roots.length;
+    }
+
+    /** Returns the i-th GC root, in node order. */
+    public int getRoot(int i) {
+        return roots[i];
+    }
+
+    /** Returns the identifier size of the dump the graph was built from. */
+    public int getIdSize() {
+        return idSize;
+    }
+
+    /** Returns the node of an object, or -1 if the object is not in the graph. */
+    public int indexOf(long objId) {
+        return find(objIds, byId, objId);
+    }
+
+    private static int find(long[] objIds, int[] byId, long objId) {
+        int lo = 0;
+        int hi = byId.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = objIds[byId[mid]];
+            if (midId < objId) {
+                lo = mid + 1;
+            } else if (midId > objId) {
+                hi = mid - 1;
+            } else {
+                return byId[mid];
+            }
+        }
+        return -1;
+    }
+
+    public long getObjId(int node) {
+        return objIds[node];
+    }
+
+    /** Returns the tag of the object's record: one of the record tag constants of ObjectIndex. */
+    public byte getRecordTag(int node) {
+        return tags[node];
+    }
+
+    /** Returns the class of an instance or object array, or 0 for classes and primitive arrays. */
+    public long getClassObjId(int node) {
+        byte tag = tags[node];
+        if (tag == ObjectIndex.INSTANCE_DUMP || tag == ObjectIndex.OBJ_ARRAY_DUMP) {
+            return classObjIds[classes[node]];
+        }
+        return 0;
+    }
+
+    /** Returns the element type of a primitive array, or null for other objects. */
+    public Type getElementType(int node) {
+        return tags[node] == ObjectIndex.PRIM_ARRAY_DUMP
+                ? Type.hprofTypeToEnum((byte) classes[node]) : null;
+    }
+
+    /**
+     * Returns the size of the object's data as dumped, without the VM's object header: the field
+     * data of an instance, the elements of an array, or the static fields of a class.  Capped at
+     * {@code Integer.MAX_VALUE}.
+     */
+    public int getShallowSize(int node) {
+        return sizes[node];
+    }
+
+    public int getOutDegree(int node) {
+        return outOffsets[node + 1] - outOffsets[node];
+    }
+
+    /** Returns the i-th object the node refers to, in the order the references were dumped. */
+    public int getOutEdge(int node, int i) {
+        return outTargets[outOffsets[node] + i];
+    }
+
+    /** Returns whether incoming references were stored. */
+    public boolean hasInEdges() {
+        return inOffsets != null;
+    }
+
+    public int getInDegree(int node) {
+        checkInEdges();
+        return inOffsets[node + 1] - inOffsets[node];
+    }
+
+    /** Returns the i-th object that refers to the node, in node order. */
+    public int getInEdge(int node, int i) {
+        checkInEdges();
+        return inSources[inOffsets[node] + i];
+    }
+
+    private void checkInEdges() {
+        if (inOffsets == null) {
+            throw new IllegalStateException("Graph was built without incoming references");
+        }
+    }
+
+    /**
+     * Collects objects and their references.  Each reference belongs to the object added last,
+     * so an object's references must be added right after it.  References may point to objects
+     * that have not been added yet; they are resolved by {@link #build}.  Until then their ids
+     * are written to a temporary file, 8 bytes each, so the heap only holds the objects.
+     * Objects dumped twice are reported by {@link #build} as well.  {@link #build} deletes the
+     * file; close the builder instead if the graph won't be built, for instance because the
+     * parse failed.  Not thread-safe.
+     */
+    public static final class Builder implements AutoCloseable {
+
+        private static final int INITIAL_SIZE = 1024;
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+        private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+        private final int idSize;
+        private final boolean inEdges;
+
+        private long[] objIds = new long[INITIAL_SIZE];
+        private byte[] tags = new byte[INITIAL_SIZE];
+        private int[] classes = new int[INITIAL_SIZE];
+        private int[] sizes = new int[INITIAL_SIZE];
+        private int[] outOffsets = new int[INITIAL_SIZE + 1];
+        private int numNodes;
+
+        private final LongIntMap classIndexes = new LongIntMap();
+        private long[] classObjIds = new long[INITIAL_SIZE];
+        private int numClasses;
+
+        private final FileChannel spill;    // the target ids of the references, in order
+        private final ByteBuffer spillBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+        private long spillLength;
+        private int numEdges;
+
+        private long[] rootIds = new long[INITIAL_SIZE];
+        private int numRootIds;
+
+        private boolean built;
+
+        /**
+         * @param idSize the identifier size of the dump
+         * @param inEdges whether to store incoming references as well
+         */
+        public Builder(int idSize, boolean inEdges) {
+            this.idSize = idSize;
+            this.inEdges = inEdges;
+            try {
+                Path spillFile = Files.createTempFile("hprof-graph", ".refs");
+                spill = FileChannel.open(spillFile, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create the reference spill file", e);
+            }
+        }
+
+        /**
+         * @param staticsSize the size of the class's static field values
+         */
+        public int addClass(long classObjId, int staticsSize) {
+            return addNode(classObjId, ObjectIndex.CLASS_DUMP, -1, staticsSize);
+        }
+
+        public int addInstance(long objId, long classObjId, int fieldBytes) {
+            return addNode(objId, ObjectIndex.INSTANCE_DUMP, classIndex(classObjId), fieldBytes);
+        }
+
+        public int addObjectArray(long objId, long arrayClassObjId, int length) {
+            return addNode(objId, ObjectIndex.OBJ_ARRAY_DUMP, classIndex(arrayClassObjId),
+                    cap((long) length * idSize));
+        }
+
+        public int addPrimitiveArray(long objId, Type elemType, int length) {
+            return addNode(objId, ObjectIndex.PRIM_ARRAY_DUMP, elemType.hprofType(),
+                    cap((long) length * elemType.sizeInBytes()));
+        }
+
+        /** Adds a reference from the object added last.  Null references are ignored. */
+        public void addReference(long toObjId) {
+            if (toObjId == 0) {
+                return;
+            }
+            if (numNodes == 0) {
+                throw new IllegalStateException("No object to add the reference to");
+            }
+            if (numEdges == MAX_ARRAY_SIZE) {
+                throw new IllegalStateException("Too many references for a ReferenceGraph");
+            }
+            if (!spillBuffer.hasRemaining()) {
+                writeSpill();
+            }
+            spillBuffer.putLong(toObjId);
+            numEdges++;
+            outOffsets[numNodes] = numEdges;
+        }
+
+        /**
+         * Adds a GC root.  An object may be added as a root several times, and before or after
+         * the object itself.
+         */
+        public void addRoot(long objId) {
+            checkNotBuilt();
+            if (numRootIds == rootIds.length) {
+                if (numRootIds == MAX_ARRAY_SIZE) {
+                    throw new IllegalStateException("Too many roots for a ReferenceGraph");
+                }
+                rootIds = Arrays.copyOf(rootIds, grow(numRootIds));
+            }
+            rootIds[numRootIds++] = objId;
+        }
+
+        /**
+         * Discards the objects added so far and deletes the temporary file.  The builder can't
+         * be used afterwards.  Does nothing once the graph has been built.
+         */
+        @Override
+        public void close() {
+            built = true;
+            try {
+                spill.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to close the reference spill file", e);
+            }
+        }
+
+        /**
+         * Resolves the references and returns the graph.  The builder can't be used afterwards.
+         */
+        public ReferenceGraph build() {
+            checkNotBuilt();
+            built = true;
+
+            // the graph takes over these arrays, trimmed one at a time to keep the peak low
+            objIds = trim(objIds, numNodes);
+            tags = trim(tags, numNodes);
+            classes = trim(classes, numNodes);
+            sizes = trim(sizes, numNodes);
+
+            // resolve target ids to nodes, dropping the ones that aren't in the dump
+            int[] byId;
+            int[] scratch;
+            int[] outTargets;
+            int kept = 0;
+            try (FileChannel in = spill) {
+                byId = new int[numNodes];
+                scratch = sortById(byId);
+                if (!inEdges) {
+                    scratch = null;
+                }
+                outTargets = new int[numEdges];
+                writeSpill();
+                ByteBuffer buf = spillBuffer;
+                buf.flip();
+                long position = 0;
+                int start = 0;
+                for (int node = 0; node < numNodes; node++) {
+                    int end = outOffsets[node + 1];
+                    outOffsets[node] = kept;
+                    for (int e = start; e < end; e++) {
+                        if (!buf.hasRemaining()) {
+                            position += readSpill(in, buf, position);
+                        }
+                        int target = find(objIds, byId, buf.getLong());
+                        if (target >= 0) {
+                            outTargets[kept++] = target;
+                        }
+                    }
+                    start = end;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read back the spilled references", e);
+            }
+            outOffsets = trim(outOffsets, numNodes + 1);
+            outOffsets[numNodes] = kept;
+            long numUnresolved = numEdges - kept;
+            if (kept < outTargets.length) {
+                outTargets = Arrays.copyOf(outTargets, kept);
+            }
+
+            int[] inOffsets = null;
+            int[] inSources = null;
+            if (inEdges) {
+                // counting sort of the references by target
+                inOffsets = new int[numNodes + 1];
+                for (int target : outTargets) {
+                    inOffsets[target + 1]++;
+                }
+                for (int node = 0; node < numNodes; node++) {
+                    inOffsets[node + 1] += inOffsets[node];
+                }
+                inSources = new int[kept];
+                int[] next = scratch != null ? scratch : new int[numNodes];
+                System.arraycopy(inOffsets, 0, next, 0, numNodes);
+                for (int node = 0; node < numNodes; node++) {
+                    for (int e = outOffsets[node]; e < outOffsets[node + 1]; e++) {
+                        inSources[next[outTargets[e]]++] = node;
+                    }
+                }
+            }
+
+            // roots of objects that aren't in the dump are dropped as well
+            BitSet rootSet = new BitSet(numNodes);
+            for (int i = 0; i < numRootIds; i++) {
+                int node = find(objIds, byId, rootIds[i]);
+                if (node >= 0) {
+                    rootSet.set(node);
+                }
+            }
+            rootIds = null;
+            int[] roots = rootSet.stream().toArray();
+
+            return new ReferenceGraph(this, byId, outTargets, inOffsets, inSources, roots,
+                    numUnresolved);
+        }
+
+        /*
+         * Fills byId with the nodes sorted by object id, and rejects objects dumped twice.
+         * Objects within a heap dump segment are usually already in address order, so that case
+         * is checked first, and runs that are already in order are not merged.  Returns the
+         * scratch array the sort used, which is free for reuse, or null if none was needed.
+         */
+        private int[] sortById(int[] byId) {
+            int n = numNodes;
+            boolean sorted = true;
+            for (int i = 0; i < n; i++) {
+                byId[i] = i;
+                sorted &= i == 0 || objIds[i - 1] <= objIds[i];
+            }
+            int[] scratch = null;
+            if (!sorted) {
+                scratch = new int[n];
+                System.arraycopy(byId, 0, scratch, 0, n);
+                mergeSort(objIds, scratch, byId, 0, n);
+            }
+            for (int i = 1; i < n; i++) {
+                long objId = objIds[byId[i]];
+                if (objId == objIds[byId[i - 1]]) {
+                    throw new HprofParserException(
+                            String.format("Object 0x%x dumped twice", objId));
+                }
+            }
+            return scratch;
+        }
+
+        /* Sorts dest[lo, hi) by key; src holds the same nodes on entry and is overwritten. */
+        private static void mergeSort(long[] keys, int[] src, int[] dest, int lo, int hi) {
+            if (hi - lo < 8) {
+                for (int i = lo + 1; i < hi; i++) {
+                    for (int j = i; j > lo && keys[dest[j - 1]] > keys[dest[j]]; j--) {
+                        int t = dest[j];
+                        dest[j] = dest[j - 1];
+                        dest[j - 1] = t;
+                    }
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            mergeSort(keys, dest, src, lo, mid);
+            mergeSort(keys, dest, src, mid, hi);
+            if (keys[src[mid - 1]] <= keys[src[mid]]) {
+                System.arraycopy(src, lo, dest, lo, hi - lo);
+                return;
+            }
+            for (int i = lo, p = lo, q = mid; i < hi; i++) {
+                if (q >= hi || p < mid && keys[src[p]] <= keys[src[q]]) {
+                    dest[i] = src[p++];
+                } else {
+                    dest[i] = src[q++];
+                }
+            }
+        }
+
+        private void writeSpill() {
+            spillBuffer.flip();
+            try {
+                while (spillBuffer.hasRemaining()) {
+                    spillLength += spill.write(spillBuffer, spillLength);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to spill references", e);
+            }
+            spillBuffer.clear();
+        }
+
+        private static int readSpill(FileChannel in, ByteBuffer buf, long position)
+                throws IOException {
+            buf.clear();
+            while (buf.hasRemaining()) {
+                if (in.read(buf, position + buf.position()) < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            return buf.limit();
+        }
+
+        private int addNode(long objId, byte tag, int classValue, int size) {
+            checkNotBuilt();
+            if (numNodes == objIds.length) {
+                if (numNodes == MAX_ARRAY_SIZE) {
+                    throw new IllegalStateException("Too many objects for a ReferenceGraph");
+                }
+                int newSize = grow(numNodes);
+                objIds = Arrays.copyOf(objIds, newSize);
+                tags = Arrays.copyOf(tags, newSize);
+                classes = Arrays.copyOf(classes, newSize);
+                sizes = Arrays.copyOf(sizes, newSize);
+                outOffsets = Arrays.copyOf(outOffsets, newSize + 1);
+            }
+            int node = numNodes;
+            objIds[node] = objId;
+            tags[node] = tag;
+            classes[node] = classValue;
+            sizes[node] = size;
+            numNodes++;
+            outOffsets[numNodes] = numEdges;
+            return node;
+        }
+
+        private int classIndex(long classObjId) {
+            int index = classIndexes.get(classObjId);
+            if (index < 0) {
+                if (numClasses == classObjIds.length) {
+                    classObjIds = Arrays.copyOf(classObjIds, numClasses * 2);
+                }
+                index = numClasses++;
+                classObjIds[index] = classObjId;
+                classIndexes.put(classObjId, index);
+            }
+            return index;
+        }
+
+        private void checkNotBuilt() {
+            if (built) {
+                throw new IllegalStateException("Graph has already been built or discarded");
+            }
+        }
+
+        private static long[] trim(long[] a, int n) {
+            return a.length == n ? a : Arrays.copyOf(a, n);
+        }
+
+        private static int[] trim(int[] a, int n) {
+            return a.length == n ? a : Arrays.copyOf(a, n);
+        }
+
+        private static byte[] trim(byte[] a, int n) {
+            return a.length == n ? a : Arrays.copyOf(a, n);
+        }
+
+        private static int grow(int size) {
+            return (int) Math.min((long) size * 2, MAX_ARRAY_SIZE);
+        }
+
+        private static int cap(long size) {
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import edu.tufts.eaftan.hprofparser.parser.LongIntMap;
+import edu.tufts.eaftan.hprofparser.parser.LongObjectMap;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Computes the number of instances and the shallow size of each class, like
+ * {@code jmap -histo}.  It subscribes only to the summary callbacks, so field values and array
+ * elements are skipped rather than decoded and the dump is read in a single pass.  Counts are
+ * kept in primitive arrays indexed by class, so memory depends on the number of classes and
+ * strings in the dump, not on the number of objects.
+ * <p>
+ * Shallow sizes are estimated from the class dumps with a {@link SizeModel}: the object header,
+ * the instance's fields with references at their in-VM size, and alignment padding.  Field
+ * packing gaps are not modeled.  Class objects themselves are not counted.
+ * <p>
+ * Not thread-safe; don't use it with {@code HprofParser.setParallelism}.
+ */
+public class ClassHistogramHandler extends NullRecordHandler {
+
+    /**
+     * The VM's object layout.  The defaults match a 64-bit HotSpot VM with compressed oops and
+     * compressed class pointers.
+     */
+    public static class SizeModel {
+        /** Size of an instance's header. */
+        public int objectHeaderSize = 12;
+        /** Size of an array's header, including the length, up to the first element. */
+        public int arrayHeaderSize = 16;
+        /** Size of a reference field or array element. */
+        public int referenceSize = 4;
+        /** Objects are padded to a multiple of this. */
+        public int alignment = 8;
+
+        /** Returns the layout of a 64-bit HotSpot VM without compressed oops. */
+        public static SizeModel uncompressedOops() {
+            SizeModel model = new SizeModel();
+            model.objectHeaderSize = 16;
+            model.arrayHeaderSize = 24;
+            model.referenceSize = 8;
+            return model;
+        }
+
+        long align(long size) {
+            return (size + alignment - 1) / alignment * alignment;
+        }
+    }
+
+    /** One line of the histogram. */
+    public static class Entry {
+        /** The class name as dumped, or the element type followed by "[]" for primitive arrays. */
+        public final String className;
+        /** The class object id, or 0 for primitive arrays. */
+        public final long classObjId;
+        public final long instances;
+        public final long shallowBytes;
+
+        public Entry(String className, long classObjId, long instances, long shallowBytes) {
+            this.className = className;
+            this.classObjId = classObjId;
+            this.instances = instances;
+            this.shallowBytes = shallowBytes;
+        }
+    }
+
+    /* hprof basic types are 2 and 4 to 11 */
+    private static final int NUM_HPROF_TYPES = 12;
+
+    private final SizeModel sizeModel;
+    private int idSize;
+
+    private final LongObjectMap<String> stringMap = new LongObjectMap<>();
+    private final LongObjectMap<String> classNames = new LongObjectMap<>();
+    private final LongObjectMap<ClassData> classData = new LongObjectMap<>();
+
+    // per class of instances and object arrays
+    private final LongIntMap classIndexes = new LongIntMap();
+    private long[] classObjIds = new long[1024];
+    private long[] instanceCounts = new long[1024];    // their sizes are known per class
+    private long[] arrayCounts = new long[1024];
+    private long[] arrayBytes = new long[1024];
+    private int numClasses;
+
+    // per primitive array element type
+    private final long[] primCounts = new long[NUM_HPROF_TYPES];
+    private final long[] primBytes = new long[NUM_HPROF_TYPES];
+
+    private List<Entry> histogram;
+
+    public ClassHistogramHandler() {
+        this(new SizeModel());
+    }
+
+    public ClassHistogramHandler(SizeModel sizeModel) {
+        this.sizeModel = sizeModel;
+    }
+
+    /** Returns the histogram, largest shallow size first, once the parser has finished. */
+    public List<Entry> getHistogram() {
+        if (histogram == null) {
+            throw new IllegalStateException("The heap dump has not been parsed yet");
+        }
+        return histogram;
+    }
+
+    /** Prints the histogram in the format of {@code jmap -histo}. */
+    public void printHistogram(PrintStream out) {
+        long totalInstances = 0;
+        long totalBytes = 0;
+        out.println(" num     #instances         #bytes  class name");
+        out.println("----------------------------------------------");
+        int num = 0;
+        for (Entry entry : getHistogram()) {
+            out.printf("%4d: %14d %14d  %s%n", ++num, entry.instances, entry.shallowBytes,
+                    entry.className.replace('/', '.'));
+            totalInstances += entry.instances;
+            totalBytes += entry.shallowBytes;
+        }
+        out.printf("Total %14d %14d%n", totalInstances, totalBytes);
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        return EnumSet.of(RecordKind.STRING_IN_UTF8, RecordKind.LOAD_CLASS,
+                RecordKind.CLASS_DUMP, RecordKind.INSTANCE_DUMP_SUMMARY,
+                RecordKind.OBJ_ARRAY_DUMP_SUMMARY, RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
+    }
+
+    @Override
+    public void header(String format, int idSize, long time) {
+        this.idSize = idSize;
+    }
+
+    @Override
+    public void stringInUTF8(long id, String data) {
+        stringMap.put(id, data);
+    }
+
+    @Override
+    public void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum,
+                          long classNameStringId) {
+        String className = stringMap.get(classNameStringId);
+        if (className != null) {
+            classNames.put(classObjId, className);
+        }
+    }
+
+    @Override
+    public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId,
+                          long classLoaderObjId, long signersObjId, long protectionDomainObjId,
+                          long reserved1, long reserved2, int instanceSize, Constant[] constants,
+                          Static[] statics, InstanceField[] instanceFields) {
+        int numReferenceFields = 0;
+        for (InstanceField field : instanceFields) {
+            if (field.type == Type.OBJ) {
+                numReferenceFields++;
+            }
+        }
+        classData.put(classObjId, new ClassData(superClassObjId, instanceSize,
+                numReferenceFields));
+    }
+
+    @Override
+    public void instanceDumpSummary(long objId, int stackTraceSerialNum, long classObjId,
+                                    int numBytes) {
+        instanceCounts[classIndex(classObjId)]++;
+    }
+
+    @Override
+    public void objArrayDumpSummary(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                    int length) {
+        int index = classIndex(elemClassObjId);
+        arrayCounts[index]++;
+        arrayBytes[index] += sizeModel.align(
+                sizeModel.arrayHeaderSize + (long) length * sizeModel.referenceSize);
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                     int length) {
+        primCounts[elemType]++;
+        primBytes[elemType] += sizeModel.align(sizeModel.arrayHeaderSize
+                + (long) length * Type.hprofTypeToEnum(elemType).sizeInBytes());
+    }
+
+    @Override
+    public void finished() {
+        List<Entry> entries = new ArrayList<>(numClasses + NUM_HPROF_TYPES);
+        for (int i = 0; i < numClasses; i++) {
+            long classObjId = classObjIds[i];
+            String className = classNames.get(classObjId);
+            if (className == null) {
+                className = String.format("<unknown class 0x%x>", classObjId);
+            }
+            long bytes = instanceCounts[i] * instanceSize(classObjId) + arrayBytes[i];
+            entries.add(new Entry(className, classObjId, instanceCounts[i] + arrayCounts[i],
+                    bytes));
+        }
+        for (byte t = 0; t < NUM_HPROF_TYPES; t++) {
+            if (primCounts[t] > 0) {
+                entries.add(new Entry(Type.hprofTypeToEnum(t) + "[]", 0, primCounts[t],
+                        primBytes[t]));
+            }
+        }
+        entries.sort((a, b) -> Long.compare(b.shallowBytes, a.shallowBytes));
+        histogram = Collections.unmodifiableList(entries);
+    }
+
+    /*
+     * The shallow size of an instance of a class: the dumped field size, with references resized
+     * from the dump's id size to the model's reference size, plus the header, aligned.
+     */
+    private long instanceSize(long classObjId) {
+        ClassData data = classData.get(classObjId);
+        if (data == null) {
+            return 0;
+        }
+        long fieldBytes = data.instanceSize;
+        for (ClassData c = data; c != null; c = classData.get(c.superClassObjId)) {
+            fieldBytes -= (long) c.numReferenceFields * (idSize - sizeModel.referenceSize);
+        }
+        return sizeModel.align(sizeModel.objectHeaderSize + fieldBytes);
+    }
+
+    private int classIndex(long classObjId) {
+        int index = classIndexes.get(classObjId);
+        if (index < 0) {
+            if (numClasses == classObjIds.length) {
+                int newSize = numClasses * 2;
+                classObjIds = Arrays.copyOf(classObjIds, newSize);
+                instanceCounts = Arrays.copyOf(instanceCounts, newSize);
+                arrayCounts = Arrays.copyOf(arrayCounts, newSize);
+                arrayBytes = Arrays.copyOf(arrayBytes, newSize);
+            }
+            index = numClasses++;
+            classObjIds[index] = classObjId;
+            classIndexes.put(classObjId, index);
+        }
+        return index;
+    }
+
+    private static final class ClassData {
+        final long superClassObjId;
+        final int instanceSize;
+        final int numReferenceFields;    // declared by this class, not its superclasses
+
+        ClassData(long superClassObjId, int instanceSize, int numReferenceFields) {
+            this.superClassObjId = superClassObjId;
+            this.instanceSize = instanceSize;
+            this.numReferenceFields = numReferenceFields;
+        }
+    }
+
+}
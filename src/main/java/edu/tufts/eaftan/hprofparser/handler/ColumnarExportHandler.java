@@ -0,0 +1,453 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import edu.tufts.eaftan.hprofparser.parser.ClassLayout;
+import edu.tufts.eaftan.hprofparser.parser.InstanceView;
+import edu.tufts.eaftan.hprofparser.parser.LongIntMap;
+import edu.tufts.eaftan.hprofparser.parser.LongObjectMap;
+import edu.tufts.eaftan.hprofparser.parser.StringTable;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Writes classes, objects, references and arrays to a single self-contained columnar file, for
+ * analysis with columnar query engines.  Each table is written in chunks of a fixed number of
+ * rows, one column after the other, so the rows held in memory are bounded by the chunk size no
+ * matter how large the dump is.  Besides them, the handler keeps the class dictionary and the
+ * string records in a {@link StringTable}, undecoded; only class names are ever decoded.
+ * <p>
+ * Tables and columns:
+ * <pre>
+ *   classes:    classObjId, className, superClassObjId, instanceSize
+ *   objects:    objId, class, fieldBytes
+ *   references: fromObjId, toObjId, slot      (non-null OBJ fields and object array elements;
+ *                                              slot is the field or element index)
+ *   arrays:     arrayId, elemClass, elemType, length
+ * </pre>
+ * Column encodings, all using unsigned LEB128 varints:
+ * <pre>
+ *   1 DELTA   - zigzag varint of the difference to the previous value in the chunk (the first
+ *               value is relative to 0), for ids that mostly ascend
+ *   2 VARINT  - zigzag varint of the value
+ *   3 DICT    - varint index into the class dictionary; index 0 stands for "no class"
+ *   4 STRING  - varint of the UTF-8 length plus one (0 for null), then the bytes
+ * </pre>
+ * File layout, big-endian:
+ * <pre>
+ *   u4 - magic, "HPCF"
+ *   u4 - format version
+ *   [chunk]* - column chunks, back to back
+ *   footer:
+ *     u4 - number of tables, then for each: table name (modified UTF-8 as in DataOutput),
+ *          u4 number of columns, and for each column its name and u1 encoding
+ *     u4 - size of the class dictionary, then that many u8 class object ids
+ *     u4 - number of chunks, then for each: u4 table index, u4 number of rows, and for each
+ *          column of the table u8 file offset and u4 length
+ *   u8 - file offset of the footer
+ *   u4 - magic, "HPCF"
+ * </pre>
+ * Not thread-safe; don't use it with {@code HprofParser.setParallelism}.
+ */
+public class ColumnarExportHandler extends NullRecordHandler {
+
+    /** Default number of rows per chunk. */
+    public static final int DEFAULT_CHUNK_ROWS = 64 * 1024;
+
+    static final int MAGIC = 0x48504346;
+    static final int VERSION = 1;
+
+    static final byte DELTA = 1;
+    static final byte VARINT = 2;
+    static final byte DICT = 3;
+    static final byte STRING = 4;
+
+    private final File outputFile;
+    private final int chunkRows;
+    private final CountingOutputStream out;
+
+    private final Table classes;
+    private final Table objects;
+    private final Table references;
+    private final Table arrays;
+    private final Table[] tables;
+
+    private final StringTable strings = new StringTable();
+    // class names from loadClass, until the class dump is seen
+    private final LongObjectMap<String> classNames = new LongObjectMap<>();
+
+    // class object id -> dictionary index, and back
+    private final LongIntMap classIndexes = new LongIntMap();
+    private long[] dictionary = new long[256];
+    private int dictionarySize = 1;    // index 0 is "no class"
+
+    private final ArrayList<ChunkInfo> chunks = new ArrayList<>();
+
+    public ColumnarExportHandler(File outputFile) throws IOException {
+        this(outputFile, DEFAULT_CHUNK_ROWS);
+    }
+
+    public ColumnarExportHandler(File outputFile, int chunkRows) throws IOException {
+        if (chunkRows < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkRows);
+        }
+        this.outputFile = outputFile;
+        this.chunkRows = chunkRows;
+        this.out = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(outputFile), 64 * 1024));
+
+        classes = new Table(0, "classes",
+                new Column("classObjId", DELTA), new Column("className", STRING),
+                new Column("superClassObjId", VARINT), new Column("instanceSize", VARINT));
+        objects = new Table(1, "objects",
+                new Column("objId", DELTA), new Column("class", DICT),
+                new Column("fieldBytes", VARINT));
+        references = new Table(2, "references",
+                new Column("fromObjId", DELTA), new Column("toObjId", DELTA),
+                new Column("slot", VARINT));
+        arrays = new Table(3, "arrays",
+                new Column("arrayId", DELTA), new Column("elemClass", DICT),
+                new Column("elemType", VARINT), new Column("length", VARINT));
+        tables = new Table[] {classes, objects, references, arrays};
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        return EnumSet.of(RecordKind.STRING_IN_UTF8, RecordKind.LOAD_CLASS, RecordKind.CLASS_DUMP,
+                RecordKind.INSTANCE_DUMP, RecordKind.OBJ_ARRAY_DUMP,
+                RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
+    }
+
+    @Override
+    public StringTable stringTable() {
+        return strings;
+    }
+
+    @Override
+    public void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum,
+                          long classNameStringId) {
+        // the row is written with the class dump, or in finished() if there is none
+        String className = strings.get(classNameStringId);
+        if (className != null) {
+            classNames.put(classObjId, className);
+        }
+    }
+
+    @Override
+    public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId,
+                          long classLoaderObjId, long signersObjId, long protectionDomainObjId,
+                          long reserved1, long reserved2, int instanceSize, Constant[] constants,
+                          Static[] statics, InstanceField[] instanceFields) {
+        addClass(classObjId, classNames.remove(classObjId), superClassObjId, instanceSize);
+    }
+
+    @Override
+    public void instanceDump(InstanceView instance) {
+        long objId = instance.getObjId();
+        objects.columns[0].add(objId);
+        objects.columns[1].add(classIndex(instance.getClassObjId()));
+        objects.columns[2].add(instance.getPackedLength());
+        objects.endRow();
+
+        ClassLayout layout = instance.getLayout();
+        for (int i = 0; i < layout.getNumFields(); i++) {
+            if (layout.getFieldType(i) == Type.OBJ) {
+                long target = instance.getObjectId(i);
+                if (target != 0) {
+                    addReference(objId, target, i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
+                             long[] elems) {
+        addArray(objId, elemClassObjId, Type.OBJ.hprofType(), elems.length);
+        for (int i = 0; i < elems.length; i++) {
+            if (elems[i] != 0) {
+                addReference(objId, elems[i], i);
+            }
+        }
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                     int length) {
+        addArray(objId, 0, elemType, length);
+    }
+
+    @Override
+    public void finished() {
+        // loaded classes that had no class dump
+        classNames.forEach((classObjId, className) -> addClass(classObjId, className, 0, 0));
+        classNames.clear();
+        try {
+            for (Table table : tables) {
+                table.flush();
+            }
+            writeFooter();
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + outputFile, e);
+        }
+    }
+
+    private void addClass(long classObjId, String className, long superClassObjId,
+                          int instanceSize) {
+        classes.columns[0].add(classObjId);
+        classes.columns[1].add(className);
+        classes.columns[2].add(superClassObjId);
+        classes.columns[3].add(instanceSize);
+        classes.endRow();
+    }
+
+    private void addReference(long fromObjId, long toObjId, int slot) {
+        references.columns[0].add(fromObjId);
+        references.columns[1].add(toObjId);
+        references.columns[2].add(slot);
+        references.endRow();
+    }
+
+    private void addArray(long arrayId, long elemClassObjId, byte elemType, int length) {
+        arrays.columns[0].add(arrayId);
+        arrays.columns[1].add(classIndex(elemClassObjId));
+        arrays.columns[2].add(elemType);
+        arrays.columns[3].add(length);
+        arrays.endRow();
+    }
+
+    private int classIndex(long classObjId) {
+        if (classObjId == 0) {
+            return 0;
+        }
+        int index = classIndexes.get(classObjId);
+        if (index < 0) {
+            if (dictionarySize == dictionary.length) {
+                dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+            }
+            index = dictionarySize;
+            dictionary[dictionarySize++] = classObjId;
+            classIndexes.put(classObjId, index);
+        }
+        return index;
+    }
+
+    private void writeFooter() throws IOException {
+        long footerOffset = out.position;
+        DataOutputStream footer = new DataOutputStream(out);
+
+        footer.writeInt(tables.length);
+        for (Table table : tables) {
+            footer.writeUTF(table.name);
+            footer.writeInt(table.columns.length);
+            for (Column column : table.columns) {
+                footer.writeUTF(column.name);
+                footer.writeByte(column.encoding);
+            }
+        }
+
+        footer.writeInt(dictionarySize);
+        for (int i = 0; i < dictionarySize; i++) {
+            footer.writeLong(dictionary[i]);
+        }
+
+        footer.writeInt(chunks.size());
+        for (ChunkInfo chunk : chunks) {
+            footer.writeInt(chunk.tableIndex);
+            footer.writeInt(chunk.rows);
+            for (int c = 0; c < chunk.offsets.length; c++) {
+                footer.writeLong(chunk.offsets[c]);
+                footer.writeInt(chunk.lengths[c]);
+            }
+        }
+
+        footer.writeLong(footerOffset);
+        footer.writeInt(MAGIC);
+        footer.flush();
+    }
+
+    /* A table, and the chunk of rows being collected for it. */
+    private final class Table {
+        final int index;
+        final String name;
+        final Column[] columns;
+        int rows;
+
+        Table(int index, String name, Column... columns) {
+            this.index = index;
+            this.name = name;
+            this.columns = columns;
+        }
+
+        void endRow() {
+            if (++rows == chunkRows) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to write " + outputFile, e);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            ChunkInfo chunk = new ChunkInfo(index, rows, columns.length);
+            for (int c = 0; c < columns.length; c++) {
+                chunk.offsets[c] = out.position;
+                chunk.lengths[c] = columns[c].size;
+                columns[c].writeTo(out);
+            }
+            chunks.add(chunk);
+            rows = 0;
+        }
+    }
+
+    /* One column of the current chunk of a table, encoded as values are added. */
+    private static final class Column {
+        final String name;
+        final byte encoding;
+        byte[] data = new byte[1024];
+        int size;
+        long previous;
+
+        Column(String name, byte encoding) {
+            this.name = name;
+            this.encoding = encoding;
+        }
+
+        void add(long value) {
+            switch (encoding) {
+                case DELTA:
+                    writeVarLong(zigzag(value - previous));
+                    previous = value;
+                    break;
+                case VARINT:
+                    writeVarLong(zigzag(value));
+                    break;
+                case DICT:
+                    writeVarLong(value);
+                    break;
+                default:
+                    throw new IllegalStateException("Column " + name + " does not hold numbers");
+            }
+        }
+
+        void add(String value) {
+            if (encoding != STRING) {
+                throw new IllegalStateException("Column " + name + " does not hold strings");
+            }
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(data, 0, size);
+            size = 0;
+            previous = 0;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        private void ensure(int n) {
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + n, data.length * 2));
+            }
+        }
+    }
+
+    private static final class ChunkInfo {
+        final int tableIndex;
+        final int rows;
+        final long[] offsets;
+        final int[] lengths;
+
+        ChunkInfo(int tableIndex, int rows, int numColumns) {
+            this.tableIndex = tableIndex;
+            this.rows = rows;
+            this.offsets = new long[numColumns];
+            this.lengths = new int[numColumns];
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long position;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Collects the GC roots of a heap dump: for each kind of root, the sorted, distinct ids of the
+ * objects it holds.  Only the root records are decoded, so collecting them takes one quick pass
+ * over the file.  Safe to use with {@code HprofParser.setParallelism}.
+ */
+public class GcRootCollector extends NullRecordHandler {
+
+    /** The kinds of GC root records. */
+    public enum Kind {
+        UNKNOWN,
+        JNI_GLOBAL,
+        JNI_LOCAL,
+        JAVA_FRAME,
+        NATIVE_STACK,
+        STICKY_CLASS,
+        THREAD_BLOCK,
+        MONITOR_USED,
+        THREAD_OBJ
+    }
+
+    private static final int INITIAL_SIZE = 64;
+
+    // guarded by this until finished()
+    private final long[][] roots = new long[Kind.values().length][INITIAL_SIZE];
+    private final int[] counts = new int[Kind.values().length];
+    private long[] allRoots;
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        return EnumSet.of(RecordKind.GC_ROOT);
+    }
+
+    /**
+     * Returns the distinct objects held by roots of a kind, in ascending id order.  The array is
+     * shared; don't modify it.
+     */
+    public long[] getRoots(Kind kind) {
+        checkFinished();
+        return roots[kind.ordinal()];
+    }
+
+    /** Returns the distinct objects held by roots of any kind, in ascending id order. */
+    public long[] getAllRoots() {
+        checkFinished();
+        return allRoots;
+    }
+
+    /** Returns whether an object is held by a root of any kind. */
+    public boolean isRoot(long objId) {
+        checkFinished();
+        return Arrays.binarySearch(allRoots, objId) >= 0;
+    }
+
+    @Override
+    public void rootUnknown(long objId) {
+        add(Kind.UNKNOWN, objId);
+    }
+
+    @Override
+    public void rootJNIGlobal(long objId, long JNIGlobalRefId) {
+        add(Kind.JNI_GLOBAL, objId);
+    }
+
+    @Override
+    public void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
+        add(Kind.JNI_LOCAL, objId);
+    }
+
+    @Override
+    public void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
+        add(Kind.JAVA_FRAME, objId);
+    }
+
+    @Override
+    public void rootNativeStack(long objId, int threadSerialNum) {
+        add(Kind.NATIVE_STACK, objId);
+    }
+
+    @Override
+    public void rootStickyClass(long objId) {
+        add(Kind.STICKY_CLASS, objId);
+    }
+
+    @Override
+    public void rootThreadBlock(long objId, int threadSerialNum) {
+        add(Kind.THREAD_BLOCK, objId);
+    }
+
+    @Override
+    public void rootMonitorUsed(long objId) {
+        add(Kind.MONITOR_USED, objId);
+    }
+
+    @Override
+    public void rootThreadObj(long objId, int threadSerialNum, int stackTraceSerialNum) {
+        add(Kind.THREAD_OBJ, objId);
+    }
+
+    @Override
+    public synchronized void finished() {
+        int total = 0;
+        for (int k = 0; k < roots.length; k++) {
+            roots[k] = sortedDistinct(roots[k], counts[k]);
+            total += roots[k].length;
+        }
+        long[] all = new long[total];
+        int n = 0;
+        for (long[] ids : roots) {
+            System.arraycopy(ids, 0, all, n, ids.length);
+            n += ids.length;
+        }
+        allRoots = sortedDistinct(all, n);
+    }
+
+    private synchronized void add(Kind kind, long objId) {
+        int k = kind.ordinal();
+        if (counts[k] == roots[k].length) {
+            roots[k] = Arrays.copyOf(roots[k], counts[k] * 2);
+        }
+        roots[k][counts[k]++] = objId;
+    }
+
+    private synchronized void checkFinished() {
+        if (allRoots == null) {
+            throw new IllegalStateException("The heap dump has not been parsed yet");
+        }
+    }
+
+    private static long[] sortedDistinct(long[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (n == 0 || ids[i] != ids[n - 1]) {
+                ids[n++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import edu.tufts.eaftan.hprofparser.analysis.ReferenceGraph;
+import edu.tufts.eaftan.hprofparser.parser.ClassLayout;
+import edu.tufts.eaftan.hprofparser.parser.InstanceView;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
+
+import java.util.EnumSet;
+
+/**
+ * Builds a {@link ReferenceGraph} of the heap.  The references of an object are its non-null
+ * {@code OBJ} fields or array elements; a class refers to its superclass, class loader, signers,
+ * protection domain and the objects in its static fields.  Every object named by a GC root record
+ * is a root of the graph.
+ * <p>
+ * The references are kept in a temporary file until the parser has finished; call {@link #close}
+ * if the parse fails, to delete it.  Not thread-safe; don't use it with
+ * {@code HprofParser.setParallelism}.
+ */
+public class GraphBuildingHandler extends NullRecordHandler {
+
+    private final boolean inEdges;
+    private int idSize;
+    private ReferenceGraph.Builder builder;
+    private ReferenceGraph graph;
+
+    public GraphBuildingHandler() {
+        this(false);
+    }
+
+    /**
+     * @param inEdges whether the graph should store incoming references as well
+     */
+    public GraphBuildingHandler(boolean inEdges) {
+        this.inEdges = inEdges;
+    }
+
+    /** Returns the graph, once the parser has finished. */
+    public ReferenceGraph getGraph() {
+        if (graph == null) {
+            throw new IllegalStateException("The heap dump has not been parsed yet");
+        }
+        return graph;
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        return EnumSet.of(RecordKind.GC_ROOT, RecordKind.CLASS_DUMP, RecordKind.INSTANCE_DUMP,
+                RecordKind.OBJ_ARRAY_DUMP, RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
+    }
+
+    @Override
+    public void header(String format, int idSize, long time) {
+        this.idSize = idSize;
+        builder = new ReferenceGraph.Builder(idSize, inEdges);
+    }
+
+    @Override
+    public void rootUnknown(long objId) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootJNIGlobal(long objId, long JNIGlobalRefId) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootNativeStack(long objId, int threadSerialNum) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootStickyClass(long objId) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootThreadBlock(long objId, int threadSerialNum) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootMonitorUsed(long objId) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void rootThreadObj(long objId, int threadSerialNum, int stackTraceSerialNum) {
+        builder.addRoot(objId);
+    }
+
+    @Override
+    public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId,
+                          long classLoaderObjId, long signersObjId, long protectionDomainObjId,
+                          long reserved1, long reserved2, int instanceSize, Constant[] constants,
+                          Static[] statics, InstanceField[] instanceFields) {
+        int staticsSize = 0;
+        for (Static s : statics) {
+            staticsSize += s.value.type == Type.OBJ ? idSize : s.value.type.sizeInBytes();
+        }
+        builder.addClass(classObjId, staticsSize);
+        builder.addReference(superClassObjId);
+        builder.addReference(classLoaderObjId);
+        builder.addReference(signersObjId);
+        builder.addReference(protectionDomainObjId);
+        for (Static s : statics) {
+            if (s.value.type == Type.OBJ) {
+                builder.addReference((Long) s.value.value);
+            }
+        }
+    }
+
+    @Override
+    public void instanceDump(InstanceView instance) {
+        builder.addInstance(instance.getObjId(), instance.getClassObjId(),
+                instance.getPackedLength());
+        ClassLayout layout = instance.getLayout();
+        for (int i = 0; i < layout.getNumFields(); i++) {
+            if (layout.getFieldType(i) == Type.OBJ) {
+                builder.addReference(instance.getObjectId(i));
+            }
+        }
+    }
+
+    @Override
+    public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
+                             long[] elems) {
+        builder.addObjectArray(objId, elemClassObjId, elems.length);
+        for (long elem : elems) {
+            builder.addReference(elem);
+        }
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                     int length) {
+        builder.addPrimitiveArray(objId, Type.hprofTypeToEnum(elemType), length);
+    }
+
+    @Override
+    public void finished() {
+        graph = builder.build();
+        builder = null;
+    }
+
+    /**
+     * Discards a graph that is still being built, and deletes its temporary file.  Does nothing
+     * once the parser has finished.
+     */
+    public void close() {
+        if (builder != null) {
+            builder.close();
+            builder = null;
+        }
+    }
+
+}
@@ -23,7 +23,8 @@ import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
  * the record and calls the matching function in its RecordHandler class.  The RecordHandler
  * handles each record, performing some function such as printing the record or building a graph.
  * <p>
- * The default behavior is to do nothing for any record.
+ * The default behavior is to do nothing for any record.  The callbacks that {@link RecordHandler}
+ * gives default implementations are inherited from it.
  */
 public class NullRecordHandler implements RecordHandler {
 
@@ -49,36 +50,9 @@ public class NullRecordHandler implements RecordHandler {
     public void unloadClass(int classSerialNum) {
     }
 
-//    @Override
-//    public void stackFrame(long stackFrameId, long methodNameStringId,
-//                           long methodSigStringId, long sourceFileNameStringId,
-//                           int classSerialNum, int location) {
-//    }
-
-//    @Override
-//    public void stackTrace(int stackTraceSerialNum, int threadSerialNum,
-//                           int numFrames, long[] stackFrameIds) {
-//    }
-
-//    @Override
-//    public void allocSites(short bitMaskFlags, float cutoffRatio,
-//                           int totalLiveBytes, int totalLiveInstances, long totalBytesAllocated,
-//                           long totalInstancesAllocated, AllocSite[] sites) {
-//    }
-
 //    @Override
 //    public void heapSummary(int totalLiveBytes, int totalLiveInstances,
 //                            long totalBytesAllocated, long totalInstancesAllocated) {
-//    }
-
-//    @Override
-//    public void startThread(int threadSerialNum, long threadObjectId,
-//                            int stackTraceSerialNum, long threadNameStringId, long threadGroupNameId,
-//                            long threadParentGroupNameId) {
-//    }
-
-//    @Override
-//    public void endThread(int threadSerialNum) {
 //    }
 
     @Override
@@ -104,43 +78,6 @@ public class NullRecordHandler implements RecordHandler {
 
     /* handlers for heap dump records */
 
-//    @Override
-//    public void rootUnknown(long objId) {
-//    }
-
-//    @Override
-//    public void rootJNIGlobal(long objId, long JNIGlobalRefId) {
-//    }
-
-//    @Override
-//    public void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
-//    }
-
-//    @Override
-//    public void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
-//    }
-
-//    @Override
-//    public void rootNativeStack(long objId, int threadSerialNum) {
-//    }
-
-//    @Override
-//    public void rootStickyClass(long objId) {
-//    }
-
-//    @Override
-//    public void rootThreadBlock(long objId, int threadSerialNum) {
-//    }
-
-//    @Override
-//    public void rootMonitorUsed(long objId) {
-//    }
-
-//    @Override
-//    public void rootThreadObj(long objId, int threadSerialNum,
-//                              int stackTraceSerialNum) {
-//    }
-
     @Override
     public void classDump(long classObjId, int stackTraceSerialNum,
                           long superClassObjId, long classLoaderObjId, long signersObjId,
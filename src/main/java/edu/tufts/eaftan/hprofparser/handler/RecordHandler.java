@@ -16,8 +16,12 @@
 
 package edu.tufts.eaftan.hprofparser.handler;
 
+import edu.tufts.eaftan.hprofparser.parser.InstanceView;
+import edu.tufts.eaftan.hprofparser.parser.StringTable;
 import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
 
+import java.util.EnumSet;
+
 /**
  * Primary interface to be used with the hprof parser.  The parser takes an implementation of
  * this interface and calls the matching callback method on each record encountered.
@@ -25,13 +29,42 @@ import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
  *
  * <p>You may assume that all references passed into the handler methods are non-null.
  *
+ * <p>Callbacks are made from a single thread unless the parser is configured with
+ * {@code HprofParser.setParallelism}, in which case the heap dump callbacks may be made
+ * concurrently.
+ *
  * <p>Generally you want to subclass {@code NullRecordHandler} rather than implement this interface
- * directly.
+ * directly.  The callbacks added since the original interface have default implementations, so
+ * existing implementations keep compiling: they do nothing, or box their arguments and pass them
+ * on to the original callback.
  */
 public interface RecordHandler {
 
+    /**
+     * Returns the kinds of records this handler wants.  The parser asks once, after the header,
+     * and skips the records no one subscribed to without decoding them; in particular, the second
+     * pass over the file is only made for {@link RecordKind#INSTANCE_DUMP}.
+     * <p>
+     * The default subscribes to every record kind except the summaries, which is what the parser
+     * delivered before handlers could choose.
+     */
+    default EnumSet<RecordKind> recordKinds() {
+        return EnumSet.complementOf(EnumSet.of(RecordKind.INSTANCE_DUMP_SUMMARY,
+                RecordKind.OBJ_ARRAY_DUMP_SUMMARY, RecordKind.PRIM_ARRAY_DUMP_SUMMARY));
+    }
+
     void header(String format, int idSize, long time);
 
+    /**
+     * Returns a table for the parser to store the UTF-8 string records in, undecoded, or null to
+     * have each one decoded and passed to {@link #stringInUTF8}.  The parser asks once, with
+     * {@link #recordKinds}; a handler that returns a table gets no {@code stringInUTF8} calls.
+     * The default returns null.
+     */
+    default StringTable stringTable() {
+        return null;
+    }
+
     void stringInUTF8(long id, String data);
 
     void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum,
@@ -39,35 +72,46 @@ public interface RecordHandler {
 
     void unloadClass(int classSerialNum);
 
-//    void stackFrame(long stackFrameId,
-//                                    long methodNameStringId,
-//                                    long methodSigStringId,
-//                                    long sourceFileNameStringId,
-//                                    int classSerialNum,
-//                                    int location);
-
-//    void stackTrace(int stackTraceSerialNum, int threadSerialNum, int numFrames,
-//                                    long[] stackFrameIds);
-
-//    void allocSites(short bitMaskFlags,
-//                                    float cutoffRatio,
-//                                    int totalLiveBytes,
-//                                    int totalLiveInstances,
-//                                    long totalBytesAllocated,
-//                                    long totalInstancesAllocated,
-//                                    AllocSite[] sites);
+    /**
+     * A stack frame.  The location is a line number if positive, and otherwise 0 for no line
+     * information, -1 for an unknown location, -2 for a compiled method and -3 for a native
+     * method.
+     */
+    default void stackFrame(long stackFrameId,
+                                    long methodNameStringId,
+                                    long methodSigStringId,
+                                    long sourceFileNameStringId,
+                                    int classSerialNum,
+                                    int location) {
+    }
+
+    /** A stack trace, innermost frame first.  Objects refer to it by its serial number. */
+    default void stackTrace(int stackTraceSerialNum, int threadSerialNum, int numFrames,
+                                    long[] stackFrameIds) {
+    }
+
+    default void allocSites(short bitMaskFlags,
+                                    float cutoffRatio,
+                                    int totalLiveBytes,
+                                    int totalLiveInstances,
+                                    long totalBytesAllocated,
+                                    long totalInstancesAllocated,
+                                    AllocSite[] sites) {
+    }
 
 //    void heapSummary(int totalLiveBytes, int totalLiveInstances,
 //                                     long totalBytesAllocated, long totalInstancesAllocated);
 
-//    void startThread(int threadSerialNum,
-//                                     long threadObjectId,
-//                                     int stackTraceSerialNum,
-//                                     long threadNameStringId,
-//                                     long threadGroupNameId,
-//                                     long threadParentGroupNameId);
+    default void startThread(int threadSerialNum,
+                                     long threadObjectId,
+                                     int stackTraceSerialNum,
+                                     long threadNameStringId,
+                                     long threadGroupNameId,
+                                     long threadParentGroupNameId) {
+    }
 
-//    void endThread(int threadSerialNum);
+    default void endThread(int threadSerialNum) {
+    }
 
     void heapDump();
 
@@ -79,23 +123,37 @@ public interface RecordHandler {
 
 //    void controlSettings(int bitMaskFlags, short stackTraceDepth);
 
-//    void rootUnknown(long objId);
+    /*
+     * GC root callbacks, one per root record kind.  Each root record is delivered exactly once,
+     * while the heap dump segments are first read, whichever way the parser is configured.
+     */
+
+    default void rootUnknown(long objId) {
+    }
 
-//    void rootJNIGlobal(long objId, long JNIGlobalRefId);
+    default void rootJNIGlobal(long objId, long JNIGlobalRefId) {
+    }
 
-//    void rootJNILocal(long objId, int threadSerialNum, int frameNum);
+    default void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
+    }
 
-//    void rootJavaFrame(long objId, int threadSerialNum, int frameNum);
+    default void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
+    }
 
-//    void rootNativeStack(long objId, int threadSerialNum);
+    default void rootNativeStack(long objId, int threadSerialNum) {
+    }
 
-//    void rootStickyClass(long objId);
+    default void rootStickyClass(long objId) {
+    }
 
-//    void rootThreadBlock(long objId, int threadSerialNum);
+    default void rootThreadBlock(long objId, int threadSerialNum) {
+    }
 
-//    void rootMonitorUsed(long objId);
+    default void rootMonitorUsed(long objId) {
+    }
 
-//    void rootThreadObj(long objId, int threadSerialNum, int stackTraceSerialNum);
+    default void rootThreadObj(long objId, int threadSerialNum, int stackTraceSerialNum) {
+    }
 
     void classDump(long classObjId,
                                    int stackTraceSerialNum,
@@ -113,12 +171,119 @@ public interface RecordHandler {
     void instanceDump(long objId, int stackTraceSerialNum, long classObjId,
                                       Value<?>[] instanceFieldValues);
 
+    /**
+     * Called for every instance dump record.  The view decodes fields on demand from the raw
+     * record bytes and is reused for the next instance, so it is only valid during this call.
+     * The default boxes the values and calls {@link #instanceDump(long, int, long, Value[])};
+     * override it to avoid that cost.
+     */
+    default void instanceDump(InstanceView instance) {
+        instanceDump(instance.getObjId(), instance.getStackTraceSerialNum(),
+                instance.getClassObjId(), instance.getValues());
+    }
+
+    /**
+     * Called for every instance dump record if {@link RecordKind#INSTANCE_DUMP_SUMMARY} is
+     * subscribed.  The field data is not decoded, so this is made during the first pass.
+     */
+    default void instanceDumpSummary(long objId, int stackTraceSerialNum, long classObjId,
+                                     int numBytes) {
+    }
+
     void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
                                       long[] elems);
 
+    /**
+     * Called for every object array dump record if {@link RecordKind#OBJ_ARRAY_DUMP_SUMMARY} is
+     * subscribed.  The elements are skipped unless {@link RecordKind#OBJ_ARRAY_DUMP} is also
+     * subscribed.
+     */
+    default void objArrayDumpSummary(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                     int length) {
+    }
+
     void primArrayDump(long objId, int stackTraceSerialNum, byte elemType,
                                        Value<?>[] elems);
 
+    /*
+     * Typed callbacks for primitive array dumps, one per element type.  The arrays are freshly
+     * allocated and owned by the handler.  The defaults box the elements and call primArrayDump;
+     * override them to avoid that cost.
+     */
+
+    default void boolArrayDump(long objId, int stackTraceSerialNum, boolean[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.BOOL, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.BOOL.hprofType(), values);
+    }
+
+    default void charArrayDump(long objId, int stackTraceSerialNum, char[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.CHAR, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.CHAR.hprofType(), values);
+    }
+
+    default void floatArrayDump(long objId, int stackTraceSerialNum, float[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.FLOAT, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.FLOAT.hprofType(), values);
+    }
+
+    default void doubleArrayDump(long objId, int stackTraceSerialNum, double[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.DOUBLE, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.DOUBLE.hprofType(), values);
+    }
+
+    default void byteArrayDump(long objId, int stackTraceSerialNum, byte[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.BYTE, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.BYTE.hprofType(), values);
+    }
+
+    default void shortArrayDump(long objId, int stackTraceSerialNum, short[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.SHORT, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.SHORT.hprofType(), values);
+    }
+
+    default void intArrayDump(long objId, int stackTraceSerialNum, int[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.INT, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.INT.hprofType(), values);
+    }
+
+    default void longArrayDump(long objId, int stackTraceSerialNum, long[] elems) {
+        Value<?>[] values = new Value<?>[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            values[i] = new Value<>(Type.LONG, elems[i]);
+        }
+        primArrayDump(objId, stackTraceSerialNum, Type.LONG.hprofType(), values);
+    }
+
+    /**
+     * Called for every primitive array dump record if {@link RecordKind#PRIM_ARRAY_DUMP_SUMMARY}
+     * is subscribed, or instead of the typed array callbacks when the parser is told to skip
+     * primitive array elements; see {@code HprofParser.setSkipPrimitiveArrayData}.
+     */
+    default void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                      int length) {
+    }
+
     void finished();
 
 }
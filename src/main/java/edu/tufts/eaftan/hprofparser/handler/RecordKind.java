@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+/**
+ * The kinds of records a {@link RecordHandler} can subscribe to through
+ * {@link RecordHandler#recordKinds}.  The parser skips the bodies of records no one subscribed
+ * to, using the lengths in the file, instead of decoding them.
+ * <p>
+ * The header, heap dump start/end and {@code finished} callbacks are always made.
+ */
+public enum RecordKind {
+
+    /** {@code stringInUTF8} */
+    STRING_IN_UTF8,
+
+    /** {@code loadClass} */
+    LOAD_CLASS,
+
+    /** {@code unloadClass} */
+    UNLOAD_CLASS,
+
+    /** {@code stackFrame} */
+    STACK_FRAME,
+
+    /** {@code stackTrace} */
+    STACK_TRACE,
+
+    /** {@code allocSites} */
+    ALLOC_SITES,
+
+    /** {@code startThread} and {@code endThread} */
+    THREAD,
+
+    /** The {@code root*} callbacks, one per GC root record. */
+    GC_ROOT,
+
+    /** {@code classDump} */
+    CLASS_DUMP,
+
+    /** {@code instanceDump}, with decoded field values. */
+    INSTANCE_DUMP,
+
+    /** {@code instanceDumpSummary}: the instance's class and size, without decoding its fields. */
+    INSTANCE_DUMP_SUMMARY,
+
+    /** {@code objArrayDump}, with the element ids. */
+    OBJ_ARRAY_DUMP,
+
+    /** {@code objArrayDumpSummary}: the array's class and length only. */
+    OBJ_ARRAY_DUMP_SUMMARY,
+
+    /** {@code primArrayDump} and the typed array callbacks, with the elements. */
+    PRIM_ARRAY_DUMP,
+
+    /** {@code primArrayDumpSummary}: the array's element type and length only. */
+    PRIM_ARRAY_DUMP_SUMMARY;
+
+}
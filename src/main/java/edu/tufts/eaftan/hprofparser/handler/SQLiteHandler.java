@@ -1,58 +1,175 @@
 package edu.tufts.eaftan.hprofparser.handler;
 
+import edu.tufts.eaftan.hprofparser.parser.ClassLayout;
+import edu.tufts.eaftan.hprofparser.parser.InstanceView;
+import edu.tufts.eaftan.hprofparser.parser.LongObjectMap;
+import edu.tufts.eaftan.hprofparser.parser.StringTable;
 import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class SQLiteHandler extends NullRecordHandler {
 
-    private final Map<String, Long> methodNsMap = new HashMap<>();
-    private final Map<String, Long> methodCountMap = new HashMap<>();
+    /**
+     * How instance field values are stored.
+     */
+    public enum FieldStorage {
+        /** One Fields row per field, with the value as text. */
+        ROWS,
+        /**
+         * One InstanceData row per instance, holding its packed field values as a BLOB exactly as
+         * they appear in the dump.  The field names, types and offsets are stored once per class
+         * in ClassFields, and the FieldValues view decodes them on demand with the
+         * {@code hprof_field} function; see {@link #registerFunctions}.
+         */
+        BLOB
+    }
 
-    private void time(String function, Runnable runnable) {
-        long start = System.nanoTime();
-        try {
-            runnable.run();
-        } finally {
-            long end = System.nanoTime();
-            long duration = end - start;
-            long ns = methodNsMap.getOrDefault(function, 0L) + duration;
-            long count = methodCountMap.getOrDefault(function, 0L) + 1;
-            methodNsMap.put(function, ns);
-            methodCountMap.put(function, count);
-            if (count % 1000 == 0) {
-                System.out.println("Function: " + function + " - Total duration: " + ns + " ns Total calls: " + count + " Average duration: " + ns / count + " ns");
-            }
+    /**
+     * Tuning knobs for how rows are written.
+     */
+    public static class Settings {
+        /** The database file; its directory is created if needed. */
+        public String databaseFile = "heapdump.db";
+        /** Rows collected per table before they are handed to the writer thread as one batch. */
+        public int batchSize = 10_000;
+        /** Batches that may wait for the writer thread before the callbacks block. */
+        public int queueDepth = 16;
+        /** Rows written per transaction. */
+        public int transactionSize = 1_000_000;
+        /**
+         * Creates the tables without foreign keys or secondary indexes, and builds the indexes in
+         * {@code finished()} once every row is loaded.  Integer primary keys are kept: they are
+         * the rowids of their tables rather than separate indexes.  The writer thread sorts each
+         * batch by its table's key before inserting it, so the rows of a batch go into the
+         * B-tree in key order, at the cost of an O(n log n) sort per batch on the writer thread.
+         * From one batch to the next, rows still follow dump order, which is not key order, so
+         * the inserts of different batches can interleave; sorting the whole table would mean
+         * holding every row until the end of the parse.
+         */
+        public boolean bulkLoad = false;
+        /**
+         * With {@link #bulkLoad}, stores the tables with composite keys, ObjectArrayElements and
+         * Constants, as WITHOUT ROWID tables clustered on their key, so that they need no
+         * separate index on it.
+         */
+        public boolean withoutRowid = false;
+        /** How instance field values are stored. */
+        public FieldStorage fieldStorage = FieldStorage.ROWS;
+    }
+
+    /*
+     * An insert statement, and the batch of rows being collected for it.  The first numKeyColumns
+     * columns, all integers, are the table's primary key.
+     */
+    private static class Table {
+        final PreparedStatement statement;    // used by the writer thread only
+        final int numColumns;
+        final int numKeyColumns;
+        RowBatch pending;                     // used by the callbacks only
+
+        Table(PreparedStatement statement, int numColumns, int numKeyColumns) {
+            this.statement = statement;
+            this.numColumns = numColumns;
+            this.numKeyColumns = numKeyColumns;
         }
     }
 
-    private static final String DB_URL = "jdbc:sqlite:heapdump.db"; // Database file path
-    private Connection connection;
-    private final HashMap<Long, String> stringMap = new HashMap<>();
-    private final HashMap<Long, ClassInfo> classMap = new HashMap<>();
+    /* Rows for one table, stored row after row. */
+    private static class RowBatch {
+        final Table table;
+        final Object[] values;
+        int rows;
 
-    private final long startTimeNanos;
+        RowBatch(Table table, int maxRows) {
+            this.table = table;
+            this.values = table == null ? null : new Object[maxRows * table.numColumns];
+        }
+    }
+
+    /* Tells the writer thread that no more batches will come. */
+    private static final RowBatch END_OF_ROWS = new RowBatch(null, 0);
+
+    private Connection connection;
+    private final Settings settings;
+    // filled by the parser; names are decoded once, the other strings only for their rows
+    private final StringTable strings = new StringTable(true);
+
+    // class names from loadClass, until the class dump is seen
+    private final LongObjectMap<String> classNames = new LongObjectMap<>();
+
+    // classes whose ClassFields rows have been written, with FieldStorage.BLOB
+    private final LongObjectMap<ClassLayout> classFieldsWritten = new LongObjectMap<>();
+
+    private Table insertString;
+    private Table insertClass;
+    private Table insertConstant;
+    private Table insertStaticField;
+    private Table insertObject;
+    private Table insertField;
+    private Table insertArray;
+    private Table insertArrayElement;
+    private Table insertInstanceData;
+    private Table insertClassField;
+    private Table[] tables;
+
+    /*
+     * Rows are written by a dedicated thread, so that parsing and database I/O overlap.  The
+     * bounded queue makes the callbacks wait when the writer falls behind.
+     */
+    private final BlockingQueue<RowBatch> queue;
+    private final Thread writer;
+    private volatile Throwable writerFailure;
 
     public SQLiteHandler() {
+        this(new Settings());
+    }
+
+    public SQLiteHandler(Settings settings) {
+        this.settings = settings;
         try {
             initializeDatabase();
-            createTables();
+            if (settings.bulkLoad) {
+                createBulkLoadTables();
+            } else {
+                createTables();
+            }
+            if (settings.fieldStorage == FieldStorage.BLOB) {
+                createFieldStorageTables();
+            }
             setupDatabaseProperties();
+            prepareStatements();
+            connection.setAutoCommit(false);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to initialize database", e);
         }
-        startTimeNanos = System.nanoTime();
+        queue = new ArrayBlockingQueue<>(settings.queueDepth);
+        writer = new Thread(this::writeRows, "SQLiteHandler writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        // only array lengths are stored, so primitive array elements are never decoded
+        return EnumSet.of(RecordKind.STRING_IN_UTF8, RecordKind.LOAD_CLASS, RecordKind.CLASS_DUMP,
+                RecordKind.INSTANCE_DUMP, RecordKind.OBJ_ARRAY_DUMP,
+                RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
     }
 
     private void initializeDatabase() throws SQLException {
         // Ensure the directory for the database exists
         try {
-            Path dbPath = Paths.get(DB_URL.replace("jdbc:sqlite:", ""));
+            Path dbPath = Paths.get(settings.databaseFile);
             Path dbDirectory = dbPath.getParent();
             if (dbDirectory != null && !Files.exists(dbDirectory)) {
                 Files.createDirectories(dbDirectory);
@@ -62,7 +179,7 @@ public class SQLiteHandler extends NullRecordHandler {
         }
 
         // Establish connection to the SQLite database file
-        connection = DriverManager.getConnection(DB_URL);
+        connection = DriverManager.getConnection("jdbc:sqlite:" + settings.databaseFile);
     }
 
     private void createTables() throws SQLException {
@@ -172,6 +289,143 @@ public class SQLiteHandler extends NullRecordHandler {
         }
     }
 
+    /* Same tables as createTables, without constraints other than integer primary keys. */
+    private void createBulkLoadTables() throws SQLException {
+        String withoutRowid = settings.withoutRowid ? " WITHOUT ROWID" : "";
+        String arrayElementsKey = settings.withoutRowid
+                ? ", PRIMARY KEY(arrayId, elementIndex)" : "";
+        String constantsKey = settings.withoutRowid
+                ? ", PRIMARY KEY(classObjId, constantPoolIndex)" : "";
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS Strings (id INTEGER PRIMARY KEY, data TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS Classes (classObjId INTEGER PRIMARY KEY, className TEXT, superClassObjId INTEGER, instanceSize INTEGER)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS Objects (objId INTEGER PRIMARY KEY, classObjId INTEGER, stackTraceSerialNum INTEGER)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS Fields (objId INTEGER, fieldName TEXT, fieldType TEXT, fieldValue TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS StaticFields (classObjId INTEGER, fieldName TEXT, fieldType TEXT, fieldValue TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS Arrays (arrayId INTEGER PRIMARY KEY, elemClassObjId INTEGER, length INTEGER, elemType TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ObjectArrayElements (arrayId INTEGER, elementIndex INTEGER, elementObjId INTEGER"
+                    + arrayElementsKey + ")" + withoutRowid);
+            stmt.execute("CREATE TABLE IF NOT EXISTS PrimitiveArrayElements (arrayId INTEGER, elementIndex INTEGER, elementValue TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS Constants (classObjId INTEGER, constantPoolIndex INTEGER, constantValue TEXT"
+                    + constantsKey + ")" + withoutRowid);
+            stmt.execute("CREATE TABLE IF NOT EXISTS HeapRoots (objId INTEGER PRIMARY KEY, rootType TEXT)");
+        }
+    }
+
+    private void createFieldStorageTables() throws SQLException {
+        String createInstanceDataTable = """
+            CREATE TABLE IF NOT EXISTS InstanceData (
+                objId INTEGER PRIMARY KEY,
+                data BLOB
+            );
+            """;
+
+        // the flattened layout of each class, inherited fields included
+        String createClassFieldsTable = """
+            CREATE TABLE IF NOT EXISTS ClassFields (
+                classObjId INTEGER,
+                fieldIndex INTEGER,
+                fieldName TEXT,
+                fieldType TEXT,
+                fieldOffset INTEGER,
+                fieldSize INTEGER,
+                PRIMARY KEY(classObjId, fieldIndex)
+            );
+            """;
+
+        String createFieldValuesView = """
+            CREATE VIEW IF NOT EXISTS FieldValues AS
+            SELECT d.objId, f.fieldIndex, f.fieldName, f.fieldType,
+                   hprof_field(d.data, f.fieldType, f.fieldOffset, f.fieldSize) AS fieldValue
+            FROM InstanceData d
+            JOIN Objects o ON o.objId = d.objId
+            JOIN ClassFields f ON f.classObjId = o.classObjId;
+            """;
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(createInstanceDataTable);
+            stmt.execute(createClassFieldsTable);
+            stmt.execute(createFieldValuesView);
+        }
+        registerFunctions(connection);
+    }
+
+    /**
+     * Registers the {@code hprof_field(data, fieldType, fieldOffset, fieldSize)} function, which
+     * the FieldValues view needs, on a connection to a database written with
+     * {@link FieldStorage#BLOB}.  SQLite functions live in the connection, not the database, so
+     * every connection that reads the view must register it.
+     */
+    public static void registerFunctions(Connection connection) throws SQLException {
+        org.sqlite.Function.create(connection, "hprof_field", new FieldDecoder());
+    }
+
+    /* Decodes one big-endian field value from a packed InstanceData BLOB. */
+    private static class FieldDecoder extends org.sqlite.Function {
+        @Override
+        protected void xFunc() throws SQLException {
+            if (args() != 4) {
+                throw new SQLException("hprof_field takes 4 arguments");
+            }
+            byte[] data = value_blob(0);
+            Type type = Type.valueOf(value_text(1));
+            int offset = value_int(2);
+            int size = value_int(3);
+            if (data == null || offset < 0 || offset + size > data.length) {
+                result();
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            switch (type) {
+                case OBJ:
+                    result(size == 4 ? Integer.toUnsignedLong(buf.getInt(offset))
+                            : buf.getLong(offset));
+                    break;
+                case BOOL:
+                    result(data[offset] != 0 ? 1 : 0);
+                    break;
+                case CHAR:
+                    result(String.valueOf(buf.getChar(offset)));
+                    break;
+                case FLOAT:
+                    result(buf.getFloat(offset));
+                    break;
+                case DOUBLE:
+                    result(buf.getDouble(offset));
+                    break;
+                case BYTE:
+                    result(data[offset]);
+                    break;
+                case SHORT:
+                    result(buf.getShort(offset));
+                    break;
+                case INT:
+                    result(buf.getInt(offset));
+                    break;
+                case LONG:
+                    result(buf.getLong(offset));
+                    break;
+            }
+        }
+    }
+
+    /* Builds the secondary indexes of the bulk-load schema, after all rows are in. */
+    private void createIndexes() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS Objects_classObjId ON Objects (classObjId)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS Fields_objId ON Fields (objId)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS StaticFields_classObjId ON StaticFields (classObjId)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS Arrays_elemClassObjId ON Arrays (elemClassObjId)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS ObjectArrayElements_elementObjId ON ObjectArrayElements (elementObjId)");
+            if (!settings.withoutRowid) {
+                stmt.execute("CREATE INDEX IF NOT EXISTS ObjectArrayElements_arrayId ON ObjectArrayElements (arrayId)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS Constants_classObjId ON Constants (classObjId)");
+            }
+        }
+        connection.commit();
+    }
+
     private void setupDatabaseProperties() throws SQLException {
         try (Statement stmt = connection.createStatement()) {
             stmt.execute("PRAGMA synchronous = OFF");
@@ -180,36 +434,198 @@ public class SQLiteHandler extends NullRecordHandler {
         }
     }
 
+    private void prepareStatements() throws SQLException {
+        // the composite keys are only declared by the bulk-load schema's WITHOUT ROWID tables
+        int compositeKey = settings.withoutRowid ? 2 : 0;
+        insertString = prepare("INSERT INTO Strings (id, data) VALUES (?, ?)", 2, 1);
+        insertClass = prepare("INSERT INTO Classes (classObjId, className, superClassObjId, instanceSize) VALUES (?, ?, ?, ?)", 4, 1);
+        insertConstant = prepare("INSERT INTO Constants (classObjId, constantPoolIndex, constantValue) VALUES (?, ?, ?)", 3, compositeKey);
+        insertStaticField = prepare("INSERT INTO StaticFields (classObjId, fieldName, fieldType, fieldValue) VALUES (?, ?, ?, ?)", 4, 0);
+        insertObject = prepare("INSERT INTO Objects (objId, classObjId, stackTraceSerialNum) VALUES (?, ?, ?)", 3, 1);
+        insertField = prepare("INSERT INTO Fields (objId, fieldName, fieldType, fieldValue) VALUES (?, ?, ?, ?)", 4, 0);
+        insertArray = prepare("INSERT INTO Arrays (arrayId, elemClassObjId, length, elemType) VALUES (?, ?, ?, ?)", 4, 1);
+        insertArrayElement = prepare("INSERT INTO ObjectArrayElements (arrayId, elementIndex, elementObjId) VALUES (?, ?, ?)", 3, compositeKey);
+        tables = new Table[] {insertString, insertClass, insertConstant, insertStaticField,
+                insertObject, insertField, insertArray, insertArrayElement};
+        if (settings.fieldStorage == FieldStorage.BLOB) {
+            insertInstanceData = prepare("INSERT INTO InstanceData (objId, data) VALUES (?, ?)", 2, 1);
+            insertClassField = prepare("INSERT INTO ClassFields (classObjId, fieldIndex, fieldName, fieldType, fieldOffset, fieldSize) VALUES (?, ?, ?, ?, ?, ?)", 6, 2);
+            tables = Arrays.copyOf(tables, tables.length + 2);
+            tables[tables.length - 2] = insertInstanceData;
+            tables[tables.length - 1] = insertClassField;
+        }
+    }
+
+    private Table prepare(String sql, int numColumns, int numKeyColumns) throws SQLException {
+        Table table = new Table(connection.prepareStatement(sql), numColumns, numKeyColumns);
+        table.pending = new RowBatch(table, settings.batchSize);
+        return table;
+    }
+
+    /* Adds a row to the table's batch, and hands the batch to the writer once it is full. */
+    private void addRow(Table table, Object... values) {
+        RowBatch batch = table.pending;
+        System.arraycopy(values, 0, batch.values, batch.rows * table.numColumns,
+                table.numColumns);
+        if (++batch.rows == settings.batchSize) {
+            submit(batch);
+            table.pending = new RowBatch(table, settings.batchSize);
+        }
+    }
+
+    private void submit(RowBatch batch) {
+        try {
+            // time out now and then to notice if the writer has died
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                checkWriter();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing rows", e);
+        }
+        checkWriter();
+    }
+
+    private void checkWriter() {
+        Throwable failure = writerFailure;
+        if (failure != null) {
+            throw new RuntimeException("Failed to write rows to the database", failure);
+        }
+    }
+
+    /* Hands over the partial batches and waits for the writer to commit everything. */
+    private void flushAndStopWriter() {
+        if (!writer.isAlive()) {
+            checkWriter();
+            return;
+        }
+        for (Table table : tables) {
+            if (table.pending.rows > 0) {
+                submit(table.pending);
+                table.pending = new RowBatch(table, settings.batchSize);
+            }
+        }
+        submit(END_OF_ROWS);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the database writer", e);
+        }
+        checkWriter();
+    }
+
+    /* Body of the writer thread. */
+    private void writeRows() {
+        try {
+            long rowsInTransaction = 0;
+            RowBatch batch;
+            while ((batch = queue.take()) != END_OF_ROWS) {
+                Table table = batch.table;
+                PreparedStatement pstmt = table.statement;
+                int[] order = settings.bulkLoad && table.numKeyColumns > 0
+                        ? keyOrder(batch) : null;
+                for (int i = 0; i < batch.rows; i++) {
+                    int v = (order != null ? order[i] : i) * table.numColumns;
+                    for (int column = 1; column <= table.numColumns; column++) {
+                        pstmt.setObject(column, batch.values[v++]);
+                    }
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                rowsInTransaction += batch.rows;
+                if (rowsInTransaction >= settings.transactionSize) {
+                    connection.commit();
+                    rowsInTransaction = 0;
+                }
+            }
+            connection.commit();
+        } catch (Throwable t) {
+            writerFailure = t;
+            // unblock the callbacks, which notice the failure on their next submit
+            queue.clear();
+        }
+    }
+
+    /*
+     * Returns the rows of a batch in the order of their keys, or null if they are in order
+     * already, as they usually are within a heap dump segment.  The keys are unboxed once into
+     * primitive arrays and the row numbers merge sorted by them.
+     */
+    private static int[] keyOrder(RowBatch batch) {
+        Table table = batch.table;
+        int n = batch.rows;
+        long[][] keys = new long[table.numKeyColumns][n];
+        boolean sorted = true;
+        for (int row = 0, v = 0; row < n; row++, v += table.numColumns) {
+            for (int column = 0; column < keys.length; column++) {
+                keys[column][row] = ((Number) batch.values[v + column]).longValue();
+            }
+            sorted &= row == 0 || compareKeys(keys, row - 1, row) <= 0;
+        }
+        if (sorted) {
+            return null;
+        }
+        int[] order = new int[n];
+        for (int row = 0; row < n; row++) {
+            order[row] = row;
+        }
+        mergeSort(keys, order.clone(), order, 0, n);
+        return order;
+    }
+
+    /* Sorts dest[lo, hi) by key; src holds the same rows on entry and is overwritten. */
+    private static void mergeSort(long[][] keys, int[] src, int[] dest, int lo, int hi) {
+        if (hi - lo < 8) {
+            for (int i = lo + 1; i < hi; i++) {
+                for (int j = i; j > lo && compareKeys(keys, dest[j - 1], dest[j]) > 0; j--) {
+                    int t = dest[j];
+                    dest[j] = dest[j - 1];
+                    dest[j - 1] = t;
+                }
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(keys, dest, src, lo, mid);
+        mergeSort(keys, dest, src, mid, hi);
+        if (compareKeys(keys, src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, lo, dest, lo, hi - lo);
+            return;
+        }
+        for (int i = lo, p = lo, q = mid; i < hi; i++) {
+            if (q >= hi || p < mid && compareKeys(keys, src[p], src[q]) <= 0) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+    }
+
+    private static int compareKeys(long[][] keys, int a, int b) {
+        for (long[] column : keys) {
+            int c = Long.compare(column[a], column[b]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
     /* Handlers for top-level records */
     @Override
-    public void stringInUTF8(long id, String data) {
-        time("stringInUTF8", () -> {
-            stringMap.put(id, data);
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Strings (id, data) VALUES (?, ?)")) {
-                pstmt.setLong(1, id);
-                pstmt.setString(2, data);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert string", e);
-            }
-        });
+    public StringTable stringTable() {
+        return strings;
     }
 
     @Override
     public void loadClass(int classSerialNum, long classObjId,
                           int stackTraceSerialNum, long classNameStringId) {
-        time("loadClass", () -> {
-            String className = stringMap.get(classNameStringId);
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Classes (classObjId, className) VALUES (?, ?)")) {
-                pstmt.setLong(1, classObjId);
-                pstmt.setString(2, className);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert class", e);
-            }
-        });
+        // the row is written with the class dump, or in finished() if there is none
+        String className = strings.get(classNameStringId);
+        if (className != null) {
+            classNames.put(classObjId, className);
+        }
     }
 
     @Override
@@ -218,128 +634,73 @@ public class SQLiteHandler extends NullRecordHandler {
                           long protectionDomainObjId, long reserved1, long reserved2,
                           int instanceSize, Constant[] constants, Static[] statics,
                           InstanceField[] instanceFields) {
-        time("classDump", () -> {
-            classMap.put(classObjId, new ClassInfo(classObjId, superClassObjId, instanceSize, instanceFields));
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "UPDATE Classes SET superClassObjId = ?, instanceSize = ? WHERE classObjId = ?")) {
-                pstmt.setLong(1, superClassObjId);
-                pstmt.setInt(2, instanceSize);
-                pstmt.setLong(3, classObjId);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to update class", e);
-            }
+        addRow(insertClass, classObjId, classNames.remove(classObjId), superClassObjId,
+                instanceSize);
 
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Constants (classObjId, constantPoolIndex, constantValue) VALUES (?, ?, ?)")) {
-                for (Constant constant : constants) {
-                    pstmt.setLong(1, classObjId);
-                    pstmt.setShort(2, constant.constantPoolIndex);
-                    pstmt.setString(3, constant.value.toString());
-                    pstmt.addBatch();
-                }
-                pstmt.executeBatch();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert constants", e);
-            }
+        for (Constant constant : constants) {
+            addRow(insertConstant, classObjId, constant.constantPoolIndex,
+                    constant.value.toString());
+        }
 
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO StaticFields (classObjId, fieldName, fieldType, fieldValue) VALUES (?, ?, ?, ?)")) {
-                for (Static field : statics) {
-                    pstmt.setLong(1, classObjId);
-                    pstmt.setString(2, stringMap.get(field.staticFieldNameStringId));
-                    pstmt.setString(3, field.value.type.name());
-                    pstmt.setString(4, field.value.toString());
-                    pstmt.addBatch();
-                }
-                pstmt.executeBatch();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert static fields", e);
-            }
-        });
+        for (Static field : statics) {
+            addRow(insertStaticField, classObjId, strings.get(field.staticFieldNameStringId),
+                    field.value.type.name(), field.value.toString());
+        }
     }
 
     @Override
-    public void instanceDump(long objId, int stackTraceSerialNum, long classObjId, Value<?>[] instanceFieldValues) {
-        time("instanceDump", () -> {
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Objects (objId, classObjId, stackTraceSerialNum) VALUES (?, ?, ?)")) {
-                pstmt.setLong(1, objId);
-                pstmt.setLong(2, classObjId);
-                pstmt.setInt(3, stackTraceSerialNum);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert object", e);
-            }
-
-            // Get the instance fields for the class
-            InstanceField[] instanceFields = classMap.get(classObjId).instanceFields;
-
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Fields (objId, fieldName, fieldType, fieldValue) VALUES (?, ?, ?, ?)")) {
-                for (int i = 0; i < instanceFields.length; i++) {
-                    InstanceField field = instanceFields[i];
-                    String fieldName = stringMap.get(field.fieldNameStringId);
-                    Value<?> value = instanceFieldValues[i];
-                    pstmt.setLong(1, objId);
-                    pstmt.setString(2, fieldName);
-                    pstmt.setString(3, field.type.name());
-                    pstmt.setString(4, value.toString());
-                    pstmt.addBatch();
+    public void instanceDump(InstanceView instance) {
+        long objId = instance.getObjId();
+        addRow(insertObject, objId, instance.getClassObjId(),
+                instance.getStackTraceSerialNum());
+
+        // The layout includes inherited fields, in the same order as the values
+        ClassLayout layout = instance.getLayout();
+
+        if (settings.fieldStorage == FieldStorage.BLOB) {
+            if (classFieldsWritten.put(layout.getClassObjId(), layout) == null) {
+                for (int i = 0; i < layout.getNumFields(); i++) {
+                    Type type = layout.getFieldType(i);
+                    int size = type == Type.OBJ ? layout.getIdSize() : type.sizeInBytes();
+                    addRow(insertClassField, layout.getClassObjId(), i,
+                            strings.get(layout.getFieldNameStringId(i)), type.name(),
+                            layout.getFieldOffset(i), size);
                 }
-                pstmt.executeBatch();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert fields", e);
             }
-        });
+            addRow(insertInstanceData, objId, instance.copyPackedValues());
+            return;
+        }
+
+        for (int i = 0; i < layout.getNumFields(); i++) {
+            String fieldName = strings.get(layout.getFieldNameStringId(i));
+            addRow(insertField, objId, fieldName, layout.getFieldType(i).name(),
+                    instance.getValue(i).toString());
+        }
     }
 
 
     @Override
     public void objArrayDump(long objId, int stackTraceSerialNum,
                              long elemClassObjId, long[] elems) {
-        time("objArrayDump", () -> {
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Arrays (arrayId, elemClassObjId, length, elemType) VALUES (?, ?, ?, ?)")) {
-                pstmt.setLong(1, objId);
-                pstmt.setLong(2, elemClassObjId);
-                pstmt.setInt(3, elems.length);
-                pstmt.setString(4, Type.OBJ.name());
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert array", e);
-            }
+        addRow(insertArray, objId, elemClassObjId, elems.length, Type.OBJ.name());
 
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO ObjectArrayElements (arrayId, elementIndex, elementObjId) VALUES (?, ?, ?)")) {
-                for (int i = 0; i < elems.length; i++) {
-                    pstmt.setLong(1, objId);
-                    pstmt.setInt(2, i);
-                    pstmt.setLong(3, elems[i]);
-                    pstmt.addBatch();
-                }
-                pstmt.executeBatch();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert object array elements", e);
-            }
-        });
+        for (int i = 0; i < elems.length; i++) {
+            addRow(insertArrayElement, objId, i, elems[i]);
+        }
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum,
+                                     byte elemType, int length) {
+        Type type = Type.hprofTypeToEnum(elemType);
+        // Primitive arrays don't have an element class
+        addRow(insertArray, objId, null, length, type.name());
     }
 
     @Override
     public void primArrayDump(long objId, int stackTraceSerialNum,
                               byte elemType, Value<?>[] elems) {
-        time("primArrayDump", () -> {
-            Type type = Type.hprofTypeToEnum(elemType);
-            try (PreparedStatement pstmt = connection.prepareStatement(
-                    "INSERT INTO Arrays (arrayId, elemClassObjId, length, elemType) VALUES (?, ?, ?, ?)")) {
-                pstmt.setLong(1, objId);
-                pstmt.setNull(2, Types.BIGINT); // Primitive arrays don't have an element class
-                pstmt.setInt(3, elems.length);
-                pstmt.setString(4, type.name());
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                throw new RuntimeException("Failed to insert array", e);
-            }
+        primArrayDumpSummary(objId, stackTraceSerialNum, elemType, elems.length);
 
 // Lets ignore primitive arrays for now...
 //            try (PreparedStatement pstmt = connection.prepareStatement(
@@ -354,7 +715,23 @@ public class SQLiteHandler extends NullRecordHandler {
 //            } catch (SQLException e) {
 //                throw new RuntimeException("Failed to insert primitive array elements", e);
 //            }
-        });
+    }
+
+    @Override
+    public void finished() {
+        strings.forEach((id, data) -> addRow(insertString, id, data));
+        // loaded classes that had no class dump
+        classNames.forEach((classObjId, className) ->
+                addRow(insertClass, classObjId, className, null, null));
+        classNames.clear();
+        flushAndStopWriter();
+        if (settings.bulkLoad) {
+            try {
+                createIndexes();
+            } catch (SQLException e) {
+                throw new RuntimeException("Failed to create indexes", e);
+            }
+        }
     }
 
     /* Utility methods */
@@ -362,12 +739,17 @@ public class SQLiteHandler extends NullRecordHandler {
     public void close() {
         try {
             if (connection != null) {
-                connection.close();
+                try {
+                    flushAndStopWriter();
+                } finally {
+                    for (Table table : tables) {
+                        table.statement.close();
+                    }
+                    connection.close();
+                }
             }
         } catch (SQLException e) {
             throw new RuntimeException("Failed to close database connection", e);
         }
-        long ns = System.nanoTime() - startTimeNanos;
-        System.out.println("Total duration: " + ns + " ns");
     }
 }
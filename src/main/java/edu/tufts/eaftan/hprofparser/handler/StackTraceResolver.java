@@ -0,0 +1,436 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import edu.tufts.eaftan.hprofparser.parser.LongIntMap;
+import edu.tufts.eaftan.hprofparser.parser.LongObjectMap;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Keeps the stack frames and stack traces of a dump, so that the stack trace serial number
+ * carried by classes, objects and threads can be resolved to frames.  Frames and traces are
+ * stored in primitive arrays indexed by their ids and serial numbers, and traces with the same
+ * frames share storage.  {@link Frame}s are only created when a trace is resolved.
+ * <p>
+ * Optionally, it also sums up the objects allocated at each distinct stack trace, which tells
+ * where the heap was allocated in dumps taken with allocation tracking (by the hprof agent with
+ * {@code depth} greater than 0).  Sizes are as dumped: the field data of instances and the
+ * elements of arrays, without object headers.  Dumps written by the HotSpot heap dumper give
+ * every object the same empty trace.
+ * <p>
+ * Not thread-safe; don't use it with {@code HprofParser.setParallelism} when aggregating
+ * allocations.
+ */
+public class StackTraceResolver extends NullRecordHandler {
+
+    /** One frame of a resolved stack trace. */
+    public static class Frame {
+        /** Locations that are not line numbers. */
+        public static final int NO_LINE_INFO = 0;
+        public static final int UNKNOWN_LOCATION = -1;
+        public static final int COMPILED_METHOD = -2;
+        public static final int NATIVE_METHOD = -3;
+
+        /** The class name as dumped, or null if its class wasn't loaded in the dump. */
+        public final String className;
+        public final String methodName;
+        public final String methodSignature;
+        public final String sourceFile;
+        /** A line number if positive, and otherwise one of the constants above. */
+        public final int location;
+
+        public Frame(String className, String methodName, String methodSignature,
+                     String sourceFile, int location) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodSignature = methodSignature;
+            this.sourceFile = sourceFile;
+            this.location = location;
+        }
+
+        /** Formats the frame like {@code Throwable.printStackTrace}. */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (className != null) {
+                sb.append(className.replace('/', '.')).append('.');
+            }
+            sb.append(methodName).append('(');
+            if (location == NATIVE_METHOD) {
+                sb.append("Native Method");
+            } else if (location == COMPILED_METHOD) {
+                sb.append("Compiled Code");
+            } else if (sourceFile == null) {
+                sb.append("Unknown Source");
+            } else {
+                sb.append(sourceFile);
+                if (location > 0) {
+                    sb.append(':').append(location);
+                }
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /** The objects allocated at one stack trace, summed over every trace with the same frames. */
+    public static class AllocationSite {
+        /** The serial number of one of the traces; see {@link StackTraceResolver#getFrames}. */
+        public final int stackTraceSerialNum;
+        public final long objects;
+        public final long bytes;
+
+        public AllocationSite(int stackTraceSerialNum, long objects, long bytes) {
+            this.stackTraceSerialNum = stackTraceSerialNum;
+            this.objects = objects;
+            this.bytes = bytes;
+        }
+    }
+
+    private final boolean aggregateAllocations;
+    private int idSize;
+
+    private final LongObjectMap<String> stringMap = new LongObjectMap<>();
+    private final LongObjectMap<String> classNamesBySerial = new LongObjectMap<>();
+
+    // frames, by index
+    private final LongIntMap frameIndexes = new LongIntMap();
+    private long[] frameMethodNameIds = new long[256];
+    private long[] frameMethodSigIds = new long[256];
+    private long[] frameSourceFileIds = new long[256];
+    private int[] frameClassSerials = new int[256];
+    private int[] frameLocations = new int[256];
+    private int numFrames;
+
+    // traces, by index; each points at a distinct trace
+    private final LongIntMap traceIndexes = new LongIntMap();
+    private int[] traceThreadSerials = new int[256];
+    private int[] traceDistinct = new int[256];
+    private int numTraces;
+
+    // distinct traces: the frame ids of distinct trace i are pool[offsets[i]..offsets[i + 1])
+    private long[] distinctFramePool = new long[1024];
+    private int[] distinctOffsets = new int[257];
+    private int numDistinct;
+    private int[] distinctTable = newTable(512);    // open addressing, -1 for empty
+
+    // allocations, by stack trace serial number
+    private final LongIntMap allocIndexes = new LongIntMap();
+    private int[] allocSerials = new int[256];
+    private long[] allocObjects = new long[256];
+    private long[] allocBytes = new long[256];
+    private int numAllocSerials;
+
+    private List<AllocationSite> allocationSites;
+
+    public StackTraceResolver() {
+        this(false);
+    }
+
+    /**
+     * @param aggregateAllocations whether to sum up the objects allocated at each stack trace,
+     *     for {@link #getAllocationSites}; this reads the heap dump records as well
+     */
+    public StackTraceResolver(boolean aggregateAllocations) {
+        this.aggregateAllocations = aggregateAllocations;
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        EnumSet<RecordKind> kinds = EnumSet.of(RecordKind.STRING_IN_UTF8, RecordKind.LOAD_CLASS,
+                RecordKind.STACK_FRAME, RecordKind.STACK_TRACE);
+        if (aggregateAllocations) {
+            kinds.addAll(EnumSet.of(RecordKind.INSTANCE_DUMP_SUMMARY,
+                    RecordKind.OBJ_ARRAY_DUMP_SUMMARY, RecordKind.PRIM_ARRAY_DUMP_SUMMARY));
+        }
+        return kinds;
+    }
+
+    /** Returns the number of stack trace records. */
+    public int getNumStackTraces() {
+        return numTraces;
+    }
+
+    /** Returns the number of stack traces with different frames. */
+    public int getNumDistinctStackTraces() {
+        return numDistinct;
+    }
+
+    /** Returns the number of stack frame records. */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** Returns whether there is a stack trace with this serial number. */
+    public boolean hasStackTrace(int stackTraceSerialNum) {
+        return traceIndexes.containsKey(stackTraceSerialNum);
+    }
+
+    /** Returns the serial number of the trace's thread, or -1 if there is no such trace. */
+    public int getThreadSerialNum(int stackTraceSerialNum) {
+        int trace = traceIndexes.get(stackTraceSerialNum);
+        return trace < 0 ? -1 : traceThreadSerials[trace];
+    }
+
+    /**
+     * Returns the frames of a stack trace, innermost first, or an empty list if there is no
+     * such trace.  Frames that are missing from the dump are returned with a placeholder method
+     * name.
+     */
+    public List<Frame> getFrames(int stackTraceSerialNum) {
+        int trace = traceIndexes.get(stackTraceSerialNum);
+        if (trace < 0) {
+            return Collections.emptyList();
+        }
+        int distinct = traceDistinct[trace];
+        int start = distinctOffsets[distinct];
+        int end = distinctOffsets[distinct + 1];
+        List<Frame> frames = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            frames.add(resolveFrame(distinctFramePool[i]));
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the objects allocated at each distinct stack trace, most bytes first, once the
+     * parser has finished.  Objects whose stack trace serial number has no trace get a site of
+     * their own per serial number.
+     */
+    public List<AllocationSite> getAllocationSites() {
+        if (!aggregateAllocations) {
+            throw new IllegalStateException("Allocations are not being aggregated");
+        }
+        if (allocationSites == null) {
+            throw new IllegalStateException("The heap dump has not been parsed yet");
+        }
+        return allocationSites;
+    }
+
+    /** Returns a string from the dump's UTF-8 string records, or null. */
+    String getString(long id) {
+        return stringMap.get(id);
+    }
+
+    private Frame resolveFrame(long frameId) {
+        int frame = frameIndexes.get(frameId);
+        if (frame < 0) {
+            return new Frame(null, String.format("<unknown frame 0x%x>", frameId), null, null,
+                    Frame.UNKNOWN_LOCATION);
+        }
+        return new Frame(classNamesBySerial.get(frameClassSerials[frame]),
+                stringMap.get(frameMethodNameIds[frame]),
+                stringMap.get(frameMethodSigIds[frame]),
+                stringMap.get(frameSourceFileIds[frame]),
+                frameLocations[frame]);
+    }
+
+    @Override
+    public void header(String format, int idSize, long time) {
+        this.idSize = idSize;
+    }
+
+    @Override
+    public void stringInUTF8(long id, String data) {
+        stringMap.put(id, data);
+    }
+
+    @Override
+    public void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum,
+                          long classNameStringId) {
+        String className = stringMap.get(classNameStringId);
+        if (className != null) {
+            classNamesBySerial.put(classSerialNum, className);
+        }
+    }
+
+    @Override
+    public void stackFrame(long stackFrameId, long methodNameStringId, long methodSigStringId,
+                           long sourceFileNameStringId, int classSerialNum, int location) {
+        if (frameIndexes.containsKey(stackFrameId)) {
+            return;
+        }
+        if (numFrames == frameLocations.length) {
+            int newSize = numFrames * 2;
+            frameMethodNameIds = Arrays.copyOf(frameMethodNameIds, newSize);
+            frameMethodSigIds = Arrays.copyOf(frameMethodSigIds, newSize);
+            frameSourceFileIds = Arrays.copyOf(frameSourceFileIds, newSize);
+            frameClassSerials = Arrays.copyOf(frameClassSerials, newSize);
+            frameLocations = Arrays.copyOf(frameLocations, newSize);
+        }
+        frameMethodNameIds[numFrames] = methodNameStringId;
+        frameMethodSigIds[numFrames] = methodSigStringId;
+        frameSourceFileIds[numFrames] = sourceFileNameStringId;
+        frameClassSerials[numFrames] = classSerialNum;
+        frameLocations[numFrames] = location;
+        frameIndexes.put(stackFrameId, numFrames++);
+    }
+
+    @Override
+    public void stackTrace(int stackTraceSerialNum, int threadSerialNum, int numFrames,
+                           long[] stackFrameIds) {
+        if (traceIndexes.containsKey(stackTraceSerialNum)) {
+            return;
+        }
+        if (numTraces == traceDistinct.length) {
+            int newSize = numTraces * 2;
+            traceThreadSerials = Arrays.copyOf(traceThreadSerials, newSize);
+            traceDistinct = Arrays.copyOf(traceDistinct, newSize);
+        }
+        traceThreadSerials[numTraces] = threadSerialNum;
+        traceDistinct[numTraces] = distinctTrace(stackFrameIds);
+        traceIndexes.put(stackTraceSerialNum, numTraces++);
+    }
+
+    @Override
+    public void instanceDumpSummary(long objId, int stackTraceSerialNum, long classObjId,
+                                    int numBytes) {
+        addAllocation(stackTraceSerialNum, numBytes);
+    }
+
+    @Override
+    public void objArrayDumpSummary(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                    int length) {
+        addAllocation(stackTraceSerialNum, (long) length * idSize);
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                     int length) {
+        addAllocation(stackTraceSerialNum,
+                (long) length * Type.hprofTypeToEnum(elemType).sizeInBytes());
+    }
+
+    @Override
+    public void finished() {
+        if (!aggregateAllocations) {
+            return;
+        }
+        // merge the serial numbers of traces with the same frames
+        long[] distinctObjects = new long[numDistinct];
+        long[] distinctBytes = new long[numDistinct];
+        int[] distinctSerials = new int[numDistinct];
+        List<AllocationSite> sites = new ArrayList<>();
+        for (int i = 0; i < numAllocSerials; i++) {
+            int trace = traceIndexes.get(allocSerials[i]);
+            if (trace < 0) {
+                sites.add(new AllocationSite(allocSerials[i], allocObjects[i], allocBytes[i]));
+                continue;
+            }
+            int distinct = traceDistinct[trace];
+            if (distinctObjects[distinct] == 0) {
+                distinctSerials[distinct] = allocSerials[i];
+            }
+            distinctObjects[distinct] += allocObjects[i];
+            distinctBytes[distinct] += allocBytes[i];
+        }
+        for (int d = 0; d < numDistinct; d++) {
+            if (distinctObjects[d] > 0) {
+                sites.add(new AllocationSite(distinctSerials[d], distinctObjects[d],
+                        distinctBytes[d]));
+            }
+        }
+        sites.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        allocationSites = Collections.unmodifiableList(sites);
+    }
+
+    private void addAllocation(int stackTraceSerialNum, long bytes) {
+        int index = allocIndexes.get(stackTraceSerialNum);
+        if (index < 0) {
+            if (numAllocSerials == allocSerials.length) {
+                int newSize = numAllocSerials * 2;
+                allocSerials = Arrays.copyOf(allocSerials, newSize);
+                allocObjects = Arrays.copyOf(allocObjects, newSize);
+                allocBytes = Arrays.copyOf(allocBytes, newSize);
+            }
+            index = numAllocSerials++;
+            allocSerials[index] = stackTraceSerialNum;
+            allocIndexes.put(stackTraceSerialNum, index);
+        }
+        allocObjects[index]++;
+        allocBytes[index] += bytes;
+    }
+
+    /* Returns the index of the distinct trace with these frames, adding it if it's new. */
+    private int distinctTrace(long[] frameIds) {
+        int hash = hash(frameIds, 0, frameIds.length);
+        int mask = distinctTable.length - 1;
+        int slot = hash & mask;
+        int distinct;
+        while ((distinct = distinctTable[slot]) >= 0) {
+            if (sameFrames(distinct, frameIds)) {
+                return distinct;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (numDistinct + 1 == distinctOffsets.length) {
+            distinctOffsets = Arrays.copyOf(distinctOffsets, distinctOffsets.length * 2);
+        }
+        int start = distinctOffsets[numDistinct];
+        if (start + frameIds.length > distinctFramePool.length) {
+            distinctFramePool = Arrays.copyOf(distinctFramePool,
+                    Math.max(start + frameIds.length, distinctFramePool.length * 2));
+        }
+        System.arraycopy(frameIds, 0, distinctFramePool, start, frameIds.length);
+        distinctOffsets[numDistinct + 1] = start + frameIds.length;
+        distinctTable[slot] = numDistinct;
+        if (++numDistinct * 2 > distinctTable.length) {
+            rehash();
+        }
+        return numDistinct - 1;
+    }
+
+    private boolean sameFrames(int distinct, long[] frameIds) {
+        int start = distinctOffsets[distinct];
+        int end = distinctOffsets[distinct + 1];
+        return Arrays.equals(distinctFramePool, start, end, frameIds, 0, frameIds.length);
+    }
+
+    private void rehash() {
+        int[] table = newTable(distinctTable.length * 2);
+        int mask = table.length - 1;
+        for (int d = 0; d < numDistinct; d++) {
+            int slot = hash(distinctFramePool, distinctOffsets[d], distinctOffsets[d + 1]) & mask;
+            while (table[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = d;
+        }
+        distinctTable = table;
+    }
+
+    private static int hash(long[] frameIds, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + Long.hashCode(frameIds[i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int[] newTable(int size) {
+        int[] table = new int[size];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.handler;
+
+import edu.tufts.eaftan.hprofparser.analysis.DominatorTree;
+import edu.tufts.eaftan.hprofparser.analysis.ReferenceGraph;
+import edu.tufts.eaftan.hprofparser.parser.LongIntMap;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Links the threads of a dump to their thread objects, their stack traces and the objects their
+ * stack frames hold.  Threads are known from {@code ROOT_THREAD_OBJ} records, which every dump
+ * has, and from {@code START_THREAD} records, which only the hprof agent writes and which give
+ * the thread's name.  Local objects come from the {@code ROOT_JAVA_FRAME}, {@code ROOT_JNI_LOCAL},
+ * {@code ROOT_NATIVE_STACK} and {@code ROOT_THREAD_BLOCK} records.  Only these top-level and root
+ * records are decoded.
+ * <p>
+ * As a {@link StackTraceResolver}, it also resolves the threads' stack traces.  Given the
+ * {@link DominatorTree} of the same dump, it estimates how much of the heap each thread retains,
+ * which finds the thread responsible when a runaway request fills the heap.
+ * <p>
+ * The root callbacks are synchronized, so it can be used with
+ * {@code HprofParser.setParallelism}, unless allocations are being aggregated.
+ */
+public class ThreadModel extends StackTraceResolver {
+
+    /** One thread and the objects its stack holds. */
+    public static class ThreadInfo {
+        public final int threadSerialNum;
+        /** The id of the {@code java.lang.Thread} object, or 0 if the dump doesn't have it. */
+        public final long threadObjId;
+        /** The thread's stack trace at the time of the dump, or 0 if unknown. */
+        public final int stackTraceSerialNum;
+        /** The thread's name, if the dump has a {@code START_THREAD} record for it. */
+        public final String name;
+        public final String groupName;
+        /** Whether the dump has an {@code END_THREAD} record for the thread. */
+        public final boolean ended;
+        /** The objects held by the thread's stack, in dump order. */
+        public final long[] localObjIds;
+        /**
+         * For each local object, the index of its frame in the stack trace, innermost first, or -1
+         * if it is held by a native stack or the thread block rather than by a Java frame.
+         */
+        public final int[] localFrameNums;
+
+        public ThreadInfo(int threadSerialNum, long threadObjId, int stackTraceSerialNum,
+                          String name, String groupName, boolean ended, long[] localObjIds,
+                          int[] localFrameNums) {
+            this.threadSerialNum = threadSerialNum;
+            this.threadObjId = threadObjId;
+            this.stackTraceSerialNum = stackTraceSerialNum;
+            this.name = name;
+            this.groupName = groupName;
+            this.ended = ended;
+            this.localObjIds = localObjIds;
+            this.localFrameNums = localFrameNums;
+        }
+    }
+
+    // threads, by index, guarded by this until finished()
+    private final LongIntMap threadIndexes = new LongIntMap();
+    private int[] threadSerials = new int[64];
+    private long[] threadObjIds = new long[64];
+    private int[] threadTraceSerials = new int[64];
+    private long[] threadNameIds = new long[64];
+    private long[] threadGroupNameIds = new long[64];
+    private boolean[] threadEnded = new boolean[64];
+    private int numThreads;
+
+    // objects held by thread stacks, guarded by this until finished()
+    private long[] localObjIds = new long[256];
+    private int[] localThreadSerials = new int[256];
+    private int[] localFrameNums = new int[256];
+    private int numLocals;
+
+    private List<ThreadInfo> threads;
+
+    public ThreadModel() {
+        this(false);
+    }
+
+    /**
+     * @param aggregateAllocations whether to sum up the objects allocated at each stack trace;
+     *     see {@link StackTraceResolver#StackTraceResolver(boolean)}
+     */
+    public ThreadModel(boolean aggregateAllocations) {
+        super(aggregateAllocations);
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        EnumSet<RecordKind> kinds = super.recordKinds();
+        kinds.add(RecordKind.THREAD);
+        kinds.add(RecordKind.GC_ROOT);
+        return kinds;
+    }
+
+    /** Returns the threads in ascending serial number order, once the parser has finished. */
+    public List<ThreadInfo> getThreads() {
+        if (threads == null) {
+            throw new IllegalStateException("The heap dump has not been parsed yet");
+        }
+        return threads;
+    }
+
+    /** Returns the thread with a serial number, or null. */
+    public ThreadInfo getThread(int threadSerialNum) {
+        for (ThreadInfo thread : getThreads()) {
+            if (thread.threadSerialNum == threadSerialNum) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns how much of the heap a thread retains: the retained sizes of its thread object and
+     * of the distinct objects its stack holds.  These are all GC roots, so in a dominator tree
+     * built from a {@code GraphBuildingHandler} graph their retained sets don't overlap.  Objects
+     * reachable only from several of them are not counted, so this is a lower bound.  An object
+     * held by several threads is counted for each.
+     */
+    public long getRetainedSize(ThreadInfo thread, DominatorTree tree) {
+        ReferenceGraph graph = tree.getGraph();
+        long[] objIds = Arrays.copyOf(thread.localObjIds, thread.localObjIds.length + 1);
+        objIds[objIds.length - 1] = thread.threadObjId;
+        Arrays.sort(objIds);
+        long retained = 0;
+        for (int i = 0; i < objIds.length; i++) {
+            if (objIds[i] == 0 || (i > 0 && objIds[i] == objIds[i - 1])) {
+                continue;
+            }
+            int node = graph.indexOf(objIds[i]);
+            // skip objects inside another's retained set, which is counted already or not ours
+            if (node >= 0 && tree.getImmediateDominator(node) == DominatorTree.ROOT) {
+                retained += tree.getRetainedSize(node);
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Prints each thread with its stack trace and the number of objects each frame holds, like a
+     * thread dump.  With a dominator tree, threads are printed by decreasing retained size, and
+     * otherwise by serial number.
+     */
+    public void printThreads(PrintStream out, DominatorTree tree) {
+        List<ThreadInfo> threads = getThreads();
+        long[] retained = new long[threads.size()];
+        Integer[] order = new Integer[threads.size()];
+        for (int t = 0; t < order.length; t++) {
+            order[t] = t;
+            if (tree != null) {
+                retained[t] = getRetainedSize(threads.get(t), tree);
+            }
+        }
+        if (tree != null) {
+            Arrays.sort(order, (a, b) -> Long.compare(retained[b], retained[a]));
+        }
+
+        for (int t : order) {
+            ThreadInfo thread = threads.get(t);
+            out.printf("\"%s\" serial=%d object=0x%x locals=%d",
+                    thread.name != null ? thread.name : "<unnamed>", thread.threadSerialNum,
+                    thread.threadObjId, thread.localObjIds.length);
+            if (tree != null) {
+                out.printf(" retained=%d", retained[t]);
+            }
+            out.println();
+
+            List<Frame> frames = getFrames(thread.stackTraceSerialNum);
+            int[] localsPerFrame = new int[frames.size()];
+            int otherLocals = 0;
+            for (int frameNum : thread.localFrameNums) {
+                if (frameNum >= 0 && frameNum < frames.size()) {
+                    localsPerFrame[frameNum]++;
+                } else {
+                    otherLocals++;
+                }
+            }
+            for (int f = 0; f < frames.size(); f++) {
+                out.print("    at " + frames.get(f));
+                if (localsPerFrame[f] > 0) {
+                    out.print(" [" + localsPerFrame[f] + " locals]");
+                }
+                out.println();
+            }
+            if (otherLocals > 0) {
+                out.println("    [" + otherLocals + " locals outside Java frames]");
+            }
+            out.println();
+        }
+    }
+
+    @Override
+    public synchronized void startThread(int threadSerialNum, long threadObjectId,
+                                         int stackTraceSerialNum, long threadNameStringId,
+                                         long threadGroupNameId, long threadParentGroupNameId) {
+        int index = threadIndex(threadSerialNum);
+        threadObjIds[index] = threadObjectId;
+        threadTraceSerials[index] = stackTraceSerialNum;
+        threadNameIds[index] = threadNameStringId;
+        threadGroupNameIds[index] = threadGroupNameId;
+    }
+
+    @Override
+    public synchronized void endThread(int threadSerialNum) {
+        threadEnded[threadIndex(threadSerialNum)] = true;
+    }
+
+    @Override
+    public synchronized void rootThreadObj(long objId, int threadSerialNum,
+                                           int stackTraceSerialNum) {
+        int index = threadIndex(threadSerialNum);
+        threadObjIds[index] = objId;
+        // the trace at the time of the dump, rather than when the thread started
+        threadTraceSerials[index] = stackTraceSerialNum;
+    }
+
+    @Override
+    public synchronized void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
+        addLocal(objId, threadSerialNum, frameNum);
+    }
+
+    @Override
+    public synchronized void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
+        addLocal(objId, threadSerialNum, frameNum);
+    }
+
+    @Override
+    public synchronized void rootNativeStack(long objId, int threadSerialNum) {
+        addLocal(objId, threadSerialNum, -1);
+    }
+
+    @Override
+    public synchronized void rootThreadBlock(long objId, int threadSerialNum) {
+        addLocal(objId, threadSerialNum, -1);
+    }
+
+    @Override
+    public synchronized void finished() {
+        super.finished();
+        for (int i = 0; i < numLocals; i++) {
+            threadIndex(localThreadSerials[i]);
+        }
+
+        // group the locals by thread, keeping dump order
+        int[] offsets = new int[numThreads + 1];
+        for (int i = 0; i < numLocals; i++) {
+            offsets[threadIndexes.get(localThreadSerials[i]) + 1]++;
+        }
+        for (int t = 0; t < numThreads; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        long[][] objIds = new long[numThreads][];
+        int[][] frameNums = new int[numThreads][];
+        for (int t = 0; t < numThreads; t++) {
+            objIds[t] = new long[offsets[t + 1] - offsets[t]];
+            frameNums[t] = new int[objIds[t].length];
+        }
+        int[] filled = new int[numThreads];
+        for (int i = 0; i < numLocals; i++) {
+            int t = threadIndexes.get(localThreadSerials[i]);
+            objIds[t][filled[t]] = localObjIds[i];
+            frameNums[t][filled[t]++] = localFrameNums[i];
+        }
+
+        List<ThreadInfo> list = new ArrayList<>(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            list.add(new ThreadInfo(threadSerials[t], threadObjIds[t], threadTraceSerials[t],
+                    getString(threadNameIds[t]), getString(threadGroupNameIds[t]),
+                    threadEnded[t], objIds[t], frameNums[t]));
+        }
+        list.sort((a, b) -> Integer.compare(a.threadSerialNum, b.threadSerialNum));
+        threads = Collections.unmodifiableList(list);
+    }
+
+    private void addLocal(long objId, int threadSerialNum, int frameNum) {
+        if (numLocals == localObjIds.length) {
+            int newSize = numLocals * 2;
+            localObjIds = Arrays.copyOf(localObjIds, newSize);
+            localThreadSerials = Arrays.copyOf(localThreadSerials, newSize);
+            localFrameNums = Arrays.copyOf(localFrameNums, newSize);
+        }
+        localObjIds[numLocals] = objId;
+        localThreadSerials[numLocals] = threadSerialNum;
+        localFrameNums[numLocals++] = frameNum;
+    }
+
+    private int threadIndex(int threadSerialNum) {
+        int index = threadIndexes.get(threadSerialNum);
+        if (index < 0) {
+            if (numThreads == threadSerials.length) {
+                int newSize = numThreads * 2;
+                threadSerials = Arrays.copyOf(threadSerials, newSize);
+                threadObjIds = Arrays.copyOf(threadObjIds, newSize);
+                threadTraceSerials = Arrays.copyOf(threadTraceSerials, newSize);
+                threadNameIds = Arrays.copyOf(threadNameIds, newSize);
+                threadGroupNameIds = Arrays.copyOf(threadGroupNameIds, newSize);
+                threadEnded = Arrays.copyOf(threadEnded, newSize);
+            }
+            index = numThreads++;
+            threadSerials[index] = threadSerialNum;
+            threadIndexes.put(threadSerialNum, index);
+        }
+        return index;
+    }
+
+}
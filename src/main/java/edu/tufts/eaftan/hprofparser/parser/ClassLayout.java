@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.parser.datastructures.ClassInfo;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.InstanceField;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.util.ArrayList;
+
+/**
+ * The flattened instance field layout of a class: every field an instance carries, including
+ * those inherited from superclasses, with its type and byte offset in the packed field data of
+ * an instance dump record.
+ * <p>
+ * Fields are in record order: the class's own fields first, then its superclass's, and so on up
+ * to {@code java.lang.Object}.  Layouts are immutable and computed once per class by the parser.
+ */
+public final class ClassLayout {
+
+    private final long classObjId;
+    private final int idSize;
+
+    // read directly by InstanceView
+    final Type[] fieldTypes;
+    final long[] fieldNameStringIds;
+    final int[] fieldOffsets;
+    final int fieldsSize;
+
+    private ClassLayout(long classObjId, int idSize, Type[] fieldTypes, long[] fieldNameStringIds,
+                        int[] fieldOffsets, int fieldsSize) {
+        this.classObjId = classObjId;
+        this.idSize = idSize;
+        this.fieldTypes = fieldTypes;
+        this.fieldNameStringIds = fieldNameStringIds;
+        this.fieldOffsets = fieldOffsets;
+        this.fieldsSize = fieldsSize;
+    }
+
+    /**
+     * Walks the superclass chain of a class and flattens its fields.
+     *
+     * @return the layout, or null if the class or one of its superclasses is not in the map
+     */
+    static ClassLayout compute(long classObjId, LongObjectMap<ClassInfo> classes, int idSize) {
+        ArrayList<InstanceField> fields = new ArrayList<>();
+        // superclass of Object is 0
+        long nextClass = classObjId;
+        while (nextClass != 0) {
+            ClassInfo ci = classes.get(nextClass);
+            if (ci == null) {
+                return null;
+            }
+            for (InstanceField field : ci.instanceFields) {
+                fields.add(field);
+            }
+            nextClass = ci.superClassObjId;
+        }
+
+        int numFields = fields.size();
+        Type[] fieldTypes = new Type[numFields];
+        long[] fieldNameStringIds = new long[numFields];
+        int[] fieldOffsets = new int[numFields];
+        int offset = 0;
+        for (int i = 0; i < numFields; i++) {
+            InstanceField field = fields.get(i);
+            fieldTypes[i] = field.type;
+            fieldNameStringIds[i] = field.fieldNameStringId;
+            fieldOffsets[i] = offset;
+            offset += field.type == Type.OBJ ? idSize : field.type.sizeInBytes();
+        }
+        return new ClassLayout(classObjId, idSize, fieldTypes, fieldNameStringIds, fieldOffsets,
+                offset);
+    }
+
+    public long getClassObjId() {
+        return classObjId;
+    }
+
+    /** Returns the identifier size the offsets were computed for. */
+    public int getIdSize() {
+        return idSize;
+    }
+
+    public int getNumFields() {
+        return fieldTypes.length;
+    }
+
+    public Type getFieldType(int fieldIndex) {
+        return fieldTypes[fieldIndex];
+    }
+
+    public long getFieldNameStringId(int fieldIndex) {
+        return fieldNameStringIds[fieldIndex];
+    }
+
+    /** Returns the byte offset of a field within the packed field data of an instance. */
+    public int getFieldOffset(int fieldIndex) {
+        return fieldOffsets[fieldIndex];
+    }
+
+    /** Returns the number of bytes of packed field data an instance of this class has. */
+    public int getFieldsSize() {
+        return fieldsSize;
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.handler.NullRecordHandler;
+import edu.tufts.eaftan.hprofparser.handler.RecordKind;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.ClassInfo;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Value;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+
+/**
+ * Random access to the objects of a heap dump, by id.  Each read looks the object up in the
+ * dump's {@link ObjectIndex}, seeks to its record in the memory-mapped dump and decodes just that
+ * record, with the same code the parser uses.  Class dumps are decoded the first time an instance
+ * of the class, or of a subclass, is read.
+ * <p>
+ * The index must have been built first; see {@code HprofParser.setBuildObjectIndex}.  Not
+ * thread-safe; open one heap per thread.
+ */
+public final class HprofHeap implements Closeable {
+
+    private final ObjectIndex index;
+    private final MappedFileInput in;
+    private final int idSize;
+    private final RecordCapture capture = new RecordCapture();
+    private final HprofParser parser = new HprofParser(capture);
+
+    private HprofHeap(ObjectIndex index, MappedFileInput in) {
+        this.index = index;
+        this.in = in;
+        this.idSize = index.getIdSize();
+    }
+
+    /**
+     * Opens a heap dump and the index stored next to it.
+     *
+     * @throws HprofParserException if the index is out of date
+     */
+    public static HprofHeap open(File dumpFile) throws IOException {
+        ObjectIndex index = ObjectIndex.open(dumpFile);
+        try {
+            return new HprofHeap(index, new MappedFileInput(dumpFile));
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    /** Returns the index, for sizes, record kinds and iteration over all objects. */
+    public ObjectIndex getIndex() {
+        return index;
+    }
+
+    public int getIdSize() {
+        return idSize;
+    }
+
+    /**
+     * Returns the class of an instance or object array, or 0 if the object is a class or
+     * primitive array or isn't in the dump.
+     */
+    public long classOf(long objId) {
+        long entry = index.find(objId);
+        return entry < 0 ? 0 : index.getClassObjId(entry);
+    }
+
+    /**
+     * Reads an instance.  The view is reused by the next read from this heap, so it is only
+     * valid until then.
+     *
+     * @return the instance, or null if the object isn't in the dump
+     * @throws IllegalArgumentException if the object is not an instance
+     */
+    public InstanceView readInstance(long objId) throws IOException {
+        long entry = find(objId, ObjectIndex.INSTANCE_DUMP);
+        if (entry < 0) {
+            return null;
+        }
+        loadClass(index.getClassObjId(entry));
+        in.seek(index.getRecordOffset(entry));
+        parser.parseHeapDumpRecord(in, idSize, false);
+        return capture.take(InstanceView.class);
+    }
+
+    /**
+     * Reads the element ids of an object array.
+     *
+     * @return the elements, or null if the object isn't in the dump
+     * @throws IllegalArgumentException if the object is not an object array
+     */
+    public long[] readObjectArray(long objId) throws IOException {
+        long entry = find(objId, ObjectIndex.OBJ_ARRAY_DUMP);
+        if (entry < 0) {
+            return null;
+        }
+        in.seek(index.getRecordOffset(entry));
+        parser.parseHeapDumpRecord(in, idSize, true);
+        return capture.take(long[].class);
+    }
+
+    /**
+     * Reads the elements of a primitive array.
+     *
+     * @return a {@code boolean[]}, {@code char[]}, {@code float[]}, {@code double[]},
+     *         {@code byte[]}, {@code short[]}, {@code int[]} or {@code long[]}, or null if the
+     *         object isn't in the dump
+     * @throws IllegalArgumentException if the object is not a primitive array
+     */
+    public Object readPrimitiveArray(long objId) throws IOException {
+        long entry = find(objId, ObjectIndex.PRIM_ARRAY_DUMP);
+        if (entry < 0) {
+            return null;
+        }
+        in.seek(index.getRecordOffset(entry));
+        parser.parseHeapDumpRecord(in, idSize, true);
+        return capture.take(Object.class);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    private long find(long objId, byte expectedTag) {
+        long entry = index.find(objId);
+        if (entry >= 0 && index.getRecordTag(entry) != expectedTag) {
+            throw new IllegalArgumentException(String.format(
+                    "Object %d has record tag 0x%x, not 0x%x", objId,
+                    index.getRecordTag(entry), expectedTag));
+        }
+        return entry;
+    }
+
+    /*
+     * Decodes the class dumps of a class and its superclasses that haven't been seen yet.  If one
+     * is missing from the dump, the parser reports it when it looks up the layout.
+     */
+    private void loadClass(long classObjId) throws IOException {
+        long next = classObjId;
+        while (next != 0) {
+            ClassInfo ci = parser.getClassInfo(next);
+            if (ci == null) {
+                long entry = index.find(next);
+                if (entry < 0 || index.getRecordTag(entry) != ObjectIndex.CLASS_DUMP) {
+                    return;
+                }
+                in.seek(index.getRecordOffset(entry));
+                parser.parseHeapDumpRecord(in, idSize, true);
+                ci = parser.getClassInfo(next);
+            }
+            next = ci.superClassObjId;
+        }
+    }
+
+    /* Keeps the one record the parser delivered for the current read. */
+    private static final class RecordCapture extends NullRecordHandler {
+
+        private Object record;
+
+        <T> T take(Class<T> type) {
+            Object r = record;
+            record = null;
+            return type.cast(r);
+        }
+
+        @Override
+        public EnumSet<RecordKind> recordKinds() {
+            return EnumSet.of(RecordKind.INSTANCE_DUMP, RecordKind.OBJ_ARRAY_DUMP,
+                    RecordKind.PRIM_ARRAY_DUMP);
+        }
+
+        @Override
+        public void instanceDump(InstanceView instance) {
+            record = instance;
+        }
+
+        @Override
+        public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                 long[] elems) {
+            record = elems;
+        }
+
+        /* Only reached for arrays of element type OBJ, which aren't valid in practice. */
+        @Override
+        public void primArrayDump(long objId, int stackTraceSerialNum, byte elemType,
+                                  Value<?>[] elems) {
+            long[] ids = new long[elems.length];
+            for (int i = 0; i < elems.length; i++) {
+                ids[i] = (Long) elems[i].value;
+            }
+            record = ids;
+        }
+
+        @Override
+        public void boolArrayDump(long objId, int stackTraceSerialNum, boolean[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void charArrayDump(long objId, int stackTraceSerialNum, char[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void floatArrayDump(long objId, int stackTraceSerialNum, float[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void doubleArrayDump(long objId, int stackTraceSerialNum, double[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void byteArrayDump(long objId, int stackTraceSerialNum, byte[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void shortArrayDump(long objId, int stackTraceSerialNum, short[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void intArrayDump(long objId, int stackTraceSerialNum, int[] elems) {
+            record = elems;
+        }
+
+        @Override
+        public void longArrayDump(long objId, int stackTraceSerialNum, long[] elems) {
+            record = elems;
+        }
+    }
+
+}
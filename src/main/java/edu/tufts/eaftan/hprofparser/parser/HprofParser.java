@@ -17,11 +17,21 @@
 package edu.tufts.eaftan.hprofparser.parser;
 
 import edu.tufts.eaftan.hprofparser.handler.RecordHandler;
+import edu.tufts.eaftan.hprofparser.handler.RecordKind;
 import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Parses an hprof heap dump file in binary format.  The hprof dump file format is documented in
@@ -29,15 +39,108 @@ import java.util.HashMap;
  */
 public class HprofParser {
 
+    /* Readers publish their progress, and their metrics if any, about once per this many bytes. */
+    private static final long PROGRESS_CHUNK = 1 << 20;
+
+    /* Record kinds that can only be delivered by parsing heap dump bodies. */
+    private static final EnumSet<RecordKind> HEAP_DUMP_KINDS = EnumSet.of(
+            RecordKind.GC_ROOT,
+            RecordKind.CLASS_DUMP,
+            RecordKind.INSTANCE_DUMP,
+            RecordKind.INSTANCE_DUMP_SUMMARY,
+            RecordKind.OBJ_ARRAY_DUMP,
+            RecordKind.OBJ_ARRAY_DUMP_SUMMARY,
+            RecordKind.PRIM_ARRAY_DUMP,
+            RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
+
     private final RecordHandler handler;
-    private final HashMap<Long, ClassInfo> classMap;
+    private final LongObjectMap<ClassInfo> classMap;
+    private final LongObjectMap<ClassLayout> layoutCache;
+    private final InstanceView instanceView = new InstanceView();
+    private boolean useMemoryMapping = true;
+    private boolean singlePass;
+    private boolean skipPrimitiveArrayData;
+    private int parallelism = 1;
+    private boolean buildObjectIndex;
+
+    /*
+     * The record kinds delivered during the current parse: those the handler subscribed to,
+     * adjusted by the parser's own options.
+     */
+    private EnumSet<RecordKind> kinds;
+    private boolean parseHeapDumpBodies;
+
+    /* Where the UTF-8 strings go instead of stringInUTF8, if the handler has a table. */
+    private StringTable stringTable;
+
+    /* Input of the current top-level pass, in the modes that need record offsets. */
+    private MappedFileInput seekableInput;
+
+    /* heapDumpEnd is held back until all instances have been delivered. */
+    private int pendingHeapDumpEnds;
+
+    /*
+     * State for single-pass parsing.  Instances whose class hasn't been seen yet are remembered by
+     * the file offset of their record and decoded once the rest of the file has been read.
+     */
+    private boolean deferInstances;
+    private long[] deferredOffsets;
+    private int numDeferred;
+
+    /* State for parallel parsing: the heap dump (segment) bodies found by the top-level scan. */
+    private SegmentTable segments;
+
+    /* Object index being built, and the sink for the thread that calls parse. */
+    private ObjectIndexWriter indexWriter;
+    private ObjectIndexWriter.Sink indexSink;
+
+    /*
+     * Progress of the current parse, read from other threads.  Each thread that reads records
+     * adds to the counters about once per PROGRESS_CHUNK bytes, and when it is done; the thread
+     * that calls parse keeps what it hasn't added yet in pendingBytes and pendingRecords.
+     */
+    private final AtomicLong bytesProcessed = new AtomicLong();
+    private final AtomicLong recordsProcessed = new AtomicLong();
+    private long pendingBytes;
+    private long pendingRecords;
+    private volatile long bytesToProcess;
+
+    /*
+     * The metrics to keep, if any; those of the current parse, and the counters of the thread
+     * that calls parse, which are null without metrics.
+     */
+    private ParserMetrics metrics;
+    private ParserMetrics parseMetrics;
+    private ParserMetrics.Recorder recorder;
 
     public HprofParser(RecordHandler handler) {
         this.handler = handler;
-        classMap = new HashMap<>();
+        classMap = new LongObjectMap<>();
+        layoutCache = new LongObjectMap<>();
     }
 
     public void parse(File file) throws IOException {
+        bytesProcessed.set(0);
+        recordsProcessed.set(0);
+        pendingBytes = 0;
+        pendingRecords = 0;
+        parseMetrics = metrics;
+        if (parseMetrics != null) {
+            parseMetrics.start();
+            recorder = parseMetrics.newRecorder(handler);
+        }
+        try {
+            parseFile(file);
+        } finally {
+            if (parseMetrics != null) {
+                parseMetrics.finish();
+            }
+            parseMetrics = null;
+            recorder = null;
+        }
+    }
+
+    private void parseFile(File file) throws IOException {
 
         /* The file format looks like this:
          *
@@ -57,56 +160,448 @@ public class HprofParser {
          *   [u1]* - body
          */
 
-        FileInputStream fs = new FileInputStream(file);
-        DataInputStream in = new DataInputStream(new BufferedInputStream(fs));
+        long callbackStart;
+        try (HprofReader in = openInput(file)) {
+            // header
+            String format = in.readNullTerminatedString();
+            int idSize = in.readInt();
+            long startTime = in.readLong();
+            if (idSize != 4 && idSize != 8) {
+                throw new HprofParserException(
+                        "Invalid identifier size " + idSize + " in " + file);
+            }
+            callbackStart = System.nanoTime();
+            handler.header(format, idSize, startTime);
+            if (recorder != null) {
+                parseMetrics.addHandlerNanos(System.nanoTime() - callbackStart);
+                recorder.startReading();
+            }
 
-        // header
-        String format = readUntilNull(in);
-        int idSize = in.readInt();
-        long startTime = in.readLong();
-        handler.header(format, idSize, startTime);
+            initRecordKinds();
+            pendingHeapDumpEnds = 0;
+            long headerLength = format.getBytes(StandardCharsets.UTF_8).length + 13;
+            boolean twoPasses = kinds.contains(RecordKind.INSTANCE_DUMP)
+                    && !(singlePass && parallelism == 1 && in instanceof MappedFileInput);
+            bytesToProcess = Math.max(file.length() - headerLength, 0) * (twoPasses ? 2 : 1);
+
+            if (buildObjectIndex) {
+                if (!(in instanceof MappedFileInput)) {
+                    throw new HprofParserException(
+                            "Building an object index needs memory-mapped input: " + file);
+                }
+                indexWriter = new ObjectIndexWriter(ObjectIndex.indexFileFor(file), idSize);
+                indexSink = indexWriter.newSink();
+                parseHeapDumpBodies = true;
+            }
+            try {
+                if (parallelism > 1 && in instanceof MappedFileInput) {
+                    parseParallel(file, (MappedFileInput) in, idSize);
+                } else if (singlePass && in instanceof MappedFileInput) {
+                    parseSinglePass((MappedFileInput) in, idSize);
+                } else {
+                    parseTwoPass(file, in, idSize);
+                }
+                flushProgress();
+                if (recorder != null) {
+                    recorder.stopReading();
+                }
+                if (indexWriter != null) {
+                    indexSink.flush();
+                    indexWriter.finish(file);
+                }
+            } finally {
+                if (indexWriter != null) {
+                    indexWriter.close();
+                    indexWriter = null;
+                    indexSink = null;
+                }
+            }
+        }
+
+        callbackStart = System.nanoTime();
+        for (int i = 0; i < pendingHeapDumpEnds; i++) {
+            handler.heapDumpEnd();
+        }
+        handler.finished();
+        if (parseMetrics != null) {
+            parseMetrics.addHandlerNanos(System.nanoTime() - callbackStart);
+        }
+    }
 
+    private void initRecordKinds() {
+        kinds = EnumSet.copyOf(handler.recordKinds());
+        stringTable = handler.stringTable();
+        if (skipPrimitiveArrayData && kinds.remove(RecordKind.PRIM_ARRAY_DUMP)) {
+            kinds.add(RecordKind.PRIM_ARRAY_DUMP_SUMMARY);
+        }
+        EnumSet<RecordKind> heapDumpKinds = EnumSet.copyOf(kinds);
+        heapDumpKinds.retainAll(HEAP_DUMP_KINDS);
+        parseHeapDumpBodies = !heapDumpKinds.isEmpty();
+    }
+
+    private void parseTwoPass(File file, HprofReader in, int idSize) throws IOException {
         // records
         boolean done;
         do {
             done = parseRecord(in, idSize, true);
         } while (!done);
-        in.close();
 
-        FileInputStream fsSecond = new FileInputStream(file);
-        DataInputStream inSecond = new DataInputStream(new BufferedInputStream(fsSecond));
-        readUntilNull(inSecond); // format
-        inSecond.readInt(); // idSize
-        inSecond.readLong(); // startTime
-        do {
-            done = parseRecord(inSecond, idSize, false);
-        } while (!done);
-        inSecond.close();
-        handler.finished();
+        // the second pass only decodes instances, which need every class dump
+        if (!kinds.contains(RecordKind.INSTANCE_DUMP)) {
+            return;
+        }
+        try (HprofReader inSecond = openInput(file)) {
+            inSecond.readNullTerminatedString(); // format
+            inSecond.readInt(); // idSize
+            inSecond.readLong(); // startTime
+            do {
+                done = parseRecord(inSecond, idSize, false);
+            } while (!done);
+        }
     }
 
-    public static String readUntilNull(DataInput in) throws IOException {
+    /**
+     * Reads the file once instead of twice.  Instance dumps whose class dump has already been seen
+     * are decoded immediately; the rest are decoded after the last record has been read, by
+     * seeking back to them.  Class dumps usually precede the instances that use them, so in
+     * practice few instances are deferred.
+     * <p>
+     * Instances are delivered interleaved with the other heap dump records rather than after all
+     * of them, but still before {@code heapDumpEnd}.  Single-pass parsing needs random access, so
+     * it only applies to memory-mapped input; streams are always read twice.
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Skips the elements of primitive array dumps and reports only their type and length, through
+     * {@code RecordHandler.primArrayDumpSummary}, instead of calling the typed array callbacks.
+     * This turns a subscription to {@code RecordKind.PRIM_ARRAY_DUMP} into one to
+     * {@code RecordKind.PRIM_ARRAY_DUMP_SUMMARY}.
+     */
+    public void setSkipPrimitiveArrayData(boolean skipPrimitiveArrayData) {
+        this.skipPrimitiveArrayData = skipPrimitiveArrayData;
+    }
+
+    /**
+     * Parses heap dump segments on the given number of threads.  A sequential scan of the
+     * top-level records delivers everything outside the heap dump and builds a table of the heap
+     * dump segment bodies, which are then parsed concurrently by workers that each read the file
+     * through their own mapping.  As in the sequential parser, this happens in two phases: class
+     * dumps and arrays first, then instances once all classes are known.
+     * <p>
+     * The heap dump callbacks ({@code classDump}, {@code instanceDump}, {@code objArrayDump},
+     * {@code primArrayDump}) are then called from several threads at once and in no particular
+     * order, so the handler must be thread-safe.  All other callbacks are made from the thread
+     * that called {@link #parse}.  Parallel parsing needs random access, so it only applies to
+     * memory-mapped input.  Only HPROF 1.0.2 dumps, which split the heap into {@code 0x1c}
+     * segments, benefit; a dump with a single {@code 0x0c} record is parsed by one worker.
+     * Overrides {@link #setSinglePass}.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Selects whether regular files are read through memory mappings (the default) or through a
+     * buffered stream.  Input that is not a regular file, such as a named pipe, is always read as
+     * a stream.
+     */
+    public void setUseMemoryMapping(boolean useMemoryMapping) {
+        this.useMemoryMapping = useMemoryMapping;
+    }
+
+    /**
+     * Builds an {@link ObjectIndex} of the dump during the first pass and writes it next to the
+     * dump, where {@code ObjectIndex.open} finds it.  The index is sorted on disk with bounded
+     * memory, so it can be built for dumps of any size.  This needs record offsets, so it only
+     * works with memory-mapped input.
+     */
+    public void setBuildObjectIndex(boolean buildObjectIndex) {
+        this.buildObjectIndex = buildObjectIndex;
+    }
+
+    /**
+     * Returns the number of bytes of records processed so far by the current or last parse,
+     * counting records read in both passes twice.  Heap dump bodies are counted as their
+     * sub-records are parsed, so this advances steadily even through a single huge heap dump
+     * record.  Like the other progress methods, it may be called from any thread while
+     * {@link #parse} runs.
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed.get();
+    }
+
+    /**
+     * Returns the number of records processed so far by the current or last parse: top-level
+     * records and heap dump sub-records, counting records read in both passes twice.
+     */
+    public long getRecordsProcessed() {
+        return recordsProcessed.get();
+    }
+
+    /**
+     * Returns the value {@link #getBytesProcessed} reaches at the end of the current parse, or 0
+     * if the length of the input isn't known, as for a named pipe.  In single-pass mode, the
+     * instances read again after the last record aren't counted.
+     */
+    public long getBytesToProcess() {
+        return bytesToProcess;
+    }
+
+    /**
+     * Keeps record counts and timings in the given metrics from the next parse on, or stops
+     * keeping them if null, the default; see {@link ParserMetrics}.  Without metrics, the parser
+     * only counts the records and bytes that the progress methods report.
+     */
+    public void setMetrics(ParserMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ParserMetrics getMetrics() {
+        return metrics;
+    }
 
-        int bytesRead = 0;
-        byte[] bytes = new byte[25];
+    /* Only for the thread that calls parse. */
+    private void addProgress(long bytes, long records) {
+        pendingBytes += bytes;
+        pendingRecords += records;
+        if (pendingBytes >= PROGRESS_CHUNK) {
+            flushProgress();
+        }
+    }
 
-        while ((bytes[bytesRead] = in.readByte()) != 0) {
-            bytesRead++;
-            if (bytesRead >= bytes.length) {
-                byte[] newBytes = new byte[bytesRead + 20];
-                for (int i = 0; i < bytes.length; i++) {
-                    newBytes[i] = bytes[i];
+    private void flushProgress() {
+        bytesProcessed.addAndGet(pendingBytes);
+        recordsProcessed.addAndGet(pendingRecords);
+        pendingBytes = 0;
+        pendingRecords = 0;
+        if (recorder != null) {
+            recorder.flush();
+        }
+    }
+
+    private void parseSinglePass(MappedFileInput in, int idSize) throws IOException {
+        seekableInput = in;
+        deferInstances = kinds.contains(RecordKind.INSTANCE_DUMP);
+        deferredOffsets = new long[1024];
+        numDeferred = 0;
+        try {
+            boolean done;
+            do {
+                done = parseRecord(in, idSize, true);
+            } while (!done);
+
+            // offsets were recorded in file order, so this is a forward scan
+            for (int i = 0; i < numDeferred; i++) {
+                in.seek(deferredOffsets[i]);
+                long objId = in.readId(idSize);
+                int stackTraceSerialNum = in.readInt();
+                long classObjId = in.readId(idSize);
+                int numBytes = in.readInt();
+                processInstance(instanceView, objId, stackTraceSerialNum,
+                        requireLayout(objId, classObjId, idSize), numBytes, in, handler);
+            }
+        } finally {
+            seekableInput = null;
+            deferInstances = false;
+            deferredOffsets = null;
+        }
+    }
+
+    private void parseParallel(File file, MappedFileInput in, int idSize) throws IOException {
+        seekableInput = in;
+        segments = new SegmentTable();
+        try {
+            boolean done;
+            do {
+                done = parseRecord(in, idSize, true);
+            } while (!done);
+        } finally {
+            seekableInput = null;
+        }
+
+        SegmentTable table = segments;
+        segments = null;
+        // the scan has counted everything but the segment bodies, which each phase reads again
+        flushProgress();
+        int phases = kinds.contains(RecordKind.INSTANCE_DUMP) ? 2 : 1;
+        bytesToProcess = bytesProcessed.get() + table.totalLength() * phases;
+        int numWorkers = Math.min(parallelism, table.size);
+        // the workers count their own time
+        if (recorder != null) {
+            recorder.stopReading();
+        }
+        if (numWorkers > 0) {
+            try (ExecutorService pool = Executors.newFixedThreadPool(numWorkers)) {
+                parseSegments(pool, numWorkers, table, file, idSize, true);
+                if (kinds.contains(RecordKind.INSTANCE_DUMP)) {
+                    // compute every layout up front so that the workers only read the cache
+                    classMap.forEach((classObjId, classInfo) -> layoutFor(classObjId, idSize));
+                    parseSegments(pool, numWorkers, table, file, idSize, false);
                 }
-                bytes = newBytes;
             }
         }
-        return new String(bytes, 0, bytesRead);
+    }
+
+    /**
+     * Runs one pass of parseHeapDump over every segment in the table.  Each worker opens its own
+     * reader and claims segments until none are left.
+     */
+    private void parseSegments(ExecutorService pool, int numWorkers, SegmentTable table,
+                               File file, int idSize, boolean isFirstPass) throws IOException {
+        AtomicInteger nextSegment = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            workers.add(pool.submit(() -> {
+                try (MappedFileInput segmentIn = new MappedFileInput(file)) {
+                    InstanceView segmentView = new InstanceView();
+                    ParserMetrics.Recorder segmentRecorder =
+                            recorder != null ? parseMetrics.newRecorder(handler) : null;
+                    if (segmentRecorder != null) {
+                        segmentRecorder.startReading();
+                    }
+                    ObjectIndexWriter.Sink segmentSink =
+                            isFirstPass && indexWriter != null ? indexWriter.newSink() : null;
+                    int i;
+                    while ((i = nextSegment.getAndIncrement()) < table.size) {
+                        segmentIn.seek(table.offsets[i]);
+                        long bytesLeft = table.lengths[i];
+                        long bytes = 0;
+                        long records = 0;
+                        while (bytesLeft > 0) {
+                            long n = parseSubRecord(segmentIn, idSize, isFirstPass,
+                                    segmentView, segmentSink, segmentRecorder);
+                            bytesLeft -= n;
+                            bytes += n;
+                            records++;
+                            if (bytes >= PROGRESS_CHUNK || bytesLeft <= 0) {
+                                bytesProcessed.addAndGet(bytes);
+                                recordsProcessed.addAndGet(records);
+                                if (segmentRecorder != null) {
+                                    segmentRecorder.flush();
+                                }
+                                bytes = 0;
+                                records = 0;
+                            }
+                        }
+                    }
+                    if (segmentRecorder != null) {
+                        segmentRecorder.stopReading();
+                    }
+                    if (segmentSink != null) {
+                        segmentSink.flush();
+                    }
+                } catch (Throwable t) {
+                    // stop the other workers from claiming more segments
+                    nextSegment.set(table.size);
+                    throw t;
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while parsing heap dump segments");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Parses the single heap dump sub-record at the current position of the input, for
+     * {@link HprofHeap}.  With {@code isFirstPass}, class dumps are added to the class map and
+     * arrays are delivered; without it, instances are decoded with the known classes.
+     */
+    void parseHeapDumpRecord(HprofReader in, int idSize, boolean isFirstPass) throws IOException {
+        if (kinds == null) {
+            initRecordKinds();
+        }
+        parseHeapDump(in, in.readByte(), idSize, isFirstPass, instanceView, null, handler);
+    }
+
+    /** Returns the class dump seen for a class, or null. */
+    ClassInfo getClassInfo(long classObjId) {
+        return classMap.get(classObjId);
+    }
+
+    private void deferInstance(long offset) {
+        if (numDeferred == deferredOffsets.length) {
+            deferredOffsets = Arrays.copyOf(deferredOffsets, numDeferred * 2);
+        }
+        deferredOffsets[numDeferred++] = offset;
+    }
+
+    /**
+     * Returns the flattened field layout of a class, computing and caching it on first use.
+     * Layouts are cached only once the whole superclass chain is known, so a miss never writes
+     * to the cache.
+     *
+     * @return the layout, or null if the class or one of its superclasses hasn't been seen
+     */
+    private ClassLayout layoutFor(long classObjId, int idSize) {
+        ClassLayout layout = layoutCache.get(classObjId);
+        if (layout == null) {
+            layout = ClassLayout.compute(classObjId, classMap, idSize);
+            if (layout != null) {
+                layoutCache.put(classObjId, layout);
+            }
+        }
+        return layout;
+    }
+
+    private ClassLayout requireLayout(long objId, long classObjId, int idSize) {
+        ClassLayout layout = layoutFor(classObjId, idSize);
+        if (layout == null) {
+            throw new HprofParserException("Instance " + objId + " has class " + classObjId
+                    + ", but the class or one of its superclasses has no class dump");
+        }
+        return layout;
+    }
+
+    private HprofReader openInput(File file) throws IOException {
+        if (useMemoryMapping && file.isFile()) {
+            return new MappedFileInput(file);
+        }
+        return new StreamHprofReader(new FileInputStream(file));
+    }
+
+    /**
+     * Reads a null-terminated string and decodes it as UTF-8.
+     */
+    public static String readUntilNull(DataInput in) throws IOException {
+        if (in instanceof HprofReader) {
+            return ((HprofReader) in).readNullTerminatedString();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte b;
+        while ((b = in.readByte()) != 0) {
+            bytes.write(b);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
     }
 
     /**
      * @return true if there are no more records to parse
      */
-    private boolean parseRecord(DataInput in, int idSize, boolean isFirstPass) throws IOException {
+    private boolean parseRecord(HprofReader in, int idSize, boolean isFirstPass) throws IOException {
 
         /* format:
          *   u1 - tag
@@ -115,87 +610,107 @@ public class HprofParser {
          *   [u1]* - body
          */
 
-        // if we get an EOF on this read, it just means we're done
-        byte tag;
-        try {
-            tag = in.readByte();
-        } catch (EOFException e) {
+        // the input may only end between records
+        int next = in.readByteOrEnd();
+        if (next < 0) {
             return true;
         }
+        byte tag = (byte) next;
 
         // otherwise propagate the EOFException
         int time = in.readInt();    // TODO(eaftan): we might want time passed to handler fns
         long bytesLeft = Integer.toUnsignedLong(in.readInt());
 
+        // heap dump bodies that are parsed count themselves, sub-record by sub-record, and the
+        // time spent in them is measured there
+        long progressBytes = 9 + bytesLeft;
+        long sampleStart = recorder == null || tag == 0x0c || tag == 0x1c
+                ? ParserMetrics.NOT_SAMPLED : recorder.startSample();
+        RecordHandler callbacks =
+                sampleStart == ParserMetrics.NOT_SAMPLED ? handler : recorder.timedHandler;
+
         long l1, l2, l3, l4;
         int i1, i2, i3, i4, i5, i6, i7, i8, i9;
         short s1;
         byte b1;
         float f1;
-        byte[] bArr1;
         long[] lArr1;
 
         switch (tag) {
             case 0x1:
                 // String in UTF-8
-                l1 = readId(idSize, in);
+                if (!isFirstPass || !kinds.contains(RecordKind.STRING_IN_UTF8)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
+                l1 = in.readId(idSize);
                 bytesLeft -= idSize;
-                bArr1 = new byte[(int) bytesLeft];
-                in.readFully(bArr1);
-                if (isFirstPass) {
-                    handler.stringInUTF8(l1, new String(bArr1));
+                if (stringTable != null) {
+                    stringTable.read(l1, in, (int) bytesLeft);
+                } else {
+                    callbacks.stringInUTF8(l1, in.readUtf8((int) bytesLeft));
                 }
                 break;
 
             case 0x2:
                 // Load class
+                if (!isFirstPass || !kinds.contains(RecordKind.LOAD_CLASS)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
                 i1 = in.readInt();
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i2 = in.readInt();
-                l2 = readId(idSize, in);
-                if (isFirstPass) {
-                    handler.loadClass(i1, l1, i2, l2);
-                }
+                l2 = in.readId(idSize);
+                callbacks.loadClass(i1, l1, i2, l2);
                 break;
 
             case 0x3:
                 // Unload class
-                i1 = in.readInt();
-                if (isFirstPass) {
-                    handler.unloadClass(i1);
+                if (!isFirstPass || !kinds.contains(RecordKind.UNLOAD_CLASS)) {
+                    in.skipFully(bytesLeft);
+                    break;
                 }
+                i1 = in.readInt();
+                callbacks.unloadClass(i1);
                 break;
 
             case 0x4:
                 // Stack frame
-                l1 = readId(idSize, in);
-                l2 = readId(idSize, in);
-                l3 = readId(idSize, in);
-                l4 = readId(idSize, in);
+                if (!isFirstPass || !kinds.contains(RecordKind.STACK_FRAME)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
+                l1 = in.readId(idSize);
+                l2 = in.readId(idSize);
+                l3 = in.readId(idSize);
+                l4 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.stackFrame(l1, l2, l3, l4, i1, i2);
-//                }
+                callbacks.stackFrame(l1, l2, l3, l4, i1, i2);
                 break;
 
             case 0x5:
                 // Stack trace
+                if (!isFirstPass || !kinds.contains(RecordKind.STACK_TRACE)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
                 i1 = in.readInt();
                 i2 = in.readInt();
                 i3 = in.readInt();
                 bytesLeft -= 12;
                 lArr1 = new long[(int) bytesLeft / idSize];
-                for (int i = 0; i < lArr1.length; i++) {
-                    lArr1[i] = readId(idSize, in);
-                }
-//                if (isFirstPass) {
-//                    handler.stackTrace(i1, i2, i3, lArr1);
-//                }
+                in.readIds(idSize, lArr1);
+                callbacks.stackTrace(i1, i2, i3, lArr1);
                 break;
 
             case 0x6:
                 // Alloc sites
+                if (!isFirstPass || !kinds.contains(RecordKind.ALLOC_SITES)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
                 s1 = in.readShort();
                 f1 = in.readFloat();
                 i1 = in.readInt();
@@ -216,9 +731,7 @@ public class HprofParser {
 
                     allocSites[i] = new AllocSite(b1, i4, i5, i6, i7, i8, i9);
                 }
-//                if (isFirstPass) {
-//                    handler.allocSites(s1, f1, i1, i2, l1, l2, allocSites);
-//                }
+                callbacks.allocSites(s1, f1, i1, i2, l1, l2, allocSites);
                 break;
 
             case 0x7:
@@ -234,23 +747,27 @@ public class HprofParser {
 
             case 0xa:
                 // Start thread
+                if (!isFirstPass || !kinds.contains(RecordKind.THREAD)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
                 i1 = in.readInt();
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i2 = in.readInt();
-                l2 = readId(idSize, in);
-                l3 = readId(idSize, in);
-                l4 = readId(idSize, in);
-//                if (isFirstPass) {
-//                    handler.startThread(i1, l1, i2, l2, l3, l4);
-//                }
+                l2 = in.readId(idSize);
+                l3 = in.readId(idSize);
+                l4 = in.readId(idSize);
+                callbacks.startThread(i1, l1, i2, l2, l3, l4);
                 break;
 
             case 0xb:
                 // End thread
+                if (!isFirstPass || !kinds.contains(RecordKind.THREAD)) {
+                    in.skipFully(bytesLeft);
+                    break;
+                }
                 i1 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.endThread(i1);
-//                }
+                callbacks.endThread(i1);
                 break;
 
             case 0xc:
@@ -258,11 +775,19 @@ public class HprofParser {
                 if (isFirstPass) {
                     handler.heapDump();
                 }
-                while (bytesLeft > 0) {
-                    bytesLeft -= parseHeapDump(in, idSize, isFirstPass);
+                if (isFirstPass && !parseHeapDumpBodies) {
+                    in.skipFully(bytesLeft);
+                } else if (segments != null) {
+                    // the workers count the body
+                    segments.add(seekableInput.position(), bytesLeft);
+                    in.skipFully(bytesLeft);
+                    progressBytes = 9;
+                } else {
+                    parseHeapDumpBody(in, idSize, isFirstPass, bytesLeft);
+                    progressBytes = 9;
                 }
-                if (!isFirstPass) {
-                    handler.heapDumpEnd();
+                if (isFirstPass) {
+                    pendingHeapDumpEnds++;
                 }
                 break;
 
@@ -271,15 +796,23 @@ public class HprofParser {
                 if (isFirstPass) {
                     handler.heapDumpSegment();
                 }
-                while (bytesLeft > 0) {
-                    bytesLeft -= parseHeapDump(in, idSize, isFirstPass);
+                if (isFirstPass && !parseHeapDumpBodies) {
+                    in.skipFully(bytesLeft);
+                } else if (segments != null) {
+                    // the workers count the body
+                    segments.add(seekableInput.position(), bytesLeft);
+                    in.skipFully(bytesLeft);
+                    progressBytes = 9;
+                } else {
+                    parseHeapDumpBody(in, idSize, isFirstPass, bytesLeft);
+                    progressBytes = 9;
                 }
                 break;
 
             case 0x2c:
                 // Heap dump end (of segments)
-                if (!isFirstPass) {
-                    handler.heapDumpEnd();
+                if (isFirstPass) {
+                    pendingHeapDumpEnds++;
                 }
                 break;
 
@@ -312,124 +845,168 @@ public class HprofParser {
                 throw new HprofParserException("Unexpected top-level record type: " + tag);
         }
 
+        if (recorder != null) {
+            recorder.recordTopLevel(tag, progressBytes, sampleStart);
+        }
+        addProgress(progressBytes, 1);
         return false;
     }
 
-    // returns number of bytes parsed
-    private int parseHeapDump(DataInput in, int idSize, boolean isFirstPass) throws IOException {
+    /* Parses the sub-records of a heap dump or heap dump segment body, counting each one. */
+    private void parseHeapDumpBody(HprofReader in, int idSize, boolean isFirstPass,
+                                   long bytesLeft) throws IOException {
+        ObjectIndexWriter.Sink sink = isFirstPass ? indexSink : null;
+        long bytes = 0;
+        long records = 0;
+        while (bytesLeft > 0) {
+            long n = parseSubRecord(in, idSize, isFirstPass, instanceView, sink, recorder);
+            bytesLeft -= n;
+            bytes += n;
+            records++;
+            if (bytes >= PROGRESS_CHUNK) {
+                addProgress(bytes, records);
+                bytes = 0;
+                records = 0;
+            }
+        }
+        addProgress(bytes, records);
+    }
 
+    /*
+     * Parses one heap dump sub-record, counting it in the metrics, if any, and timing it if it
+     * is sampled.  Returns the number of bytes parsed.
+     */
+    private long parseSubRecord(HprofReader in, int idSize, boolean isFirstPass,
+                                InstanceView view, ObjectIndexWriter.Sink indexSink,
+                                ParserMetrics.Recorder recorder) throws IOException {
+        if (recorder == null) {
+            return parseHeapDump(in, in.readByte(), idSize, isFirstPass, view, indexSink,
+                    handler);
+        }
+        long sampleStart = recorder.startSample();
         byte tag = in.readByte();
-        int bytesRead = 1;
+        long bytesRead = parseHeapDump(in, tag, idSize, isFirstPass, view, indexSink,
+                sampleStart == ParserMetrics.NOT_SAMPLED ? handler : recorder.timedHandler);
+        recorder.recordSubRecord(tag, bytesRead, sampleStart);
+        return bytesRead;
+    }
+
+    // returns number of bytes parsed, including the tag, which has been read
+    private long parseHeapDump(HprofReader in, byte tag, int idSize, boolean isFirstPass,
+                               InstanceView view, ObjectIndexWriter.Sink indexSink,
+                               RecordHandler callbacks) throws IOException {
+
+        long bytesRead = 1;
+        long tagOffset = indexSink != null ? ((MappedFileInput) in).position() - 1 : -1;
 
         long l1, l2, l3, l4, l5, l6, l7;
         int i1, i2;
         short s1, s2, s3;
         byte b1;
-        byte[] bArr1;
         long[] lArr1;
 
         switch (tag) {
 
             case -1:    // 0xFF
                 // Root unknown
-                l1 = readId(idSize, in);
-//                if (isFirstPass) {
-//                    handler.rootUnknown(l1);
-//                }
+                l1 = in.readId(idSize);
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootUnknown(l1);
+                }
                 bytesRead += idSize;
                 break;
 
             case 0x01:
                 // Root JNI global
-                l1 = readId(idSize, in);
-                l2 = readId(idSize, in);
-//                if (isFirstPass) {
-//                    handler.rootJNIGlobal(l1, l2);
-//                }
+                l1 = in.readId(idSize);
+                l2 = in.readId(idSize);
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootJNIGlobal(l1, l2);
+                }
                 bytesRead += 2 * idSize;
                 break;
 
             case 0x02:
                 // Root JNI local
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.rootJNILocal(l1, i1, i2);
-//                }
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootJNILocal(l1, i1, i2);
+                }
                 bytesRead += idSize + 8;
                 break;
 
             case 0x03:
                 // Root Java frame
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.rootJavaFrame(l1, i1, i2);
-//                }
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootJavaFrame(l1, i1, i2);
+                }
                 bytesRead += idSize + 8;
                 break;
 
             case 0x04:
                 // Root native stack
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.rootNativeStack(l1, i1);
-//                }
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootNativeStack(l1, i1);
+                }
                 bytesRead += idSize + 4;
                 break;
 
             case 0x05:
                 // Root sticky class
-                l1 = readId(idSize, in);
-//                if (isFirstPass) {
-//                    handler.rootStickyClass(l1);
-//                }
+                l1 = in.readId(idSize);
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootStickyClass(l1);
+                }
                 bytesRead += idSize;
                 break;
 
             case 0x06:
                 // Root thread block
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.rootThreadBlock(l1, i1);
-//                }
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootThreadBlock(l1, i1);
+                }
                 bytesRead += idSize + 4;
                 break;
 
             case 0x07:
                 // Root monitor used
-                l1 = readId(idSize, in);
-//                if (isFirstPass) {
-//                    handler.rootMonitorUsed(l1);
-//                }
+                l1 = in.readId(idSize);
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootMonitorUsed(l1);
+                }
                 bytesRead += idSize;
                 break;
 
             case 0x08:
                 // Root thread object
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();
-//                if (isFirstPass) {
-//                    handler.rootThreadObj(l1, i1, i2);
-//                }
+                if (isFirstPass && kinds.contains(RecordKind.GC_ROOT)) {
+                    callbacks.rootThreadObj(l1, i1, i2);
+                }
                 bytesRead += idSize + 8;
                 break;
 
             case 0x20:
                 // Class dump
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
-                l2 = readId(idSize, in);
-                l3 = readId(idSize, in);
-                l4 = readId(idSize, in);
-                l5 = readId(idSize, in);
-                l6 = readId(idSize, in);
-                l7 = readId(idSize, in);
+                l2 = in.readId(idSize);
+                l3 = in.readId(idSize);
+                l4 = in.readId(idSize);
+                l5 = in.readId(idSize);
+                l6 = in.readId(idSize);
+                l7 = in.readId(idSize);
                 i2 = in.readInt();
                 bytesRead += idSize * 7 + 8;
 
@@ -447,7 +1024,7 @@ public class HprofParser {
 
                     switch (type) {
                         case OBJ:
-                            long vid = readId(idSize, in);
+                            long vid = in.readId(idSize);
                             bytesRead += idSize;
                             v = new Value<>(type, vid);
                             break;
@@ -502,7 +1079,7 @@ public class HprofParser {
                 assert s2 >= 0;
                 Static[] statics = new Static[s2];
                 for (int i = 0; i < s2; i++) {
-                    long staticFieldNameStringId = readId(idSize, in);
+                    long staticFieldNameStringId = in.readId(idSize);
                     byte btype = in.readByte();
                     bytesRead += idSize + 1;
                     Type type = Type.hprofTypeToEnum(btype);
@@ -510,7 +1087,7 @@ public class HprofParser {
 
                     switch (type) {
                         case OBJ:     // object
-                            long vid = readId(idSize, in);
+                            long vid = in.readId(idSize);
                             bytesRead += idSize;
                             v = new Value<>(type, vid);
                             break;
@@ -565,7 +1142,7 @@ public class HprofParser {
                 assert s3 >= 0;
                 InstanceField[] instanceFields = new InstanceField[s3];
                 for (int i = 0; i < s3; i++) {
-                    long fieldNameStringId = readId(idSize, in);
+                    long fieldNameStringId = in.readId(idSize);
                     byte btype = in.readByte();
                     bytesRead += idSize + 1;
                     Type type = Type.hprofTypeToEnum(btype);
@@ -579,31 +1156,54 @@ public class HprofParser {
                  * table.
                  */
                 if (isFirstPass) {
-                    classMap.put(l1, new ClassInfo(l1, l2, i2, instanceFields));
+                    // segments may be parsed concurrently; see setParallelism
+                    synchronized (classMap) {
+                        classMap.put(l1, new ClassInfo(l1, l2, i2, instanceFields));
+                    }
                 }
-                if (isFirstPass) {
-                    handler.classDump(l1, i1, l2, l3, l4, l5, l6, l7, i2, constants,
+                if (isFirstPass && kinds.contains(RecordKind.CLASS_DUMP)) {
+                    callbacks.classDump(l1, i1, l2, l3, l4, l5, l6, l7, i2, constants,
                             statics, instanceFields);
                 }
+                if (indexSink != null) {
+                    indexSink.add(l1, tagOffset, ObjectIndex.CLASS_DUMP, (byte) 0, 0,
+                            (int) bytesRead);
+                }
                 break;
 
             case 0x21:
                 // Instance dump
-                l1 = readId(idSize, in);
+                long recordOffset = deferInstances ? seekableInput.position() : -1;
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
-                l2 = readId(idSize, in);    // class obj id
+                l2 = in.readId(idSize);    // class obj id
                 i2 = in.readInt();    // num of bytes that follow
                 assert i2 >= 0;
-                bArr1 = new byte[i2];
-                in.readFully(bArr1);
 
                 /**
                  * because class dump records come *after* instance dump records,
                  * we don't know how to interpret the values yet.  we have to
                  * record the instances and process them at the end.
                  */
+                if (isFirstPass && kinds.contains(RecordKind.INSTANCE_DUMP_SUMMARY)) {
+                    callbacks.instanceDumpSummary(l1, i1, l2, i2);
+                }
+                if (indexSink != null) {
+                    indexSink.add(l1, tagOffset, ObjectIndex.INSTANCE_DUMP, (byte) 0, l2, i2);
+                }
+                ClassLayout layout = null;
                 if (!isFirstPass) {
-                    processInstance(new Instance(l1, i1, l2, bArr1), idSize);
+                    layout = requireLayout(l1, l2, idSize);
+                } else if (deferInstances) {
+                    layout = layoutFor(l2, idSize);
+                }
+                if (layout != null) {
+                    processInstance(view, l1, i1, layout, i2, in, callbacks);
+                } else {
+                    if (deferInstances) {
+                        deferInstance(recordOffset);
+                    }
+                    in.skipFully(i2);
                 }
 
                 bytesRead += idSize * 2 + 8 + i2;
@@ -611,84 +1211,51 @@ public class HprofParser {
 
             case 0x22:
                 // Object array dump
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();    // number of elements
-                l2 = readId(idSize, in);
+                l2 = in.readId(idSize);
 
                 assert i2 >= 0;
-                lArr1 = new long[i2];
-                for (int i = 0; i < i2; i++) {
-                    lArr1[i] = readId(idSize, in);
+                if (isFirstPass && kinds.contains(RecordKind.OBJ_ARRAY_DUMP_SUMMARY)) {
+                    callbacks.objArrayDumpSummary(l1, i1, l2, i2);
                 }
-                if (isFirstPass) {
-                    handler.objArrayDump(l1, i1, l2, lArr1);
+                if (indexSink != null) {
+                    indexSink.add(l1, tagOffset, ObjectIndex.OBJ_ARRAY_DUMP, Type.OBJ.hprofType(),
+                            l2, i2);
+                }
+                if (isFirstPass && kinds.contains(RecordKind.OBJ_ARRAY_DUMP)) {
+                    lArr1 = new long[i2];
+                    in.readIds(idSize, lArr1);
+                    callbacks.objArrayDump(l1, i1, l2, lArr1);
+                } else {
+                    in.skipFully((long) i2 * idSize);
                 }
-                bytesRead += (2 + i2) * idSize + 8;
+                bytesRead += (long) (2 + i2) * idSize + 8;
                 break;
 
             case 0x23:
                 // Primitive array dump
-                l1 = readId(idSize, in);
+                l1 = in.readId(idSize);
                 i1 = in.readInt();
                 i2 = in.readInt();    // number of elements
                 b1 = in.readByte();
                 bytesRead += idSize + 9;
 
                 assert i2 >= 0;
-                Value<?>[] vs = new Value[i2];
                 Type t = Type.hprofTypeToEnum(b1);
-                for (int i = 0; i < vs.length; i++) {
-                    switch (t) {
-                        case OBJ:
-                            long vobj = readId(idSize, in);
-                            vs[i] = new Value<>(t, vobj);
-                            bytesRead += idSize;
-                            break;
-                        case BOOL:
-                            boolean vbool = in.readBoolean();
-                            vs[i] = new Value<>(t, vbool);
-                            bytesRead += 1;
-                            break;
-                        case CHAR:
-                            char vc = in.readChar();
-                            vs[i] = new Value<>(t, vc);
-                            bytesRead += 2;
-                            break;
-                        case FLOAT:
-                            float vf = in.readFloat();
-                            vs[i] = new Value<>(t, vf);
-                            bytesRead += 4;
-                            break;
-                        case DOUBLE:
-                            double vd = in.readDouble();
-                            vs[i] = new Value<>(t, vd);
-                            bytesRead += 8;
-                            break;
-                        case BYTE:
-                            byte vbyte = in.readByte();
-                            vs[i] = new Value<>(t, vbyte);
-                            bytesRead += 1;
-                            break;
-                        case SHORT:
-                            short vshort = in.readShort();
-                            vs[i] = new Value<>(t, vshort);
-                            bytesRead += 2;
-                            break;
-                        case INT:
-                            int vi = in.readInt();
-                            vs[i] = new Value<>(t, vi);
-                            bytesRead += 4;
-                            break;
-                        case LONG:
-                            long vlong = in.readLong();
-                            vs[i] = new Value<>(t, vlong);
-                            bytesRead += 8;
-                            break;
-                    }
+                long numBytes = (long) i2 * (t == Type.OBJ ? idSize : t.sizeInBytes());
+                bytesRead += numBytes;
+                if (isFirstPass && kinds.contains(RecordKind.PRIM_ARRAY_DUMP_SUMMARY)) {
+                    callbacks.primArrayDumpSummary(l1, i1, b1, i2);
                 }
-                if (isFirstPass) {
-                    handler.primArrayDump(l1, i1, b1, vs);
+                if (indexSink != null) {
+                    indexSink.add(l1, tagOffset, ObjectIndex.PRIM_ARRAY_DUMP, b1, 0, i2);
+                }
+                if (isFirstPass && kinds.contains(RecordKind.PRIM_ARRAY_DUMP)) {
+                    parsePrimitiveArray(in, idSize, l1, i1, t, i2, callbacks);
+                } else {
+                    in.skipFully(numBytes);
                 }
                 break;
 
@@ -700,95 +1267,108 @@ public class HprofParser {
 
     }
 
-    private void processInstance(Instance i, int idSize) throws IOException {
-        ByteArrayInputStream bs = new ByteArrayInputStream(i.packedValues);
-        DataInputStream input = new DataInputStream(bs);
-
-        ArrayList<Value<?>> values = new ArrayList<>();
-
-        // superclass of Object is 0
-        long nextClass = i.classObjId;
-        while (nextClass != 0) {
-            ClassInfo ci = classMap.get(nextClass);
-            nextClass = ci.superClassObjId;
-            for (InstanceField field : ci.instanceFields) {
-                Value<?> v = null;
-                switch (field.type) {
-                    case OBJ:     // object
-                        long vid = readId(idSize, input);
-                        v = new Value<>(field.type, vid);
-                        break;
-                    case BOOL:     // boolean
-                        boolean vbool = input.readBoolean();
-                        v = new Value<>(field.type, vbool);
-                        break;
-                    case CHAR:     // char
-                        char vc = input.readChar();
-                        v = new Value<>(field.type, vc);
-                        break;
-                    case FLOAT:     // float
-                        float vf = input.readFloat();
-                        v = new Value<>(field.type, vf);
-                        break;
-                    case DOUBLE:     // double
-                        double vd = input.readDouble();
-                        v = new Value<>(field.type, vd);
-                        break;
-                    case BYTE:     // byte
-                        byte vbyte = input.readByte();
-                        v = new Value<>(field.type, vbyte);
-                        break;
-                    case SHORT:     // short
-                        short vs = input.readShort();
-                        v = new Value<>(field.type, vs);
-                        break;
-                    case INT:    // int
-                        int vi = input.readInt();
-                        v = new Value<>(field.type, vi);
-                        break;
-                    case LONG:    // long
-                        long vl = input.readLong();
-                        v = new Value<>(field.type, vl);
-                        break;
-                }
-                values.add(v);
-            }
+    /**
+     * Reads the elements of a primitive array dump with bulk reads and passes them to the typed
+     * handler callback for the element type.
+     */
+    private void parsePrimitiveArray(HprofReader in, int idSize, long objId,
+                                     int stackTraceSerialNum, Type type, int length,
+                                     RecordHandler callbacks)
+            throws IOException {
+        switch (type) {
+            case BOOL:
+                byte[] bools = new byte[length];
+                in.readFully(bools);
+                boolean[] boolArr = new boolean[length];
+                for (int i = 0; i < length; i++) {
+                    boolArr[i] = bools[i] != 0;
+                }
+                callbacks.boolArrayDump(objId, stackTraceSerialNum, boolArr);
+                break;
+            case CHAR:
+                char[] charArr = new char[length];
+                in.readFully(charArr);
+                callbacks.charArrayDump(objId, stackTraceSerialNum, charArr);
+                break;
+            case FLOAT:
+                float[] floatArr = new float[length];
+                in.readFully(floatArr);
+                callbacks.floatArrayDump(objId, stackTraceSerialNum, floatArr);
+                break;
+            case DOUBLE:
+                double[] doubleArr = new double[length];
+                in.readFully(doubleArr);
+                callbacks.doubleArrayDump(objId, stackTraceSerialNum, doubleArr);
+                break;
+            case BYTE:
+                byte[] byteArr = new byte[length];
+                in.readFully(byteArr);
+                callbacks.byteArrayDump(objId, stackTraceSerialNum, byteArr);
+                break;
+            case SHORT:
+                short[] shortArr = new short[length];
+                in.readFully(shortArr);
+                callbacks.shortArrayDump(objId, stackTraceSerialNum, shortArr);
+                break;
+            case INT:
+                int[] intArr = new int[length];
+                in.readFully(intArr);
+                callbacks.intArrayDump(objId, stackTraceSerialNum, intArr);
+                break;
+            case LONG:
+                long[] longArr = new long[length];
+                in.readFully(longArr);
+                callbacks.longArrayDump(objId, stackTraceSerialNum, longArr);
+                break;
+            case OBJ:
+                // not valid in a primitive array dump, but tolerated as before
+                Value<?>[] vs = new Value<?>[length];
+                for (int i = 0; i < length; i++) {
+                    vs[i] = new Value<>(type, in.readId(idSize));
+                }
+                callbacks.primArrayDump(objId, stackTraceSerialNum, type.hprofType(), vs);
+                break;
         }
-        Value<?>[] valuesArr = new Value[values.size()];
-        valuesArr = values.toArray(valuesArr);
-        handler.instanceDump(i.objId, i.stackTraceSerialNum, i.classObjId, valuesArr);
     }
 
-    private static long readId(int idSize, DataInput in) throws IOException {
-        long id = -1;
-        if (idSize == 4) {
-            id = in.readInt();
-            id &= 0x00000000ffffffff;     // undo sign extension
-        } else if (idSize == 8) {
-            id = in.readLong();
-        } else {
-            throw new IllegalArgumentException("Invalid identifier size " + idSize);
-        }
-
-        return id;
+    /**
+     * Reads the field data of an instance dump into the view and passes it to the handler.
+     */
+    private void processInstance(InstanceView view, long objId, int stackTraceSerialNum,
+                                 ClassLayout layout, int numBytes, HprofReader in,
+                                 RecordHandler callbacks)
+            throws IOException {
+        view.readRecord(objId, stackTraceSerialNum, layout, numBytes, in);
+        callbacks.instanceDump(view);
     }
 
-
     /* Utility */
 
-    private int mySkipBytes(int n, DataInput in) throws IOException {
-        int bytesRead = 0;
-
-        try {
-            while (bytesRead < n) {
-                in.readByte();
-                bytesRead++;
+    /**
+     * File offsets and lengths of heap dump (segment) record bodies, in file order.
+     */
+    private static class SegmentTable {
+        long[] offsets = new long[64];
+        long[] lengths = new long[64];
+        int size;
+
+        void add(long offset, long length) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
             }
-        } catch (EOFException e) {
-            // expected
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
         }
 
-        return bytesRead;
+        long totalLength() {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += lengths[i];
+            }
+            return total;
+        }
     }
 
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The primitive layer the parser reads a dump through: big-endian primitives, identifiers of the
+ * dump's id size, bulk reads of primitive arrays, skips, and strings.  Every read is bounds
+ * checked against the input and throws {@link java.io.EOFException} if it runs past the end.
+ * <p>
+ * There are two implementations: {@link MappedFileInput} reads through memory mappings and can
+ * seek, which the single-pass and parallel modes need, and {@link StreamHprofReader} reads any
+ * stream through its own buffer.  Reads don't allocate, apart from the scratch buffers used for
+ * strings and 4-byte ids, which are reused and only grow.
+ * <p>
+ * Strings are decoded as the modified UTF-8 the JVM writes, not with the platform charset.
+ */
+abstract class HprofReader implements DataInput, Closeable {
+
+    private static final int ID_CHUNK_SIZE = 4096;
+
+    private byte[] stringBytes = new byte[64];
+    private char[] stringChars = new char[64];
+    private int[] idChunk;
+
+    /** Reads one unsigned byte, or returns -1 at the end of the input. */
+    abstract int readByteOrEnd() throws IOException;
+
+    /** Returns the next unsigned byte without reading it, or -1 at the end of the input. */
+    abstract int peekByteOrEnd() throws IOException;
+
+    /** Skips exactly n bytes. */
+    abstract void skipFully(long n) throws IOException;
+
+    /** Bulk-reads big-endian shorts, as if by repeated calls to readShort. */
+    abstract void readFully(short[] dst, int off, int len) throws IOException;
+
+    /** Bulk-reads big-endian chars, as if by repeated calls to readChar. */
+    abstract void readFully(char[] dst, int off, int len) throws IOException;
+
+    /** Bulk-reads big-endian ints, as if by repeated calls to readInt. */
+    abstract void readFully(int[] dst, int off, int len) throws IOException;
+
+    /** Bulk-reads big-endian longs, as if by repeated calls to readLong. */
+    abstract void readFully(long[] dst, int off, int len) throws IOException;
+
+    /** Bulk-reads big-endian floats, as if by repeated calls to readFloat. */
+    abstract void readFully(float[] dst, int off, int len) throws IOException;
+
+    /** Bulk-reads big-endian doubles, as if by repeated calls to readDouble. */
+    abstract void readFully(double[] dst, int off, int len) throws IOException;
+
+    /** Reads an identifier of the given size, 4 or 8 bytes, as an unsigned value. */
+    final long readId(int idSize) throws IOException {
+        if (idSize == 4) {
+            return Integer.toUnsignedLong(readInt());
+        } else if (idSize == 8) {
+            return readLong();
+        }
+        throw new IllegalArgumentException("Invalid identifier size " + idSize);
+    }
+
+    /** Bulk-reads identifiers of the given size. */
+    final void readIds(int idSize, long[] dst) throws IOException {
+        if (idSize == 8) {
+            readFully(dst);
+        } else if (idSize == 4) {
+            if (idChunk == null) {
+                idChunk = new int[ID_CHUNK_SIZE];
+            }
+            for (int done = 0; done < dst.length; ) {
+                int n = Math.min(dst.length - done, ID_CHUNK_SIZE);
+                readFully(idChunk, 0, n);
+                for (int i = 0; i < n; i++) {
+                    dst[done + i] = Integer.toUnsignedLong(idChunk[i]);
+                }
+                done += n;
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid identifier size " + idSize);
+        }
+    }
+
+    /** Reads a null-terminated string, such as the format name in the header. */
+    final String readNullTerminatedString() throws IOException {
+        int length = 0;
+        byte b;
+        while ((b = readByte()) != 0) {
+            if (length == stringBytes.length) {
+                growStringBytes(length + 1);
+            }
+            stringBytes[length++] = b;
+        }
+        return decodeUtf8(stringBytes, length);
+    }
+
+    /** Reads a string of the given number of bytes, such as the body of a UTF-8 string record. */
+    final String readUtf8(int length) throws IOException {
+        if (stringBytes.length < length) {
+            growStringBytes(length);
+        }
+        readFully(stringBytes, 0, length);
+        return decodeUtf8(stringBytes, length);
+    }
+
+    private void growStringBytes(int minLength) {
+        stringBytes = new byte[Math.max(minLength, stringBytes.length * 2)];
+    }
+
+    private String decodeUtf8(byte[] b, int length) {
+        if (stringChars.length < length) {
+            stringChars = new char[Math.max(length, stringChars.length * 2)];
+        }
+        return decodeUtf8(b, 0, length, stringChars);
+    }
+
+    /*
+     * Decodes modified UTF-8: like UTF-8, except that NUL is written as two bytes and
+     * supplementary characters as two 3-byte surrogates.  Standard 4-byte sequences are accepted
+     * too.  Malformed bytes are replaced with U+FFFD, one per byte, as the UTF-8 charset would.
+     * The chars are only used for strings that aren't ASCII; null or too short allocates them.
+     */
+    static String decodeUtf8(byte[] b, int off, int length, char[] chars) {
+        int end = off + length;
+        int ascii = off;
+        while (ascii < end && b[ascii] >= 0) {
+            ascii++;
+        }
+        if (ascii == end) {
+            // by far the common case; this stores the string compactly without decoding
+            return new String(b, off, length, StandardCharsets.ISO_8859_1);
+        }
+
+        if (chars == null || chars.length < length) {
+            chars = new char[length];
+        }
+        int n = 0;
+        for (int i = off; i < ascii; i++) {
+            chars[n++] = (char) b[i];
+        }
+        int i = ascii;
+        while (i < end) {
+            int b0 = b[i] & 0xff;
+            if (b0 < 0x80) {
+                chars[n++] = (char) b0;
+                i++;
+            } else if ((b0 & 0xe0) == 0xc0 && isContinuation(b, i + 1, end)) {
+                chars[n++] = (char) (((b0 & 0x1f) << 6) | (b[i + 1] & 0x3f));
+                i += 2;
+            } else if ((b0 & 0xf0) == 0xe0 && isContinuation(b, i + 1, end)
+                    && isContinuation(b, i + 2, end)) {
+                chars[n++] = (char) (((b0 & 0x0f) << 12) | ((b[i + 1] & 0x3f) << 6)
+                        | (b[i + 2] & 0x3f));
+                i += 3;
+            } else if ((b0 & 0xf8) == 0xf0 && isContinuation(b, i + 1, end)
+                    && isContinuation(b, i + 2, end) && isContinuation(b, i + 3, end)
+                    && isSupplementary(b0, b[i + 1])) {
+                int codePoint = ((b0 & 0x07) << 18) | ((b[i + 1] & 0x3f) << 12)
+                        | ((b[i + 2] & 0x3f) << 6) | (b[i + 3] & 0x3f);
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            } else {
+                chars[n++] = '\uFFFD';
+                i++;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private static boolean isContinuation(byte[] b, int i, int end) {
+        return i < end && (b[i] & 0xc0) == 0x80;
+    }
+
+    /* Whether a 4-byte sequence encodes a code point between U+10000 and U+10FFFF. */
+    private static boolean isSupplementary(int b0, byte b1) {
+        int high = ((b0 & 0x07) << 2) | ((b1 & 0x30) >> 4);
+        return high >= 1 && high <= 0x10;
+    }
+
+    /* Whole-array forms of the bulk reads. */
+
+    final void readFully(short[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    final void readFully(char[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    final void readFully(int[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    final void readFully(long[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    final void readFully(float[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    final void readFully(double[] dst) throws IOException {
+        readFully(dst, 0, dst.length);
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    /**
+     * Reads a line as {@link DataInput#readLine} specifies: the bytes up to a {@code '\n'},
+     * {@code '\r'} or {@code "\r\n"}, each taken as the char with the same low eight bits, or
+     * null at the end of the input.  The parser doesn't use it, as hprof files are not
+     * line-oriented.
+     */
+    @Override
+    public String readLine() throws IOException {
+        int b = readByteOrEnd();
+        if (b < 0) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (b >= 0 && b != '\n') {
+            if (b == '\r') {
+                if (peekByteOrEnd() == '\n') {
+                    readByteOrEnd();
+                }
+                break;
+            }
+            line.append((char) b);
+            b = readByteOrEnd();
+        }
+        return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Value;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A reusable view of one instance dump record.  Field values are decoded on demand from the raw
+ * packed bytes of the record, so reading a field allocates nothing.
+ * <p>
+ * Fields are indexed in the order they appear in the record: the fields declared by the
+ * instance's class first, followed by those of its superclass, and so on up to
+ * {@code java.lang.Object}.  This is the same order as the {@code Value<?>[]} passed to
+ * {@code RecordHandler.instanceDump}.
+ * <p>
+ * The field layout comes from the {@link ClassLayout} the parser caches for the instance's class.
+ * The parser reuses a single view for every instance it delivers, so a view is only valid for
+ * the duration of the callback that receives it.  Copy out whatever you need to keep.
+ */
+public final class InstanceView {
+
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private long objId;
+    private int stackTraceSerialNum;
+    private ClassLayout layout;
+
+    private byte[] packedValues = new byte[64];
+    private int packedLength;
+
+    InstanceView() {
+    }
+
+    /**
+     * Reads the packed field values of an instance record into this view, reusing its buffer.
+     */
+    void readRecord(long objId, int stackTraceSerialNum, ClassLayout layout, int numBytes,
+                    HprofReader in) throws IOException {
+        if (layout.fieldsSize > numBytes) {
+            throw new HprofParserException("Instance " + objId + " has " + numBytes
+                    + " bytes of field data, but its class hierarchy needs " + layout.fieldsSize);
+        }
+        if (packedValues.length < numBytes) {
+            packedValues = new byte[Math.max(numBytes, packedValues.length * 2)];
+        }
+        in.readFully(packedValues, 0, numBytes);
+        this.objId = objId;
+        this.stackTraceSerialNum = stackTraceSerialNum;
+        this.layout = layout;
+        this.packedLength = numBytes;
+    }
+
+    public long getObjId() {
+        return objId;
+    }
+
+    public int getStackTraceSerialNum() {
+        return stackTraceSerialNum;
+    }
+
+    public long getClassObjId() {
+        return layout.getClassObjId();
+    }
+
+    /** Returns the flattened field layout of the instance's class. */
+    public ClassLayout getLayout() {
+        return layout;
+    }
+
+    public int getNumFields() {
+        return layout.fieldTypes.length;
+    }
+
+    public Type getFieldType(int fieldIndex) {
+        checkIndex(fieldIndex);
+        return layout.fieldTypes[fieldIndex];
+    }
+
+    public long getFieldNameStringId(int fieldIndex) {
+        checkIndex(fieldIndex);
+        return layout.fieldNameStringIds[fieldIndex];
+    }
+
+    /** Returns the number of bytes of packed field data in the record. */
+    public int getPackedLength() {
+        return packedLength;
+    }
+
+    /** Returns a copy of the packed field data exactly as it appears in the record. */
+    public byte[] copyPackedValues() {
+        return Arrays.copyOf(packedValues, packedLength);
+    }
+
+    public long getObjectId(int fieldIndex) {
+        int offset = offsetOf(fieldIndex, Type.OBJ);
+        if (layout.getIdSize() == 4) {
+            return Integer.toUnsignedLong((int) INT.get(packedValues, offset));
+        }
+        return (long) LONG.get(packedValues, offset);
+    }
+
+    public boolean getBoolean(int fieldIndex) {
+        return packedValues[offsetOf(fieldIndex, Type.BOOL)] != 0;
+    }
+
+    public byte getByte(int fieldIndex) {
+        return packedValues[offsetOf(fieldIndex, Type.BYTE)];
+    }
+
+    public char getChar(int fieldIndex) {
+        return (char) CHAR.get(packedValues, offsetOf(fieldIndex, Type.CHAR));
+    }
+
+    public short getShort(int fieldIndex) {
+        return (short) SHORT.get(packedValues, offsetOf(fieldIndex, Type.SHORT));
+    }
+
+    public int getInt(int fieldIndex) {
+        return (int) INT.get(packedValues, offsetOf(fieldIndex, Type.INT));
+    }
+
+    public long getLong(int fieldIndex) {
+        return (long) LONG.get(packedValues, offsetOf(fieldIndex, Type.LONG));
+    }
+
+    public float getFloat(int fieldIndex) {
+        return Float.intBitsToFloat((int) INT.get(packedValues, offsetOf(fieldIndex, Type.FLOAT)));
+    }
+
+    public double getDouble(int fieldIndex) {
+        return Double.longBitsToDouble(
+                (long) LONG.get(packedValues, offsetOf(fieldIndex, Type.DOUBLE)));
+    }
+
+    /**
+     * Returns the value of a field boxed in a {@link Value}.  This allocates; prefer the typed
+     * getters on hot paths.
+     */
+    public Value<?> getValue(int fieldIndex) {
+        Type type = getFieldType(fieldIndex);
+        switch (type) {
+            case OBJ:
+                return new Value<>(type, getObjectId(fieldIndex));
+            case BOOL:
+                return new Value<>(type, getBoolean(fieldIndex));
+            case CHAR:
+                return new Value<>(type, getChar(fieldIndex));
+            case FLOAT:
+                return new Value<>(type, getFloat(fieldIndex));
+            case DOUBLE:
+                return new Value<>(type, getDouble(fieldIndex));
+            case BYTE:
+                return new Value<>(type, getByte(fieldIndex));
+            case SHORT:
+                return new Value<>(type, getShort(fieldIndex));
+            case INT:
+                return new Value<>(type, getInt(fieldIndex));
+            case LONG:
+                return new Value<>(type, getLong(fieldIndex));
+            default:
+                throw new HprofParserException("Unexpected field type: " + type);
+        }
+    }
+
+    /** Returns all field values boxed, in the same form as {@code RecordHandler.instanceDump}. */
+    public Value<?>[] getValues() {
+        Value<?>[] values = new Value<?>[getNumFields()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getValue(i);
+        }
+        return values;
+    }
+
+    private int offsetOf(int fieldIndex, Type expected) {
+        checkIndex(fieldIndex);
+        if (layout.fieldTypes[fieldIndex] != expected) {
+            throw new IllegalArgumentException("Field " + fieldIndex + " has type "
+                    + layout.fieldTypes[fieldIndex] + ", not " + expected);
+        }
+        return layout.fieldOffsets[fieldIndex];
+    }
+
+    private void checkIndex(int fieldIndex) {
+        if (fieldIndex < 0 || fieldIndex >= layout.fieldTypes.length) {
+            throw new IndexOutOfBoundsException("Field index " + fieldIndex + " out of range for "
+                    + layout.fieldTypes.length + " fields");
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive {@code long} keys to non-negative {@code int} values, for mapping
+ * object ids to dense indexes.  Same layout as {@link LongObjectMap}, with the values in an
+ * {@code int[]}, so each entry costs 12 to 24 bytes and nothing is boxed.
+ * <p>
+ * Negative values are not allowed; {@link #get} returns -1 for absent keys.  Not thread-safe,
+ * although concurrent reads are fine once writes have stopped and been safely published.
+ */
+public class LongIntMap {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private long[] keys;
+    private int[] values;    // -1 marks an empty slot
+    private int size;
+    private int shift;       // 64 - log2(capacity), for Fibonacci hashing
+    private int resizeAt;
+
+    /**
+     * Callback for {@link #forEach}.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long key, int value);
+    }
+
+    public LongIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a map that can hold the given number of entries without resizing.
+     */
+    public LongIntMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalStateException("LongIntMap cannot grow beyond 2^30 slots");
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        // object ids are aligned addresses, so the low bits carry little entropy
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * Returns the value for a key, or -1 if there is none.
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            int value = values[i];
+            if (value < 0 || keys[i] == key) {
+                return value;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) >= 0;
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @return the previous value for the key, or -1 if there was none
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("LongIntMap does not support negative values");
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            int old = values[i];
+            if (old < 0) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > resizeAt) {
+                    rehash(keys.length << 1);
+                }
+                return -1;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return old;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls the visitor for every entry, in no particular order.  The map must not be modified
+     * during the iteration.
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < values.length; i++) {
+            int value = values[i];
+            if (value >= 0) {
+                visitor.visit(keys[i], value);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] >= 0) {
+                int i = slot(oldKeys[j]);
+                while (values[i] >= 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+}
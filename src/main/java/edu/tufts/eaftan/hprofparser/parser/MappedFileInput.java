@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link HprofReader} that reads a file through memory mappings instead of a buffered stream.
+ * <p>
+ * A single {@link MappedByteBuffer} cannot address more than 2 GB, so the file is mapped one
+ * window at a time.  A new window is mapped starting at the current position whenever a read
+ * would run past the end of the current one, which means a primitive never straddles two
+ * mappings and the common case is a single bounds check followed by an absolute get.
+ * <p>
+ * Not thread-safe.  Callers that want to read the same file from several threads should open one
+ * instance per thread; the mappings are shared by the OS page cache.
+ */
+class MappedFileInput extends HprofReader {
+
+    /** Default size of each mapped window. */
+    static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long length;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;    // file offset of window position 0
+
+    MappedFileInput(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFileInput(File file, int windowSize) throws IOException {
+        if (windowSize < 8) {
+            throw new IllegalArgumentException("Window size too small: " + windowSize);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+    }
+
+    /** Returns the absolute file offset of the next byte to be read. */
+    long position() {
+        return windowStart + window.position();
+    }
+
+    /** Moves to an absolute file offset, remapping only if it lies outside the current window. */
+    void seek(long pos) throws IOException {
+        if (pos < 0 || pos > length) {
+            throw new IllegalArgumentException("Position out of range: " + pos);
+        }
+        if (pos >= windowStart && pos <= windowStart + window.limit()) {
+            window.position((int) (pos - windowStart));
+        } else {
+            map(pos);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    private void map(long pos) throws IOException {
+        windowStart = pos;
+        long size = Math.min(windowSize, length - pos);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+    }
+
+    /**
+     * Makes sure that n bytes can be read from the current window, remapping at the current
+     * position if necessary.
+     */
+    private void ensure(int n) throws IOException {
+        if (window.remaining() < n) {
+            long pos = position();
+            if (length - pos < n) {
+                throw new EOFException();
+            }
+            map(pos);
+        }
+    }
+
+    private void checkAvailable(long n) throws EOFException {
+        if (length - position() < n) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        checkAvailable(len);
+        while (len > 0) {
+            if (!window.hasRemaining()) {
+                map(position());
+            }
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    void readFully(short[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 2);
+        int end = off + len;
+        while (off < end) {
+            ensure(2);
+            int n = Math.min(end - off, window.remaining() / 2);
+            window.asShortBuffer().get(dst, off, n);
+            window.position(window.position() + n * 2);
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(char[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 2);
+        int end = off + len;
+        while (off < end) {
+            ensure(2);
+            int n = Math.min(end - off, window.remaining() / 2);
+            window.asCharBuffer().get(dst, off, n);
+            window.position(window.position() + n * 2);
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(int[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 4);
+        int end = off + len;
+        while (off < end) {
+            ensure(4);
+            int n = Math.min(end - off, window.remaining() / 4);
+            window.asIntBuffer().get(dst, off, n);
+            window.position(window.position() + n * 4);
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(long[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 8);
+        int end = off + len;
+        while (off < end) {
+            ensure(8);
+            int n = Math.min(end - off, window.remaining() / 8);
+            window.asLongBuffer().get(dst, off, n);
+            window.position(window.position() + n * 8);
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(float[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 4);
+        int end = off + len;
+        while (off < end) {
+            ensure(4);
+            int n = Math.min(end - off, window.remaining() / 4);
+            window.asFloatBuffer().get(dst, off, n);
+            window.position(window.position() + n * 4);
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(double[] dst, int off, int len) throws IOException {
+        checkAvailable((long) len * 8);
+        int end = off + len;
+        while (off < end) {
+            ensure(8);
+            int n = Math.min(end - off, window.remaining() / 8);
+            window.asDoubleBuffer().get(dst, off, n);
+            window.position(window.position() + n * 8);
+            off += n;
+        }
+    }
+
+    @Override
+    int readByteOrEnd() throws IOException {
+        if (window.hasRemaining()) {
+            return window.get() & 0xff;
+        }
+        return position() < length ? readByte() & 0xff : -1;
+    }
+
+    @Override
+    int peekByteOrEnd() throws IOException {
+        if (window.hasRemaining()) {
+            return window.get(window.position()) & 0xff;
+        }
+        long pos = position();
+        if (pos == length) {
+            return -1;
+        }
+        int b = readByte() & 0xff;
+        seek(pos);
+        return b;
+    }
+
+    @Override
+    void skipFully(long n) throws IOException {
+        checkAvailable(n);
+        seek(position() + n);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        long pos = position();
+        int skipped = (int) Math.min(Math.max(n, 0), length - pos);
+        seek(pos + skipped);
+        return skipped;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ensure(1);
+        return window.get();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        ensure(2);
+        return window.getShort();
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        ensure(2);
+        return window.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        ensure(4);
+        return window.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        ensure(8);
+        return window.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        ensure(4);
+        return window.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        ensure(8);
+        return window.getDouble();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A sorted, memory-mapped index of every object in a heap dump: its id, the file offset of its
+ * record, its class and its size.  It is built by the parser (see
+ * {@code HprofParser.setBuildObjectIndex}) and stored next to the dump, so that objects can later
+ * be looked up by id in O(log n) without parsing the dump again.
+ * <p>
+ * Entries are addressed by their position in id order, from 0 to {@link #size} - 1.  The entries
+ * stay on disk and are paged in by the OS as they are searched; only the class table is kept on
+ * the heap.  An index is immutable and can be read from several threads at once.
+ * <p>
+ * File format, big-endian:
+ * <pre>
+ *   u4 - magic, "HPIX"
+ *   u4 - format version
+ *   u4 - identifier size of the dump
+ *   u8 - length of the dump, in bytes
+ *   u8 - last modification time of the dump, in milliseconds
+ *   u8 - number of entries
+ *   u4 - number of classes
+ *   [entry]* - entries, sorted by object id:
+ *     u8 - object id
+ *     u8 - record offset (48 bits), element type (8 bits) and record tag (8 bits)
+ *     u4 - index of the class in the class table, or -1 for class dumps and primitive arrays
+ *     u4 - size: field bytes for instances, length for arrays, record length for classes
+ *   [id]* - class table: the class object ids referenced by the entries, 8 bytes each
+ * </pre>
+ */
+public final class ObjectIndex implements Closeable {
+
+    /** Record tags, as found in the heap dump. */
+    public static final byte CLASS_DUMP = 0x20;
+    public static final byte INSTANCE_DUMP = 0x21;
+    public static final byte OBJ_ARRAY_DUMP = 0x22;
+    public static final byte PRIM_ARRAY_DUMP = 0x23;
+
+    static final int MAGIC = 0x48504958;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;    // fixed, so that the entries are at a known offset
+    static final int ENTRY_SIZE = 24;
+
+    /* Each mapping covers a whole number of entries, so that an entry never straddles two. */
+    private static final int ENTRIES_PER_WINDOW_SHIFT = 26;
+    private static final long WINDOW_MASK = (1L << ENTRIES_PER_WINDOW_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private final int idSize;
+    private final long dumpLength;
+    private final long dumpLastModified;
+    private final long[] classObjIds;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    private ObjectIndex(File indexFile) throws IOException {
+        channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), HEADER_SIZE));
+            if (in.readInt() != MAGIC) {
+                throw new HprofParserException("Not an object index: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new HprofParserException("Unsupported object index version " + version
+                        + ": " + indexFile);
+            }
+            idSize = in.readInt();
+            dumpLength = in.readLong();
+            dumpLastModified = in.readLong();
+            size = in.readLong();
+            int numClasses = in.readInt();
+            long classTableStart = HEADER_SIZE + size * ENTRY_SIZE;
+            if (classTableStart + (long) numClasses * 8 != channel.size()) {
+                throw new HprofParserException("Truncated object index: " + indexFile);
+            }
+
+            classObjIds = new long[numClasses];
+            channel.position(classTableStart);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (int i = 0; i < numClasses; i++) {
+                classObjIds[i] = in.readLong();
+            }
+
+            int numWindows = (int) ((size + WINDOW_MASK) >>> ENTRIES_PER_WINDOW_SHIFT);
+            windows = new MappedByteBuffer[numWindows];
+            for (int w = 0; w < numWindows; w++) {
+                long first = (long) w << ENTRIES_PER_WINDOW_SHIFT;
+                long count = Math.min(WINDOW_MASK + 1, size - first);
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * ENTRY_SIZE, count * ENTRY_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the file the index of a heap dump is stored in. */
+    public static File indexFileFor(File dumpFile) {
+        return new File(dumpFile.getPath() + ".idx");
+    }
+
+    /**
+     * Opens the index stored next to a heap dump.
+     *
+     * @throws HprofParserException if the index was built for a different version of the dump
+     */
+    public static ObjectIndex open(File dumpFile) throws IOException {
+        ObjectIndex index = new ObjectIndex(indexFileFor(dumpFile));
+        if (index.dumpLength != dumpFile.length()
+                || index.dumpLastModified != dumpFile.lastModified()) {
+            index.close();
+            throw new HprofParserException("Object index is out of date: " + dumpFile);
+        }
+        return index;
+    }
+
+    /** Returns the number of entries. */
+    public long size() {
+        return size;
+    }
+
+    /** Returns the identifier size of the dump the index was built from. */
+    public int getIdSize() {
+        return idSize;
+    }
+
+    /**
+     * Finds the entry of an object by binary search.
+     *
+     * @return the entry, or -1 if the dump has no record for the object
+     */
+    public long find(long objId) {
+        long lo = 0;
+        long hi = size - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long midId = getObjId(mid);
+            if (midId < objId) {
+                lo = mid + 1;
+            } else if (midId > objId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public long getObjId(long entry) {
+        return window(entry).getLong(offsetInWindow(entry));
+    }
+
+    /** Returns the file offset of the object's record, at its tag byte. */
+    public long getRecordOffset(long entry) {
+        return location(entry) >>> 16;
+    }
+
+    /** Returns the tag of the object's record: one of the record tag constants of this class. */
+    public byte getRecordTag(long entry) {
+        return (byte) location(entry);
+    }
+
+    /**
+     * Returns the class of an instance or object array, or 0 for class dumps and primitive
+     * arrays.  This is the id the dump recorded, even if it has no class dump for it.
+     */
+    public long getClassObjId(long entry) {
+        int classIndex = window(entry).getInt(offsetInWindow(entry) + 16);
+        return classIndex < 0 ? 0 : classObjIds[classIndex];
+    }
+
+    /** Returns the element type of an array, or null for other objects. */
+    public Type getElementType(long entry) {
+        byte elemType = (byte) (location(entry) >>> 8);
+        return elemType == 0 ? null : Type.hprofTypeToEnum(elemType);
+    }
+
+    /** Returns the number of elements of an array. */
+    public int getArrayLength(long entry) {
+        byte tag = getRecordTag(entry);
+        if (tag != OBJ_ARRAY_DUMP && tag != PRIM_ARRAY_DUMP) {
+            throw new IllegalArgumentException("Entry " + entry + " is not an array");
+        }
+        return rawSize(entry);
+    }
+
+    /**
+     * Returns the size of the object's data as dumped, without the VM's object header: the field
+     * data of an instance, the elements of an array, or the whole record of a class dump.
+     */
+    public long getShallowSize(long entry) {
+        int size = rawSize(entry);
+        switch (getRecordTag(entry)) {
+            case OBJ_ARRAY_DUMP:
+                return (long) size * idSize;
+            case PRIM_ARRAY_DUMP:
+                return (long) size * getElementType(entry).sizeInBytes();
+            default:
+                return size;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long location(long entry) {
+        return window(entry).getLong(offsetInWindow(entry) + 8);
+    }
+
+    private int rawSize(long entry) {
+        return window(entry).getInt(offsetInWindow(entry) + 20);
+    }
+
+    private MappedByteBuffer window(long entry) {
+        if (entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException("Entry " + entry + " out of range for " + size
+                    + " entries");
+        }
+        return windows[(int) (entry >>> ENTRIES_PER_WINDOW_SHIFT)];
+    }
+
+    private static int offsetInWindow(long entry) {
+        return (int) (entry & WINDOW_MASK) * ENTRY_SIZE;
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Builds an {@link ObjectIndex} with bounded memory, as an external merge sort.  Entries are
+ * collected by {@link Sink}s, one per parsing thread; whenever a sink fills up, its entries are
+ * sorted and spilled to a temporary file as a run.  {@link #finish} merges the runs into the
+ * index file.
+ */
+final class ObjectIndexWriter implements Closeable {
+
+    /** Number of entries a sink holds before spilling a run, about 28 MB. */
+    static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    /* Run entries hold the class id itself; class indexes are assigned during the merge. */
+    private static final int RUN_ENTRY_SIZE = 28;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_SINK_SIZE = 1024;
+
+    private final File indexFile;
+    private final File runFile;
+    private final int idSize;
+    private final int runSize;
+    private final FileChannel runChannel;
+
+    // guarded by this
+    private final ArrayList<long[]> runs = new ArrayList<>();    // {offset, number of entries}
+    private long runFileLength;
+    private long numEntries;
+
+    ObjectIndexWriter(File indexFile, int idSize) throws IOException {
+        this(indexFile, idSize, DEFAULT_RUN_SIZE);
+    }
+
+    ObjectIndexWriter(File indexFile, int idSize, int runSize) throws IOException {
+        this.indexFile = indexFile;
+        this.runFile = new File(indexFile.getPath() + ".runs");
+        this.idSize = idSize;
+        this.runSize = Math.max(runSize, INITIAL_SINK_SIZE);
+        this.runChannel = FileChannel.open(runFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /** Returns a new sink.  Sinks are not thread-safe; use one per thread. */
+    Sink newSink() {
+        return new Sink();
+    }
+
+    /**
+     * Collects the entries found by one thread.  Call {@link #flush} when the thread is done.
+     */
+    final class Sink {
+
+        // grown up to runSize, so that small dumps don't pay for a full run
+        private long[] objIds = new long[INITIAL_SINK_SIZE];
+        private long[] locations = new long[INITIAL_SINK_SIZE];
+        private long[] classObjIds = new long[INITIAL_SINK_SIZE];
+        private int[] sizes = new int[INITIAL_SINK_SIZE];
+        private int count;
+
+        /**
+         * Adds an object.
+         *
+         * @param recordOffset the file offset of the record's tag byte
+         * @param elemType the hprof element type of an array, or 0
+         * @param classObjId the class of an instance or object array, or 0
+         * @param size field bytes for instances, length for arrays, record length for classes
+         */
+        void add(long objId, long recordOffset, byte tag, byte elemType, long classObjId,
+                 int size) throws IOException {
+            if (count == objIds.length) {
+                if (count < runSize) {
+                    grow();
+                } else {
+                    flush();
+                }
+            }
+            objIds[count] = objId;
+            locations[count] = recordOffset << 16 | (elemType & 0xffL) << 8 | (tag & 0xffL);
+            classObjIds[count] = classObjId;
+            sizes[count] = size;
+            count++;
+        }
+
+        private void grow() {
+            int newSize = (int) Math.min((long) objIds.length * 2, runSize);
+            objIds = Arrays.copyOf(objIds, newSize);
+            locations = Arrays.copyOf(locations, newSize);
+            classObjIds = Arrays.copyOf(classObjIds, newSize);
+            sizes = Arrays.copyOf(sizes, newSize);
+        }
+
+        /** Sorts the entries collected so far and spills them as a run. */
+        void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            sort(0, count - 1);
+            long offset = reserve(count);
+            ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE / RUN_ENTRY_SIZE * RUN_ENTRY_SIZE);
+            for (int i = 0; i < count; i++) {
+                if (buf.remaining() < RUN_ENTRY_SIZE) {
+                    offset += writeFully(buf, offset);
+                }
+                buf.putLong(objIds[i]).putLong(locations[i]).putLong(classObjIds[i])
+                        .putInt(sizes[i]);
+            }
+            writeFully(buf, offset);
+            count = 0;
+        }
+
+        private int writeFully(ByteBuffer buf, long offset) throws IOException {
+            buf.flip();
+            int n = buf.remaining();
+            while (buf.hasRemaining()) {
+                offset += runChannel.write(buf, offset);
+            }
+            buf.clear();
+            return n;
+        }
+
+        /*
+         * Sorts by object id.  Objects within a heap dump segment are usually already in address
+         * order, so that case is checked first.
+         */
+        private void sort(int lo, int hi) {
+            boolean sorted = true;
+            for (int i = lo; i < hi && sorted; i++) {
+                sorted = objIds[i] <= objIds[i + 1];
+            }
+            if (!sorted) {
+                quickSort(lo, hi);
+            }
+        }
+
+        private void quickSort(int lo, int hi) {
+            while (hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                // median of three, left in objIds[mid]
+                if (objIds[mid] < objIds[lo]) {
+                    swap(mid, lo);
+                }
+                if (objIds[hi] < objIds[lo]) {
+                    swap(hi, lo);
+                }
+                if (objIds[hi] < objIds[mid]) {
+                    swap(hi, mid);
+                }
+                long pivot = objIds[mid];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (objIds[i] < pivot) {
+                        i++;
+                    }
+                    while (objIds[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller half to bound the stack depth
+                if (j - lo < hi - i) {
+                    quickSort(lo, j);
+                    lo = i;
+                } else {
+                    quickSort(i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && objIds[j - 1] > objIds[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = objIds[i];
+            objIds[i] = objIds[j];
+            objIds[j] = id;
+            long location = locations[i];
+            locations[i] = locations[j];
+            locations[j] = location;
+            long classObjId = classObjIds[i];
+            classObjIds[i] = classObjIds[j];
+            classObjIds[j] = classObjId;
+            int size = sizes[i];
+            sizes[i] = sizes[j];
+            sizes[j] = size;
+        }
+    }
+
+    /* Reserves space in the run file for a run, and returns its offset. */
+    private synchronized long reserve(int count) {
+        long offset = runFileLength;
+        runs.add(new long[] {offset, count});
+        runFileLength += (long) count * RUN_ENTRY_SIZE;
+        numEntries += count;
+        return offset;
+    }
+
+    /**
+     * Merges the runs into the index file.  Every sink must have been flushed.  The index is
+     * written to a temporary file first, so a failed build never leaves a partial index behind.
+     *
+     * @param dumpFile the heap dump, whose length and modification time are recorded
+     */
+    synchronized void finish(File dumpFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        LongIntMap classIndexes = new LongIntMap();
+        long[] classTable = new long[256];
+        int numClasses = 0;
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), IO_BUFFER_SIZE))) {
+            out.writeInt(ObjectIndex.MAGIC);
+            out.writeInt(ObjectIndex.VERSION);
+            out.writeInt(idSize);
+            out.writeLong(dumpFile.length());
+            out.writeLong(dumpFile.lastModified());
+            out.writeLong(numEntries);
+            out.writeInt(0);    // number of classes, patched below
+
+            PriorityQueue<RunCursor> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                    (a, b) -> Long.compare(a.objId, b.objId));
+            for (long[] run : runs) {
+                RunCursor cursor = new RunCursor(run[0], run[1]);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                int classIndex = -1;
+                if (cursor.classObjId != 0) {
+                    classIndex = classIndexes.get(cursor.classObjId);
+                    if (classIndex < 0) {
+                        if (numClasses == classTable.length) {
+                            classTable = Arrays.copyOf(classTable, numClasses * 2);
+                        }
+                        classIndex = numClasses++;
+                        classIndexes.put(cursor.classObjId, classIndex);
+                        classTable[classIndex] = cursor.classObjId;
+                    }
+                }
+                out.writeLong(cursor.objId);
+                out.writeLong(cursor.location);
+                out.writeInt(classIndex);
+                out.writeInt(cursor.size);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+
+            for (int i = 0; i < numClasses; i++) {
+                out.writeLong(classTable[i]);
+            }
+        }
+
+        try (FileChannel tmp = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer count = ByteBuffer.allocate(4).putInt(numClasses);
+            count.flip();
+            tmp.write(count, ObjectIndex.HEADER_SIZE - 4);
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Deletes the temporary run file. */
+    @Override
+    public void close() throws IOException {
+        runChannel.close();
+    }
+
+    /* Reads one run of the run file back in order, through its own buffer. */
+    private final class RunCursor {
+
+        private final ByteBuffer buf = ByteBuffer.allocate(
+                IO_BUFFER_SIZE / RUN_ENTRY_SIZE * RUN_ENTRY_SIZE);
+        private long nextOffset;
+        private long entriesLeft;
+
+        long objId;
+        long location;
+        long classObjId;
+        int size;
+
+        RunCursor(long offset, long numEntries) {
+            this.nextOffset = offset;
+            this.entriesLeft = numEntries;
+            buf.flip();
+        }
+
+        boolean advance() throws IOException {
+            if (entriesLeft == 0) {
+                return false;
+            }
+            if (!buf.hasRemaining()) {
+                buf.clear();
+                long bytes = Math.min(buf.capacity(), entriesLeft * RUN_ENTRY_SIZE);
+                buf.limit((int) bytes);
+                while (buf.hasRemaining()) {
+                    int n = runChannel.read(buf, nextOffset);
+                    if (n < 0) {
+                        throw new IOException("Object index run file truncated: " + runFile);
+                    }
+                    nextOffset += n;
+                }
+                buf.flip();
+            }
+            objId = buf.getLong();
+            location = buf.getLong();
+            classObjId = buf.getLong();
+            size = buf.getInt();
+            entriesLeft--;
+            return true;
+        }
+    }
+
+}
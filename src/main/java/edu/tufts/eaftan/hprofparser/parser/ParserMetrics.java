@@ -0,0 +1,503 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.handler.RecordHandler;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of a parse, kept by {@link HprofParser} once they are passed to
+ * {@code setMetrics}, and read through {@link #snapshot} or JMX; see {@link #registerMBean}.
+ * Without metrics the parser skips all of this.
+ * <p>
+ * Every record is counted, with its size, by record type.  Each thread that reads records keeps
+ * its own counters in plain arrays and publishes them about once per megabyte read, and when it
+ * is done, so counting costs two array increments per record, nothing is shared between
+ * parallel workers, and a snapshot taken during a parse may lag by about that much.
+ * Times are sampled: about one record in
+ * {@value #SAMPLE_INTERVAL} of each thread is timed, and so are the handler callbacks made while
+ * reading it, which separates the time spent decoding records of each type from the time spent
+ * in the handler.  The other records pay only for a countdown.  The samples split the time each
+ * thread spent reading records, which is measured, between the types, decoding and the
+ * handler.  The callbacks made once per parse, {@code header}, {@code heapDumpEnd} and
+ * {@code finished}, are timed separately; {@code heapDump} and {@code heapDumpSegment} are
+ * counted as decoding.  Times are wall-clock times summed over threads, so they include time a
+ * thread spent descheduled, and with parallel parsing they can add up to more than the elapsed
+ * time.
+ * <p>
+ * Both the top-level records and the sub-records of heap dumps are counted.  A heap dump record
+ * whose body is parsed counts only its header; its sub-records count the rest.  Records read in
+ * both passes count twice.
+ */
+public class ParserMetrics implements ParserMetricsMXBean {
+
+    /** One record in this many, on average, is timed. */
+    public static final int SAMPLE_INTERVAL = 256;
+
+    /* Returned by startSample when the record isn't timed. */
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    /* Counters are indexed by tag, top-level records first, then heap dump sub-records. */
+    private static final int NUM_TYPES = 512;
+    private static final int SUB_RECORDS = 256;
+    private static final String[] TYPE_NAMES = new String[NUM_TYPES];
+
+    static {
+        TYPE_NAMES[0x01] = "STRING_IN_UTF8";
+        TYPE_NAMES[0x02] = "LOAD_CLASS";
+        TYPE_NAMES[0x03] = "UNLOAD_CLASS";
+        TYPE_NAMES[0x04] = "STACK_FRAME";
+        TYPE_NAMES[0x05] = "STACK_TRACE";
+        TYPE_NAMES[0x06] = "ALLOC_SITES";
+        TYPE_NAMES[0x07] = "HEAP_SUMMARY";
+        TYPE_NAMES[0x0a] = "START_THREAD";
+        TYPE_NAMES[0x0b] = "END_THREAD";
+        TYPE_NAMES[0x0c] = "HEAP_DUMP";
+        TYPE_NAMES[0x0d] = "CPU_SAMPLES";
+        TYPE_NAMES[0x0e] = "CONTROL_SETTINGS";
+        TYPE_NAMES[0x1c] = "HEAP_DUMP_SEGMENT";
+        TYPE_NAMES[0x2c] = "HEAP_DUMP_END";
+        TYPE_NAMES[SUB_RECORDS + 0xff] = "ROOT_UNKNOWN";
+        TYPE_NAMES[SUB_RECORDS + 0x01] = "ROOT_JNI_GLOBAL";
+        TYPE_NAMES[SUB_RECORDS + 0x02] = "ROOT_JNI_LOCAL";
+        TYPE_NAMES[SUB_RECORDS + 0x03] = "ROOT_JAVA_FRAME";
+        TYPE_NAMES[SUB_RECORDS + 0x04] = "ROOT_NATIVE_STACK";
+        TYPE_NAMES[SUB_RECORDS + 0x05] = "ROOT_STICKY_CLASS";
+        TYPE_NAMES[SUB_RECORDS + 0x06] = "ROOT_THREAD_BLOCK";
+        TYPE_NAMES[SUB_RECORDS + 0x07] = "ROOT_MONITOR_USED";
+        TYPE_NAMES[SUB_RECORDS + 0x08] = "ROOT_THREAD_OBJ";
+        TYPE_NAMES[SUB_RECORDS + 0x20] = "CLASS_DUMP";
+        TYPE_NAMES[SUB_RECORDS + 0x21] = "INSTANCE_DUMP";
+        TYPE_NAMES[SUB_RECORDS + 0x22] = "OBJ_ARRAY_DUMP";
+        TYPE_NAMES[SUB_RECORDS + 0x23] = "PRIM_ARRAY_DUMP";
+    }
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /* The cost of a call to System.nanoTime, which is subtracted from every sample. */
+    private static final long CLOCK_OVERHEAD = measureClockOverhead();
+
+    private static long measureClockOverhead() {
+        long best = Long.MAX_VALUE;
+        // enough rounds for the loop to be compiled, as the sampling code will be
+        for (int round = 0; round < 200; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000; i++) {
+                System.nanoTime();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1000);
+        }
+        return best;
+    }
+
+    /**
+     * The counters of one thread.  Only that thread writes them.  Records are counted in the
+     * pending arrays, with plain stores, and added to the published counters by {@link #flush};
+     * the published counters and the samples are written with opaque stores, so that other
+     * threads see reasonably fresh values.
+     */
+    static final class Recorder {
+        /* The handler to call while reading a timed record. */
+        final RecordHandler timedHandler;
+
+        private final long[] pendingCounts = new long[NUM_TYPES];
+        private final long[] pendingBytes = new long[NUM_TYPES];
+        private final long[] counts = new long[NUM_TYPES];
+        private final long[] bytes = new long[NUM_TYPES];
+        private final long[] sampledCounts = new long[NUM_TYPES];
+        private final long[] sampledNanos = new long[NUM_TYPES];
+        private final long[] sampledHandlerNanos = new long[NUM_TYPES];
+        private int seed = ThreadLocalRandom.current().nextInt() | 1;
+        private int countdown = nextInterval();
+
+        // the callbacks timed so far in the record being timed
+        private int numCallbacks;
+        private long handlerNanos;
+
+        // the time the thread has spent reading records, and when it last started to
+        private volatile long readingNanos;
+        private volatile long readingSince = NOT_SAMPLED;
+
+        Recorder(RecordHandler handler) {
+            timedHandler = new TimedRecordHandler(handler, this);
+        }
+
+        void startReading() {
+            readingSince = System.nanoTime();
+        }
+
+        void stopReading() {
+            long since = readingSince;
+            if (since != NOT_SAMPLED) {
+                readingNanos += System.nanoTime() - since;
+                readingSince = NOT_SAMPLED;
+            }
+        }
+
+        /**
+         * Returns the time to pass to a record method if the next record is to be timed, or
+         * NOT_SAMPLED.  The interval between samples is jittered so that it can't line up with
+         * a pattern in the dump.
+         */
+        long startSample() {
+            if (--countdown > 0) {
+                return NOT_SAMPLED;
+            }
+            countdown = nextInterval();
+            numCallbacks = 0;
+            handlerNanos = 0;
+            return System.nanoTime();
+        }
+
+        private int nextInterval() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return 1 + (seed & (2 * SAMPLE_INTERVAL - 1));
+        }
+
+        void addCallback(long nanos) {
+            numCallbacks++;
+            handlerNanos += Math.max(nanos - CLOCK_OVERHEAD, 0);
+        }
+
+        void recordTopLevel(byte tag, long length, long sampleStart) {
+            record(tag & 0xff, length, sampleStart);
+        }
+
+        void recordSubRecord(byte tag, long length, long sampleStart) {
+            record(SUB_RECORDS + (tag & 0xff), length, sampleStart);
+        }
+
+        private void record(int type, long length, long sampleStart) {
+            pendingCounts[type]++;
+            pendingBytes[type] += length;
+            if (sampleStart != NOT_SAMPLED) {
+                // each timed callback read the clock twice inside the record's own interval
+                long nanos = System.nanoTime() - sampleStart
+                        - (1 + 2L * numCallbacks) * CLOCK_OVERHEAD;
+                add(sampledCounts, type, 1);
+                add(sampledNanos, type, Math.max(nanos, handlerNanos));
+                add(sampledHandlerNanos, type, handlerNanos);
+            }
+        }
+
+        /* Publishes the records counted since the last flush. */
+        void flush() {
+            for (int t = 0; t < NUM_TYPES; t++) {
+                if (pendingCounts[t] != 0) {
+                    add(counts, t, pendingCounts[t]);
+                    add(bytes, t, pendingBytes[t]);
+                    pendingCounts[t] = 0;
+                    pendingBytes[t] = 0;
+                }
+            }
+        }
+
+        private static void add(long[] counters, int i, long n) {
+            LONGS.setOpaque(counters, i, (long) LONGS.get(counters, i) + n);
+        }
+
+        /**
+         * Adds the counts of each type, and the estimated time spent in records of each type and
+         * in their callbacks, to the totals.  Timing a record takes long enough to disturb it,
+         * so the samples overstate small records; they are only used to split the time the
+         * thread spent reading records, which is measured, between the types.
+         */
+        void addTo(long[] totalCounts, long[] totalBytes, long[] totalNanos,
+                   long[] totalHandlerNanos, long now) {
+            double[] nanos = new double[NUM_TYPES];
+            double[] typeHandlerNanos = new double[NUM_TYPES];
+            double sampledTotal = 0;
+            for (int t = 0; t < NUM_TYPES; t++) {
+                long count = (long) LONGS.getOpaque(counts, t);
+                totalCounts[t] += count;
+                totalBytes[t] += (long) LONGS.getOpaque(bytes, t);
+                long sampledCount = (long) LONGS.getOpaque(sampledCounts, t);
+                if (sampledCount > 0) {
+                    // scale the samples up to every record of the type
+                    double scale = (double) count / sampledCount;
+                    nanos[t] = (long) LONGS.getOpaque(sampledNanos, t) * scale;
+                    typeHandlerNanos[t] = (long) LONGS.getOpaque(sampledHandlerNanos, t) * scale;
+                    sampledTotal += nanos[t];
+                }
+            }
+            if (sampledTotal == 0) {
+                return;
+            }
+            long since = readingSince;
+            double reading = readingNanos + (since != NOT_SAMPLED ? now - since : 0);
+            for (int t = 0; t < NUM_TYPES; t++) {
+                totalNanos[t] += (long) (nanos[t] * reading / sampledTotal);
+                totalHandlerNanos[t] += (long) (typeHandlerNanos[t] * reading / sampledTotal);
+            }
+        }
+    }
+
+    /**
+     * The counts of one type of record, and the estimated time spent in records of that type:
+     * in all, and in their handler callbacks.
+     */
+    public static class RecordStats {
+        public final String name;
+        public final boolean heapDumpSubRecord;
+        public final int tag;
+        public final long count;
+        public final long bytes;
+        public final long estimatedNanos;
+        public final long estimatedHandlerNanos;
+
+        RecordStats(String name, boolean heapDumpSubRecord, int tag, long count, long bytes,
+                    long estimatedNanos, long estimatedHandlerNanos) {
+            this.name = name;
+            this.heapDumpSubRecord = heapDumpSubRecord;
+            this.tag = tag;
+            this.count = count;
+            this.bytes = bytes;
+            this.estimatedNanos = estimatedNanos;
+            this.estimatedHandlerNanos = estimatedHandlerNanos;
+        }
+    }
+
+    /**
+     * The metrics of a parse at one point in time.  The times other than the elapsed time are
+     * estimates.
+     */
+    public static class Snapshot {
+        public final long records;
+        public final long bytes;
+        public final long elapsedNanos;
+        /** Time spent in handler callbacks. */
+        public final long handlerNanos;
+        /** Time spent reading and decoding records, not counting their callbacks. */
+        public final long decodeNanos;
+        /** The types of record seen, top-level records first, each in tag order. */
+        public final List<RecordStats> recordTypes;
+
+        Snapshot(long records, long bytes, long elapsedNanos, long handlerNanos, long decodeNanos,
+                 List<RecordStats> recordTypes) {
+            this.records = records;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.handlerNanos = handlerNanos;
+            this.decodeNanos = decodeNanos;
+            this.recordTypes = recordTypes;
+        }
+
+        /** Prints a table of the record types followed by the totals; times are in ms. */
+        public void print(PrintStream out) {
+            out.printf("%-20s %14s %16s %10s %10s%n",
+                    "record type", "count", "bytes", "decoding", "handler");
+            out.println("-".repeat(74));
+            for (RecordStats stats : recordTypes) {
+                long decodeMillis =
+                        (stats.estimatedNanos - stats.estimatedHandlerNanos) / 1_000_000;
+                out.printf("%-20s %,14d %,16d %,10d %,10d%n", stats.name, stats.count,
+                        stats.bytes, decodeMillis, stats.estimatedHandlerNanos / 1_000_000);
+            }
+            out.printf("%-20s %,14d %,16d%n", "total", records, bytes);
+            out.printf("elapsed %,d ms, decoding %,d ms (est.), handler %,d ms (est.)%n",
+                    elapsedNanos / 1_000_000, decodeNanos / 1_000_000, handlerNanos / 1_000_000);
+        }
+    }
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+
+    // callbacks that are always timed
+    private final LongAdder timedHandlerNanos = new LongAdder();
+
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile boolean running;
+
+    private ObjectName objectName;
+
+    /* Clears the metrics of the last parse; called by the thread that calls parse. */
+    void start() {
+        recorders.clear();
+        timedHandlerNanos.reset();
+        startNanos = System.nanoTime();
+        running = true;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+        running = false;
+    }
+
+    /** Returns new counters for a thread that is about to read records for the handler. */
+    Recorder newRecorder(RecordHandler handler) {
+        Recorder recorder = new Recorder(handler);
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /* For the callbacks that are always timed. */
+    void addHandlerNanos(long nanos) {
+        timedHandlerNanos.add(nanos);
+    }
+
+    /** Returns the number of records read so far by the current or last parse. */
+    @Override
+    public long getRecords() {
+        return sum(r -> sum(r.counts));
+    }
+
+    /** Returns the number of bytes of records read so far by the current or last parse. */
+    @Override
+    public long getBytes() {
+        return sum(r -> sum(r.bytes));
+    }
+
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        long elapsed = running ? now - startNanos : endNanos - startNanos;
+        long[] counts = new long[NUM_TYPES];
+        long[] typeBytes = new long[NUM_TYPES];
+        long[] nanos = new long[NUM_TYPES];
+        long[] typeHandlerNanos = new long[NUM_TYPES];
+        for (Recorder recorder : recorders) {
+            recorder.addTo(counts, typeBytes, nanos, typeHandlerNanos, now);
+        }
+
+        List<RecordStats> types = new ArrayList<>();
+        long records = 0;
+        long bytes = 0;
+        long recordNanos = 0;
+        long handlerNanos = timedHandlerNanos.sum();
+        for (int type = 0; type < NUM_TYPES; type++) {
+            if (counts[type] == 0) {
+                continue;
+            }
+            String name = TYPE_NAMES[type] != null ? TYPE_NAMES[type]
+                    : String.format("0x%02x", type % SUB_RECORDS);
+            types.add(new RecordStats(name, type >= SUB_RECORDS, type % SUB_RECORDS,
+                    counts[type], typeBytes[type], nanos[type], typeHandlerNanos[type]));
+            records += counts[type];
+            bytes += typeBytes[type];
+            recordNanos += nanos[type] - typeHandlerNanos[type];
+            handlerNanos += typeHandlerNanos[type];
+        }
+        return new Snapshot(records, bytes, startNanos == 0 ? 0 : elapsed, handlerNanos,
+                recordNanos, Collections.unmodifiableList(types));
+    }
+
+    private long sum(ToLongFunction<Recorder> counter) {
+        long total = 0;
+        for (Recorder recorder : recorders) {
+            total += counter.applyAsLong(recorder);
+        }
+        return total;
+    }
+
+    private static long sum(long[] counters) {
+        long total = 0;
+        for (int i = 0; i < counters.length; i++) {
+            total += (long) LONGS.getOpaque(counters, i);
+        }
+        return total;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return snapshot().elapsedNanos / 1_000_000;
+    }
+
+    @Override
+    public long getHandlerMillis() {
+        return snapshot().handlerNanos / 1_000_000;
+    }
+
+    @Override
+    public long getDecodeMillis() {
+        return snapshot().decodeNanos / 1_000_000;
+    }
+
+    @Override
+    public Map<String, Long> getRecordCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (RecordStats stats : snapshot().recordTypes) {
+            counts.put(stats.name, stats.count);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRecordBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        for (RecordStats stats : snapshot().recordTypes) {
+            bytes.put(stats.name, stats.bytes);
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Long> getRecordMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (RecordStats stats : snapshot().recordTypes) {
+            millis.put(stats.name, stats.estimatedNanos / 1_000_000);
+        }
+        return millis;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * {@code edu.tufts.eaftan.hprofparser:type=HprofParser,name=<name>}.
+     */
+    public synchronized void registerMBean(String name) {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        try {
+            ObjectName on = new ObjectName("edu.tufts.eaftan.hprofparser:type=HprofParser,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to register parser metrics MBean " + name, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to unregister parser metrics MBean", e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ParserMetrics}.  Every attribute is read from a fresh snapshot of the
+ * current or last parse; the maps are keyed by record type name.
+ */
+public interface ParserMetricsMXBean {
+
+    long getRecords();
+
+    long getBytes();
+
+    long getElapsedMillis();
+
+    /** Estimated time spent in handler callbacks, summed over threads. */
+    long getHandlerMillis();
+
+    /** Estimated time spent reading and decoding records, summed over threads. */
+    long getDecodeMillis();
+
+    Map<String, Long> getRecordCounts();
+
+    Map<String, Long> getRecordBytes();
+
+    /** Estimated time spent in records of each type, including their callbacks. */
+    Map<String, Long> getRecordMillis();
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * An {@link HprofReader} that reads a stream through a buffer of its own, for input that can't
+ * be memory-mapped.  Primitives are decoded straight from the buffer, and bulk reads decode the
+ * buffer a chunk at a time, so no reads go through the stream one byte at a time and none
+ * allocate.
+ * <p>
+ * Not thread-safe.
+ */
+class StreamHprofReader extends HprofReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR =
+            MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;      // next byte to be read
+    private int limit;    // end of the valid data in buf
+
+    StreamHprofReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    StreamHprofReader(InputStream in, int bufferSize) {
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Makes sure that n bytes, at most the buffer size, are buffered, moving the unread bytes to
+     * the start of the buffer and reading more if necessary.
+     */
+    private void ensure(int n) throws IOException {
+        if (limit - pos >= n) {
+            return;
+        }
+        if (!fill(n)) {
+            throw new EOFException();
+        }
+    }
+
+    /* Returns false if the stream ends before n bytes are buffered. */
+    private boolean fill(int n) throws IOException {
+        int buffered = limit - pos;
+        System.arraycopy(buf, pos, buf, 0, buffered);
+        pos = 0;
+        limit = buffered;
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    @Override
+    int readByteOrEnd() throws IOException {
+        if (pos == limit && !fill(1)) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    int peekByteOrEnd() throws IOException {
+        if (pos == limit && !fill(1)) {
+            return -1;
+        }
+        return buf[pos] & 0xff;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ensure(1);
+        return buf[pos++];
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        ensure(2);
+        short v = (short) SHORT.get(buf, pos);
+        pos += 2;
+        return v;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        ensure(2);
+        char v = (char) CHAR.get(buf, pos);
+        pos += 2;
+        return v;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        ensure(4);
+        int v = (int) INT.get(buf, pos);
+        pos += 4;
+        return v;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        ensure(8);
+        long v = (long) LONG.get(buf, pos);
+        pos += 8;
+        return v;
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+        if (len == 0) {
+            return;
+        }
+        // the buffer is empty; large reads bypass it
+        if (len >= buf.length) {
+            if (in.readNBytes(b, off, len) < len) {
+                throw new EOFException();
+            }
+            return;
+        }
+        ensure(len);
+        System.arraycopy(buf, pos, b, off, len);
+        pos += len;
+    }
+
+    @Override
+    void readFully(short[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(2);
+            int n = Math.min(end - off, (limit - pos) / 2);
+            for (int i = 0; i < n; i++, pos += 2) {
+                dst[off + i] = (short) SHORT.get(buf, pos);
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(char[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(2);
+            int n = Math.min(end - off, (limit - pos) / 2);
+            for (int i = 0; i < n; i++, pos += 2) {
+                dst[off + i] = (char) CHAR.get(buf, pos);
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(int[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(4);
+            int n = Math.min(end - off, (limit - pos) / 4);
+            for (int i = 0; i < n; i++, pos += 4) {
+                dst[off + i] = (int) INT.get(buf, pos);
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(long[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(8);
+            int n = Math.min(end - off, (limit - pos) / 8);
+            for (int i = 0; i < n; i++, pos += 8) {
+                dst[off + i] = (long) LONG.get(buf, pos);
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(float[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(4);
+            int n = Math.min(end - off, (limit - pos) / 4);
+            for (int i = 0; i < n; i++, pos += 4) {
+                dst[off + i] = Float.intBitsToFloat((int) INT.get(buf, pos));
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void readFully(double[] dst, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            ensure(8);
+            int n = Math.min(end - off, (limit - pos) / 8);
+            for (int i = 0; i < n; i++, pos += 8) {
+                dst[off + i] = Double.longBitsToDouble((long) LONG.get(buf, pos));
+            }
+            off += n;
+        }
+    }
+
+    @Override
+    void skipFully(long n) throws IOException {
+        if (skip(n) < n) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        return (int) skip(Math.max(n, 0));
+    }
+
+    /* Skips up to n bytes, fewer only at the end of the stream, and returns the number skipped. */
+    private long skip(long n) throws IOException {
+        int buffered = (int) Math.min(n, limit - pos);
+        pos += buffered;
+        long skipped = buffered;
+        while (skipped < n) {
+            long s = in.skip(n - skipped);
+            if (s <= 0) {
+                // skip may stop short without being at the end; a read tells the two apart
+                if (in.read() < 0) {
+                    break;
+                }
+                s = 1;
+            }
+            skipped += s;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
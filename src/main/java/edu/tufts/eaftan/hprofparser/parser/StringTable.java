@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The UTF-8 string records of a dump, kept as the bytes the dump holds them in and decoded only
+ * when looked up.  The bytes of all strings are appended to one off-heap arena of 1 MB direct
+ * buffers, and a {@link LongIntMap} maps each id to the string's number, which gives its offset
+ * in the arena.
+ * <p>
+ * Each string costs its encoded length off the heap, plus 20 to 35 bytes on it for its offset
+ * and map slot, against about 55 plus its length on the heap for a decoded {@code String} in a
+ * {@link LongObjectMap}: the object, its array and the slot.  For a million names of 30 bytes,
+ * {@code StringTableBenchmark} measures 34 bytes of heap and 30 off it per string, against 98 of
+ * heap.  The arena counts against {@code -XX:MaxDirectMemorySize}, which defaults to the maximum
+ * heap size, and is freed when the table is garbage collected.
+ * <p>
+ * With interning, a string is decoded the first time it is looked up and the same
+ * {@code String} is returned afterwards; use it for names that are looked up over and over,
+ * such as field names.
+ * <p>
+ * A handler gets the strings in a table by returning it from
+ * {@code RecordHandler.stringTable()}; the parser then fills it instead of decoding each string.
+ * Not thread-safe, although concurrent lookups without interning are fine once the table has
+ * been filled and safely published.
+ */
+public final class StringTable {
+
+    /**
+     * Callback for {@link #forEach}.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long id, String value);
+    }
+
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int INITIAL_SIZE = 1024;
+
+    private final LongIntMap numbers = new LongIntMap();
+    private long[] offsets = new long[INITIAL_SIZE + 1];    // string i is offsets[i, i + 1)
+    private int size;
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private long length;
+    private byte[] readBuffer = new byte[256];
+    private final LongObjectMap<String> interned;
+
+    public StringTable() {
+        this(false);
+    }
+
+    /**
+     * @param intern whether to keep the strings that are looked up, decoded
+     */
+    public StringTable(boolean intern) {
+        this.interned = intern ? new LongObjectMap<>() : null;
+    }
+
+    /** Returns the number of strings. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the number of bytes the strings take in the arena, off the heap. */
+    public long getByteSize() {
+        return length;
+    }
+
+    public boolean contains(long id) {
+        return numbers.containsKey(id);
+    }
+
+    /** Returns the string with the given id, or null if there is none. */
+    public String get(long id) {
+        if (interned != null) {
+            String s = interned.get(id);
+            if (s == null) {
+                int number = numbers.get(id);
+                if (number < 0) {
+                    return null;
+                }
+                s = decode(number);
+                interned.put(id, s);
+            }
+            return s;
+        }
+        int number = numbers.get(id);
+        return number >= 0 ? decode(number) : null;
+    }
+
+    /**
+     * Calls the visitor for every string, decoded, in the order they were added.  The strings are
+     * not interned.  The table must not be modified during the iteration.
+     */
+    public void forEach(Visitor visitor) {
+        // a string added again under the same id replaces the earlier one, which is skipped
+        long[] ids = new long[size];
+        boolean[] live = new boolean[size];
+        numbers.forEach((id, number) -> {
+            ids[number] = id;
+            live[number] = true;
+        });
+        for (int i = 0; i < size; i++) {
+            if (live[i]) {
+                String s = interned != null ? interned.get(ids[i]) : null;
+                visitor.visit(ids[i], s != null ? s : decode(i));
+            }
+        }
+    }
+
+    /* Adds a string of the given number of bytes, read from the input. */
+    void read(long id, HprofReader in, int n) throws IOException {
+        if (size + 1 == offsets.length) {
+            // the map of numbers stops growing first, at about 750 million strings
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        for (int done = 0; done < n; ) {
+            int page = (int) (length >>> PAGE_SHIFT);
+            int offset = (int) length & (PAGE_SIZE - 1);
+            if (page == pages.length) {
+                pages = Arrays.copyOf(pages, page * 2);
+            }
+            if (pages[page] == null) {
+                pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE);
+            }
+            int chunk = Math.min(n - done, PAGE_SIZE - offset);
+            if (readBuffer.length < chunk) {
+                readBuffer = new byte[Math.max(chunk, readBuffer.length * 2)];
+            }
+            in.readFully(readBuffer, 0, chunk);
+            pages[page].put(offset, readBuffer, 0, chunk);
+            length += chunk;
+            done += chunk;
+        }
+        numbers.put(id, size);
+        offsets[++size] = length;
+    }
+
+    private String decode(int number) {
+        long start = offsets[number];
+        int n = (int) (offsets[number + 1] - start);
+        if (n == 0) {
+            return "";
+        }
+        int page = (int) (start >>> PAGE_SHIFT);
+        int offset = (int) start & (PAGE_SIZE - 1);
+        // copied out rather than into a shared buffer, so that lookups can run concurrently
+        byte[] bytes = new byte[n];
+        for (int done = 0; done < n; page++, offset = 0) {
+            int chunk = Math.min(n - done, PAGE_SIZE - offset);
+            pages[page].get(offset, bytes, done, chunk);
+            done += chunk;
+        }
+        return HprofReader.decodeUtf8(bytes, 0, n, null);
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import edu.tufts.eaftan.hprofparser.handler.RecordHandler;
+import edu.tufts.eaftan.hprofparser.handler.RecordKind;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.*;
+
+import java.util.EnumSet;
+
+/**
+ * Passes every callback on to the parser's handler and adds the time it took to the record
+ * being timed.  The parser calls this instead of the handler while reading a record that
+ * {@link ParserMetrics} samples, so the other records pay nothing for the timing.
+ */
+class TimedRecordHandler implements RecordHandler {
+
+    private final RecordHandler delegate;
+    private final ParserMetrics.Recorder recorder;
+
+    TimedRecordHandler(RecordHandler delegate, ParserMetrics.Recorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public EnumSet<RecordKind> recordKinds() {
+        return delegate.recordKinds();
+    }
+
+    @Override
+    public void header(String format, int idSize, long time) {
+        long start = System.nanoTime();
+        delegate.header(format, idSize, time);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void stringInUTF8(long id, String data) {
+        long start = System.nanoTime();
+        delegate.stringInUTF8(id, data);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void loadClass(int classSerialNum, long classObjId, int stackTraceSerialNum,
+                          long classNameStringId) {
+        long start = System.nanoTime();
+        delegate.loadClass(classSerialNum, classObjId, stackTraceSerialNum, classNameStringId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void unloadClass(int classSerialNum) {
+        long start = System.nanoTime();
+        delegate.unloadClass(classSerialNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void stackFrame(long stackFrameId, long methodNameStringId, long methodSigStringId,
+                           long sourceFileNameStringId, int classSerialNum, int location) {
+        long start = System.nanoTime();
+        delegate.stackFrame(stackFrameId, methodNameStringId, methodSigStringId,
+                sourceFileNameStringId, classSerialNum, location);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void stackTrace(int stackTraceSerialNum, int threadSerialNum, int numFrames,
+                           long[] stackFrameIds) {
+        long start = System.nanoTime();
+        delegate.stackTrace(stackTraceSerialNum, threadSerialNum, numFrames, stackFrameIds);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void allocSites(short bitMaskFlags, float cutoffRatio, int totalLiveBytes,
+                           int totalLiveInstances, long totalBytesAllocated,
+                           long totalInstancesAllocated, AllocSite[] sites) {
+        long start = System.nanoTime();
+        delegate.allocSites(bitMaskFlags, cutoffRatio, totalLiveBytes, totalLiveInstances,
+                totalBytesAllocated, totalInstancesAllocated, sites);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void startThread(int threadSerialNum, long threadObjectId, int stackTraceSerialNum,
+                            long threadNameStringId, long threadGroupNameId,
+                            long threadParentGroupNameId) {
+        long start = System.nanoTime();
+        delegate.startThread(threadSerialNum, threadObjectId, stackTraceSerialNum,
+                threadNameStringId, threadGroupNameId, threadParentGroupNameId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void endThread(int threadSerialNum) {
+        long start = System.nanoTime();
+        delegate.endThread(threadSerialNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void heapDump() {
+        long start = System.nanoTime();
+        delegate.heapDump();
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void heapDumpEnd() {
+        long start = System.nanoTime();
+        delegate.heapDumpEnd();
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void heapDumpSegment() {
+        long start = System.nanoTime();
+        delegate.heapDumpSegment();
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootUnknown(long objId) {
+        long start = System.nanoTime();
+        delegate.rootUnknown(objId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootJNIGlobal(long objId, long JNIGlobalRefId) {
+        long start = System.nanoTime();
+        delegate.rootJNIGlobal(objId, JNIGlobalRefId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootJNILocal(long objId, int threadSerialNum, int frameNum) {
+        long start = System.nanoTime();
+        delegate.rootJNILocal(objId, threadSerialNum, frameNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootJavaFrame(long objId, int threadSerialNum, int frameNum) {
+        long start = System.nanoTime();
+        delegate.rootJavaFrame(objId, threadSerialNum, frameNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootNativeStack(long objId, int threadSerialNum) {
+        long start = System.nanoTime();
+        delegate.rootNativeStack(objId, threadSerialNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootStickyClass(long objId) {
+        long start = System.nanoTime();
+        delegate.rootStickyClass(objId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootThreadBlock(long objId, int threadSerialNum) {
+        long start = System.nanoTime();
+        delegate.rootThreadBlock(objId, threadSerialNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootMonitorUsed(long objId) {
+        long start = System.nanoTime();
+        delegate.rootMonitorUsed(objId);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void rootThreadObj(long objId, int threadSerialNum, int stackTraceSerialNum) {
+        long start = System.nanoTime();
+        delegate.rootThreadObj(objId, threadSerialNum, stackTraceSerialNum);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void classDump(long classObjId, int stackTraceSerialNum, long superClassObjId,
+                          long classLoaderObjId, long signersObjId, long protectionDomainObjId,
+                          long reserved1, long reserved2, int instanceSize, Constant[] constants,
+                          Static[] statics, InstanceField[] instanceFields) {
+        long start = System.nanoTime();
+        delegate.classDump(classObjId, stackTraceSerialNum, superClassObjId, classLoaderObjId,
+                signersObjId, protectionDomainObjId, reserved1, reserved2, instanceSize, constants,
+                statics, instanceFields);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void instanceDump(long objId, int stackTraceSerialNum, long classObjId,
+                             Value<?>[] instanceFieldValues) {
+        long start = System.nanoTime();
+        delegate.instanceDump(objId, stackTraceSerialNum, classObjId, instanceFieldValues);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void instanceDump(InstanceView instance) {
+        long start = System.nanoTime();
+        delegate.instanceDump(instance);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void instanceDumpSummary(long objId, int stackTraceSerialNum, long classObjId,
+                                    int numBytes) {
+        long start = System.nanoTime();
+        delegate.instanceDumpSummary(objId, stackTraceSerialNum, classObjId, numBytes);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void objArrayDump(long objId, int stackTraceSerialNum, long elemClassObjId,
+                             long[] elems) {
+        long start = System.nanoTime();
+        delegate.objArrayDump(objId, stackTraceSerialNum, elemClassObjId, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void objArrayDumpSummary(long objId, int stackTraceSerialNum, long elemClassObjId,
+                                    int length) {
+        long start = System.nanoTime();
+        delegate.objArrayDumpSummary(objId, stackTraceSerialNum, elemClassObjId, length);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void primArrayDump(long objId, int stackTraceSerialNum, byte elemType,
+                              Value<?>[] elems) {
+        long start = System.nanoTime();
+        delegate.primArrayDump(objId, stackTraceSerialNum, elemType, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void boolArrayDump(long objId, int stackTraceSerialNum, boolean[] elems) {
+        long start = System.nanoTime();
+        delegate.boolArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void charArrayDump(long objId, int stackTraceSerialNum, char[] elems) {
+        long start = System.nanoTime();
+        delegate.charArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void floatArrayDump(long objId, int stackTraceSerialNum, float[] elems) {
+        long start = System.nanoTime();
+        delegate.floatArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void doubleArrayDump(long objId, int stackTraceSerialNum, double[] elems) {
+        long start = System.nanoTime();
+        delegate.doubleArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void byteArrayDump(long objId, int stackTraceSerialNum, byte[] elems) {
+        long start = System.nanoTime();
+        delegate.byteArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void shortArrayDump(long objId, int stackTraceSerialNum, short[] elems) {
+        long start = System.nanoTime();
+        delegate.shortArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void intArrayDump(long objId, int stackTraceSerialNum, int[] elems) {
+        long start = System.nanoTime();
+        delegate.intArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void longArrayDump(long objId, int stackTraceSerialNum, long[] elems) {
+        long start = System.nanoTime();
+        delegate.longArrayDump(objId, stackTraceSerialNum, elems);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void primArrayDumpSummary(long objId, int stackTraceSerialNum, byte elemType,
+                                     int length) {
+        long start = System.nanoTime();
+        delegate.primArrayDumpSummary(objId, stackTraceSerialNum, elemType, length);
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+    @Override
+    public void finished() {
+        long start = System.nanoTime();
+        delegate.finished();
+        recorder.addCallback(System.nanoTime() - start);
+    }
+
+}
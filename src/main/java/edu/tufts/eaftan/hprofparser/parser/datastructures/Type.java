@@ -20,28 +20,35 @@ import edu.tufts.eaftan.hprofparser.parser.HprofParserException;
 
 public enum Type {
 
-    OBJ("Object", 4),
-    BOOL("boolean", 1),
-    CHAR("char", 2),
-    FLOAT("float", 4),
-    DOUBLE("double", 8),
-    BYTE("byte", 1),
-    SHORT("short", 2),
-    INT("int", 4),
-    LONG("long", 8);
+    OBJ("Object", 4, (byte) 2),
+    BOOL("boolean", 1, (byte) 4),
+    CHAR("char", 2, (byte) 5),
+    FLOAT("float", 4, (byte) 6),
+    DOUBLE("double", 8, (byte) 7),
+    BYTE("byte", 1, (byte) 8),
+    SHORT("short", 2, (byte) 9),
+    INT("int", 4, (byte) 10),
+    LONG("long", 8, (byte) 11);
 
     private final String name;
     private final int sizeInBytes;
+    private final byte hprofType;
 
-    private Type(String name, int sizeInBytes) {
+    private Type(String name, int sizeInBytes, byte hprofType) {
         this.name = name;
         this.sizeInBytes = sizeInBytes;
+        this.hprofType = hprofType;
     }
 
     public int sizeInBytes() {
         return sizeInBytes;
     }
 
+    /** Returns the hprof basic type code for this type; the inverse of hprofTypeToEnum. */
+    public byte hprofType() {
+        return hprofType;
+    }
+
     public static Type hprofTypeToEnum(byte type) {
         switch (type) {
             case 2:
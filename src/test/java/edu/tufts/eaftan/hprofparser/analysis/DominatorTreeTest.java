@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.tufts.eaftan.hprofparser.analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import org.junit.jupiter.api.Test;
+
+public class DominatorTreeTest {
+
+    private static final long CLASS = 0x100;
+    private static final long A = 0x200;
+    private static final long B = 0x300;
+    private static final long C = 0x400;
+    private static final long D = 0x500;
+    private static final long E = 0x600;
+    private static final long INTS = 0x700;
+    private static final long GARBAGE = 0x800;
+
+    /*
+     * CLASS and A are roots; A refers to B and C, which both refer to D, which refers to E,
+     * which refers to INTS.  GARBAGE refers to A but can't be reached itself.
+     */
+    private static ReferenceGraph diamond(boolean inEdges) {
+        try (ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, inEdges)) {
+            builder.addInstance(D, CLASS, 40);
+            builder.addReference(E);
+            builder.addInstance(GARBAGE, CLASS, 60);
+            builder.addReference(A);
+            builder.addInstance(A, CLASS, 10);
+            builder.addReference(B);
+            builder.addReference(C);
+            builder.addInstance(B, CLASS, 20);
+            builder.addReference(D);
+            builder.addInstance(C, CLASS, 30);
+            builder.addReference(D);
+            builder.addReference(A);    // a cycle back to A changes nothing
+            builder.addInstance(E, CLASS, 50);
+            builder.addReference(INTS);
+            builder.addPrimitiveArray(INTS, Type.INT, 4);
+            builder.addClass(CLASS, 8);
+            builder.addRoot(CLASS);
+            builder.addRoot(A);
+            return builder.build();
+        }
+    }
+
+    @Test
+    public void immediateDominators() {
+        for (boolean inEdges : new boolean[] {false, true}) {
+            ReferenceGraph graph = diamond(inEdges);
+            DominatorTree tree = DominatorTree.compute(graph);
+
+            assertEquals(DominatorTree.ROOT, idom(tree, CLASS));
+            assertEquals(DominatorTree.ROOT, idom(tree, A));
+            assertEquals(graph.indexOf(A), idom(tree, B));
+            assertEquals(graph.indexOf(A), idom(tree, C));
+            assertEquals(graph.indexOf(A), idom(tree, D));
+            assertEquals(graph.indexOf(D), idom(tree, E));
+            assertEquals(graph.indexOf(E), idom(tree, INTS));
+            assertEquals(DominatorTree.UNREACHABLE, idom(tree, GARBAGE));
+            assertEquals(7, tree.getNumReachable());
+        }
+    }
+
+    @Test
+    public void retainedSizes() {
+        DominatorTree tree = DominatorTree.compute(diamond(true));
+
+        assertEquals(16, retained(tree, INTS));
+        assertEquals(66, retained(tree, E));
+        assertEquals(106, retained(tree, D));
+        assertEquals(20, retained(tree, B));
+        assertEquals(30, retained(tree, C));
+        assertEquals(166, retained(tree, A));
+        assertEquals(8, retained(tree, CLASS));
+        assertEquals(0, retained(tree, GARBAGE));
+        assertEquals(174, tree.getReachableSize());
+
+        // A dominates every other reachable instance, so they only count once
+        assertEquals(166, tree.getClassRetainedSize(CLASS));
+        assertEquals(0, tree.getClassRetainedSize(0x999));
+        assertEquals(16, tree.getPrimitiveArrayRetainedSize(Type.INT));
+        assertEquals(0, tree.getPrimitiveArrayRetainedSize(Type.LONG));
+    }
+
+    @Test
+    public void objectReachableFromTwoRootsIsDominatedByTheVirtualRoot() {
+        ReferenceGraph graph;
+        try (ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, false)) {
+            builder.addInstance(A, CLASS, 1);
+            builder.addReference(C);
+            builder.addInstance(B, CLASS, 2);
+            builder.addReference(C);
+            builder.addInstance(C, CLASS, 4);
+            builder.addRoot(A);
+            builder.addRoot(B);
+            graph = builder.build();
+        }
+        DominatorTree tree = DominatorTree.compute(graph);
+
+        assertEquals(DominatorTree.ROOT, idom(tree, C));
+        assertEquals(1, retained(tree, A));
+        assertEquals(4, retained(tree, C));
+        assertEquals(7, tree.getReachableSize());
+    }
+
+    @Test
+    public void deepChain() {
+        // far deeper than a recursive implementation could go
+        int n = 1000000;
+        ReferenceGraph graph;
+        try (ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, false)) {
+            for (int i = 0; i < n; i++) {
+                builder.addInstance(8L * (i + 1), CLASS, 1);
+                builder.addReference(8L * (i + 2));
+            }
+            builder.addRoot(8);
+            graph = builder.build();
+        }
+        DominatorTree tree = DominatorTree.compute(graph);
+
+        assertEquals(n, tree.getNumReachable());
+        assertEquals(DominatorTree.ROOT, tree.getImmediateDominator(graph.indexOf(8)));
+        assertEquals(graph.indexOf(8L * (n - 1)),
+                tree.getImmediateDominator(graph.indexOf(8L * n)));
+        assertEquals(n, tree.getRetainedSize(graph.indexOf(8)));
+        assertEquals(1, tree.getRetainedSize(graph.indexOf(8L * n)));
+    }
+
+    private static int idom(DominatorTree tree, long objId) {
+        return tree.getImmediateDominator(tree.getGraph().indexOf(objId));
+    }
+
+    private static long retained(DominatorTree tree, long objId) {
+        return tree.getRetainedSize(tree.getGraph().indexOf(objId));
+    }
+
+}
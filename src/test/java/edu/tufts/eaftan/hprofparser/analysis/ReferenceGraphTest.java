@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.tufts.eaftan.hprofparser.analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import edu.tufts.eaftan.hprofparser.parser.HprofParserException;
+import edu.tufts.eaftan.hprofparser.parser.datastructures.Type;
+
+import org.junit.jupiter.api.Test;
+
+public class ReferenceGraphTest {
+
+    @Test
+    public void resolvesReferencesToNodes() {
+        ReferenceGraph graph;
+        try (ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, true)) {
+            // out of id order, as objects from several heap dump segments are
+            builder.addInstance(0x300, 0x100, 16);
+            builder.addReference(0x200);
+            builder.addReference(0);             // null
+            builder.addReference(0x999);         // not in the dump
+            builder.addClass(0x100, 8);
+            builder.addPrimitiveArray(0x200, Type.CHAR, 5);
+            builder.addObjectArray(0x400, 0x110, 2);
+            builder.addReference(0x200);
+            builder.addReference(0x300);
+            builder.addRoot(0x400);
+            builder.addRoot(0x400);
+            builder.addRoot(0x888);              // not in the dump
+            graph = builder.build();
+        }
+
+        assertEquals(4, graph.size());
+        assertEquals(3, graph.getNumEdges());
+        assertEquals(1, graph.getNumUnresolvedReferences());
+        assertEquals(-1, graph.indexOf(0x999));
+
+        int instance = graph.indexOf(0x300);
+        int chars = graph.indexOf(0x200);
+        int array = graph.indexOf(0x400);
+        assertEquals(0x300, graph.getObjId(instance));
+        assertEquals(0x100, graph.getClassObjId(instance));
+        assertEquals(0x110, graph.getClassObjId(array));
+        assertEquals(Type.CHAR, graph.getElementType(chars));
+        assertEquals(16, graph.getShallowSize(instance));
+        assertEquals(10, graph.getShallowSize(chars));
+        assertEquals(16, graph.getShallowSize(array));
+        assertEquals(8, graph.getShallowSize(graph.indexOf(0x100)));
+
+        assertEquals(1, graph.getOutDegree(instance));
+        assertEquals(chars, graph.getOutEdge(instance, 0));
+        assertEquals(2, graph.getOutDegree(array));
+        assertEquals(chars, graph.getOutEdge(array, 0));
+        assertEquals(instance, graph.getOutEdge(array, 1));
+
+        assertEquals(2, graph.getInDegree(chars));
+        assertEquals(instance, graph.getInEdge(chars, 0));
+        assertEquals(array, graph.getInEdge(chars, 1));
+        assertEquals(0, graph.getInDegree(array));
+
+        assertEquals(1, graph.getNumRoots());
+        assertEquals(array, graph.getRoot(0));
+    }
+
+    @Test
+    public void rejectsObjectsDumpedTwice() {
+        try (ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, false)) {
+            builder.addInstance(0x300, 0x100, 16);
+            builder.addInstance(0x200, 0x100, 16);
+            builder.addInstance(0x300, 0x100, 16);
+            assertThrows(HprofParserException.class, builder::build);
+        }
+    }
+
+    @Test
+    public void builderCantBeUsedAfterClose() {
+        ReferenceGraph.Builder builder = new ReferenceGraph.Builder(8, false);
+        builder.close();
+        assertThrows(IllegalStateException.class, () -> builder.addClass(0x100, 0));
+        assertThrows(IllegalStateException.class, builder::build);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class LongIntMapTest {
+
+    @Test
+    public void putAndGet() {
+        LongIntMap map = new LongIntMap();
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.put(0x1000, 7));
+        assertEquals(-1, map.put(0, 0));
+        assertEquals(-1, map.put(-5, Integer.MAX_VALUE));
+
+        assertEquals(3, map.size());
+        assertEquals(7, map.get(0x1000));
+        assertEquals(0, map.get(0));
+        assertEquals(Integer.MAX_VALUE, map.get(-5));
+        assertTrue(map.containsKey(0));
+        assertFalse(map.containsKey(0x1008));
+        assertEquals(-1, map.get(0x1008));
+    }
+
+    @Test
+    public void putReplacesTheValue() {
+        LongIntMap map = new LongIntMap();
+        map.put(42, 1);
+        assertEquals(1, map.put(42, 2));
+        assertEquals(2, map.get(42));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void rejectsNegativeValues() {
+        LongIntMap map = new LongIntMap();
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, -1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void growsPastItsExpectedSize() {
+        // aligned ids, as object ids are, to exercise the hash's mixing of the high bits
+        LongIntMap map = new LongIntMap(4);
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            map.put(0x7f0000000000L + 8L * i, i);
+        }
+        assertEquals(n, map.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, map.get(0x7f0000000000L + 8L * i));
+        }
+        assertEquals(-1, map.get(0x7f0000000000L + 8L * n));
+    }
+
+    @Test
+    public void forEachVisitsEveryEntry() {
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 31L, i);
+            expected.put(i * 31L, i);
+        }
+        Map<Long, Integer> visited = new HashMap<>();
+        map.forEach((key, value) -> assertEquals(null, visited.put(key, value)));
+        assertEquals(expected, visited);
+    }
+
+}
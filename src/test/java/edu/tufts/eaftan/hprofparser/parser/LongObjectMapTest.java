@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void putAndGet() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(0x1000, "a"));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-5, "negative"));
+
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(0x1000));
+        assertEquals("zero", map.get(0));
+        assertEquals("negative", map.get(-5));
+        assertTrue(map.containsKey(0));
+        assertFalse(map.containsKey(0x1008));
+        assertNull(map.get(0x1008));
+    }
+
+    @Test
+    public void putReplacesTheValue() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(42, "old");
+        assertEquals("old", map.put(42, "new"));
+        assertEquals("new", map.get(42));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void rejectsNullValues() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertThrows(NullPointerException.class, () -> map.put(1, null));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void removeKeepsTheOtherEntriesReachable() {
+        // compare with a HashMap under random puts and removes over a small key range, so that
+        // removals often land in the middle of a probe sequence
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(2000) * 8L;
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 2000 * 8L; key += 8) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void growsAndClears() {
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            map.put(0x7f0000000000L + 8L * i, i);
+        }
+        assertEquals(n, map.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, map.get(0x7f0000000000L + 8L * i));
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0x7f0000000000L));
+        map.put(1, 1);
+        assertEquals(1, map.get(1));
+    }
+
+    @Test
+    public void forEachVisitsEveryEntry() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 31L, "v" + i);
+            expected.put(i * 31L, "v" + i);
+        }
+        Map<Long, String> visited = new HashMap<>();
+        map.forEach((key, value) -> assertNull(visited.put(key, value)));
+        assertEquals(expected, visited);
+    }
+
+}
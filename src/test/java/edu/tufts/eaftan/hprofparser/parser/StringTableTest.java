@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Edward Aftandilian. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.tufts.eaftan.hprofparser.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class StringTableTest {
+
+    /* Reads the given UTF-8 strings into a table, under ids 1, 2, 3 and so on. */
+    private static StringTable read(StringTable table, byte[]... strings) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] s : strings) {
+            out.write(s);
+        }
+        HprofReader in = new StreamHprofReader(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < strings.length; i++) {
+            table.read(i + 1, in, strings[i].length);
+        }
+        return table;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        StringTable table = read(new StringTable(),
+                utf8("java/lang/Object"), utf8(""), utf8("caf\u00e9 \u65e5\u672c"),
+                utf8("\ud83d\ude00"));
+        assertEquals(4, table.size());
+        assertEquals("java/lang/Object", table.get(1));
+        assertEquals("", table.get(2));
+        assertEquals("caf\u00e9 \u65e5\u672c", table.get(3));
+        assertEquals("\ud83d\ude00", table.get(4));
+        assertEquals(16 + 0 + 12 + 4, table.getByteSize());
+
+        assertTrue(table.contains(2));
+        assertFalse(table.contains(5));
+        assertNull(table.get(5));
+    }
+
+    @Test
+    public void decodesModifiedUtf8() throws IOException {
+        // the VM writes NUL as two bytes and supplementary characters as surrogate pairs
+        byte[] nul = {'a', (byte) 0xc0, (byte) 0x80, 'b'};
+        byte[] pair = {(byte) 0xed, (byte) 0xa0, (byte) 0xbd, (byte) 0xed, (byte) 0xb8,
+                (byte) 0x80};
+        StringTable table = read(new StringTable(), nul, pair);
+        assertEquals("a\u0000b", table.get(1));
+        assertEquals("\ud83d\ude00", table.get(2));
+    }
+
+    @Test
+    public void stringsSpanPages() throws IOException {
+        // pages are 1 MB; the second string starts near the end of the first page and the third
+        // is longer than a page
+        byte[] first = new byte[(1 << 20) - 3];
+        Arrays.fill(first, (byte) 'x');
+        byte[] second = utf8("spans\u00e9");
+        byte[] third = new byte[(3 << 20) + 5];
+        for (int i = 0; i < third.length; i++) {
+            third[i] = (byte) ('a' + i % 26);
+        }
+        StringTable table = read(new StringTable(), first, second, third);
+        assertEquals(new String(first, StandardCharsets.US_ASCII), table.get(1));
+        assertEquals("spans\u00e9", table.get(2));
+        assertEquals(new String(third, StandardCharsets.US_ASCII), table.get(3));
+    }
+
+    @Test
+    public void laterStringReplacesEarlierOne() throws IOException {
+        StringTable table = new StringTable();
+        HprofReader in = new StreamHprofReader(
+                new ByteArrayInputStream(utf8("oldnewother")));
+        table.read(1, in, 3);
+        table.read(1, in, 3);
+        table.read(2, in, 5);
+        assertEquals("new", table.get(1));
+
+        List<String> visited = new ArrayList<>();
+        table.forEach((id, value) -> visited.add(id + "=" + value));
+        assertEquals(List.of("1=new", "2=other"), visited);
+    }
+
+    @Test
+    public void forEachVisitsInInsertionOrder() throws IOException {
+        StringTable table = new StringTable();
+        HprofReader in = new StreamHprofReader(new ByteArrayInputStream(utf8("cab")));
+        table.read(30, in, 1);
+        table.read(10, in, 1);
+        table.read(20, in, 1);
+
+        List<String> visited = new ArrayList<>();
+        table.forEach((id, value) -> visited.add(id + "=" + value));
+        assertEquals(List.of("30=c", "10=a", "20=b"), visited);
+    }
+
+    @Test
+    public void internsOnlyWhenAsked() throws IOException {
+        StringTable interning = read(new StringTable(true), utf8("name"));
+        assertSame(interning.get(1), interning.get(1));
+
+        StringTable plain = read(new StringTable(), utf8("name"));
+        assertEquals(plain.get(1), plain.get(1));
+        assertNotSame(plain.get(1), plain.get(1));
+    }
+
+}